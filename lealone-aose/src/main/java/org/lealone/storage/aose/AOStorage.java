@@ -5,6 +5,7 @@
  */
 package org.lealone.storage.aose;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
@@ -12,6 +13,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.ZipOutputStream;
 
 import org.lealone.common.util.CaseInsensitiveMap;
 import org.lealone.common.util.DataUtils;
@@ -25,8 +27,10 @@ import org.lealone.storage.PageOperationHandlerFactory;
 import org.lealone.storage.StorageBase;
 import org.lealone.storage.StorageCommand;
 import org.lealone.storage.StorageMap;
+import org.lealone.storage.aose.btree.BTreeCompactionService;
 import org.lealone.storage.aose.btree.BTreeMap;
 import org.lealone.storage.aose.btree.BTreeMapBuilder;
+import org.lealone.storage.aose.btree.BTreeStorage;
 import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.type.StorageDataType;
@@ -63,6 +67,11 @@ public class AOStorage extends StorageBase {
         return pohFactory;
     }
 
+    // 存储级别的配置，不包含单个map的参数
+    public Map<String, Object> getConfig() {
+        return config;
+    }
+
     @Override
     public <K, V> StorageMap<K, V> openMap(String name, StorageDataType keyType, StorageDataType valueType,
             Map<String, String> parameters) {
@@ -114,6 +123,52 @@ public class AOStorage extends StorageBase {
         return config.containsKey("readOnly");
     }
 
+    @Override
+    public long getCompactionRewrittenBytes() {
+        BTreeCompactionService service = BTreeCompactionService.getInstance(this);
+        return service == null ? 0 : service.getRewrittenBytes();
+    }
+
+    @Override
+    public long getCompactionReclaimedChunks() {
+        BTreeCompactionService service = BTreeCompactionService.getInstance(this);
+        return service == null ? 0 : service.getReclaimedChunks();
+    }
+
+    @Override
+    public long getCompactionReclaimedBytes() {
+        BTreeCompactionService service = BTreeCompactionService.getInstance(this);
+        return service == null ? 0 : service.getReclaimedBytes();
+    }
+
+    // chunk文件写完之后就不会再修改了，所以不需要关闭存储，打开的BTreeMap自己负责备份它的chunk文件。
+    // 要按磁盘上的目录来备份，没有打开的map和存储目录下的其他文件也要备份
+    @Override
+    protected void backupTo(String path, ZipOutputStream out, Long lastDate) throws IOException {
+        String pathShortName = getPathShortName(path);
+        for (FilePath fp : FilePath.get(path).newDirectoryStream()) {
+            String name = fp.getName();
+            if (name.startsWith(TEMP_NAME_PREFIX))
+                continue;
+            String entryName = pathShortName + "/" + name;
+            if (!fp.isDirectory()) {
+                if (lastDate == null || fp.lastModified() >= lastDate)
+                    backupFile(out, fp.newInputStream(), entryName);
+                continue;
+            }
+            BTreeMap<?, ?> map;
+            // 复制没有打开的map时要持有锁，避免复制的过程中被打开了
+            synchronized (this) {
+                map = (BTreeMap<?, ?>) maps.get(name);
+                if (map == null || map.isClosed()) {
+                    BTreeStorage.backupTo(fp.toString(), out, entryName, lastDate);
+                    continue;
+                }
+            }
+            map.getBTreeStorage().backupTo(out, entryName, lastDate);
+        }
+    }
+
     @Override
     public void replicateFrom(ByteBuffer data) {
         boolean containsSysMap = data.get() == 1;
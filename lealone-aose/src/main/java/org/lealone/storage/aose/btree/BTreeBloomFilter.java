@@ -0,0 +1,117 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.storage.type.StorageDataType;
+
+/**
+ * leaf page中所有key的Bloom filter，写leaf page时生成，保存在父节点中，
+ * 这样用get/containsKey查找一个不存在的key时不用读leaf page就能知道它肯定不存在。
+ * putIfAbsent要插入key，总是要读leaf page，按前缀或范围查找的唯一性检查和外键检查也用不上它。
+ * <p>
+ * 用key类型的hashKey计算bit的位置，不用key的hashCode，因为比较相等的key的hashCode不一定相等，
+ * 比如1.0和1.00。leaf page中只要有一个key不能hash就不生成Bloom filter，不能hash的key也不查Bloom filter。
+ *
+ * @author zhh
+ */
+class BTreeBloomFilter {
+
+    private final int hashCount;
+    private final long[] bits;
+
+    private BTreeBloomFilter(int hashCount, long[] bits) {
+        this.hashCount = hashCount;
+        this.bits = bits;
+    }
+
+    /**
+     * Create a bloom filter of the keys.
+     *
+     * @param keyType the key type
+     * @param keys the keys
+     * @param bitsPerKey the number of bits per key, about 1% false positive rate if it is 10
+     * @return the bloom filter, or null if some keys can not be hashed
+     */
+    static BTreeBloomFilter create(StorageDataType keyType, Object[] keys, int bitsPerKey) {
+        for (Object key : keys) {
+            if (!keyType.isHashableKey(key))
+                return null;
+        }
+        // 最优的hash函数个数是bitsPerKey * ln(2)
+        int hashCount = Math.max(1, Math.min(30, (int) (bitsPerKey * 0.69)));
+        int wordCount = Math.max(1, (keys.length * bitsPerKey + 63) / 64);
+        BTreeBloomFilter filter = new BTreeBloomFilter(hashCount, new long[wordCount]);
+        for (Object key : keys) {
+            filter.add(keyType.hashKey(key));
+        }
+        return filter;
+    }
+
+    private void add(int hashCode) {
+        int bitCount = bits.length * 64;
+        int h = hash(hashCode);
+        int delta = (h >>> 17) | (h << 15);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (h & Integer.MAX_VALUE) % bitCount;
+            bits[bit >>> 6] |= 1L << bit;
+            h += delta;
+        }
+    }
+
+    /**
+     * Check whether the key may be in the leaf page.
+     *
+     * @param keyType the key type
+     * @param key the key
+     * @return false if the key is definitely not in the leaf page
+     */
+    boolean mayContain(StorageDataType keyType, Object key) {
+        if (!keyType.isHashableKey(key))
+            return true;
+        int bitCount = bits.length * 64;
+        int h = hash(keyType.hashKey(key));
+        int delta = (h >>> 17) | (h << 15);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (h & Integer.MAX_VALUE) % bitCount;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+            h += delta;
+        }
+        return true;
+    }
+
+    private static int hash(int h) {
+        // 跟CacheLongKeyLIRS一样再做一次混淆，避免连续的key的hashCode只有低位不同
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+
+    int getMemory() {
+        return 24 + bits.length * 8;
+    }
+
+    void write(DataBuffer buff) {
+        buff.putVarInt(hashCount).putVarInt(bits.length);
+        for (long word : bits) {
+            buff.putLong(word);
+        }
+    }
+
+    static BTreeBloomFilter read(ByteBuffer buff) {
+        int hashCount = DataUtils.readVarInt(buff);
+        int wordCount = DataUtils.readVarInt(buff);
+        long[] bits = new long[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            bits[i] = buff.getLong();
+        }
+        return new BTreeBloomFilter(hashCount, bits);
+    }
+}
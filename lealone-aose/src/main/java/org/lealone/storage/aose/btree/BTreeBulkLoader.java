@@ -0,0 +1,225 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.storage.type.StorageDataType;
+
+/**
+ * 把按key升序排好的记录从下往上直接构建成btree，用于给空map批量导入数据，比如创建索引。
+ * <p>
+ * 每个leaf page都填到pageSplitSize才开始下一个，所有leaf page都建好后再一层层建node page，
+ * 不需要像put那样每条记录都从root往下找位置再切割page。
+ * 还没保存的leaf page太多时先写到chunk文件中，这样导入的记录再多，占用的内存也是有上限的。
+ * 这些chunk不会成为map的最后一个chunk，所有记录都导入完之前map的root page还是原来的空page，
+ * 所以中途保存或者崩溃都不会留下只导入了一部分的树；导入失败时已经写到chunk中的leaf page都标记为删除，
+ * 这些chunk之后由BTreeCompactionService删除。
+ *
+ * @author zhh
+ */
+class BTreeBulkLoader {
+
+    private final BTreeMap<?, ?> map;
+    private final BTreeStorage btreeStorage;
+    private final StorageDataType keyType;
+    private final StorageDataType valueType;
+    private final int pageSplitSize;
+
+    // 已经建好的leaf page，保存过的只留下pos
+    private final ArrayList<PageReference> leafPages = new ArrayList<>();
+    private final ArrayList<Object> firstKeys = new ArrayList<>(); // 每个leaf page的第一个key
+    private int unsavedLeafPageCount;
+    private long unsavedMemory;
+
+    private ArrayList<Object> keys = new ArrayList<>();
+    private ArrayList<Object> values = new ArrayList<>();
+    private int memory;
+    private Object lastKey;
+    private long count;
+
+    BTreeBulkLoader(BTreeMap<?, ?> map) {
+        this.map = map;
+        btreeStorage = map.getBTreeStorage();
+        keyType = map.getKeyType();
+        valueType = map.getValueType();
+        pageSplitSize = btreeStorage.getPageSplitSize();
+    }
+
+    /**
+     * Build the pages of the entries and replace the root page of the empty map.
+     *
+     * @param entries the key-value pairs, the keys must be distinct and in ascending order
+     * @return the number of entries
+     */
+    long load(Iterator<? extends Map.Entry<?, ?>> entries) {
+        BTreePage emptyRoot = map.getRootPage();
+        try {
+            addEntries(entries);
+        } catch (Throwable t) {
+            removeSavedLeafPages();
+            throw t;
+        }
+        if (leafPages.isEmpty())
+            return 0;
+
+        BTreePage root = buildTree();
+        map.newRoot(root);
+        emptyRoot.removeAllRecursive();
+        btreeStorage.setUnsavedChanges(true);
+        return count;
+    }
+
+    private void addEntries(Iterator<? extends Map.Entry<?, ?>> entries) {
+        while (entries.hasNext()) {
+            Map.Entry<?, ?> e = entries.next();
+            Object key = e.getKey();
+            Object value = e.getValue();
+            DataUtils.checkNotNull(value, "value");
+            if (lastKey != null && keyType.compare(lastKey, key) >= 0) {
+                throw DataUtils.newIllegalArgumentException("The keys are not in ascending order: {0}, {1}",
+                        lastKey, key);
+            }
+            keys.add(key);
+            values.add(value);
+            memory += keyType.getMemory(key) + valueType.getMemory(value);
+            lastKey = key;
+            count++;
+            // 跟BTreeLocalPage.needSplit的条件一样
+            if (memory > pageSplitSize && keys.size() > 1)
+                addLeafPage();
+        }
+        if (!keys.isEmpty())
+            addLeafPage();
+    }
+
+    // 导入失败时map还是原来的空map，已经写到chunk中的leaf page都用不到了
+    private void removeSavedLeafPages() {
+        for (PageReference ref : leafPages) {
+            if (ref.page == null)
+                btreeStorage.removePage(ref.pos, btreeStorage.getChunk(ref.pos).getPageLength(ref.pos));
+        }
+    }
+
+    private void addLeafPage() {
+        BTreeLeafPage p = BTreeLeafPage.create(map, keys.toArray(), values.toArray(), keys.size(), 0);
+        leafPages.add(new PageReference(p));
+        firstKeys.add(keys.get(0));
+        unsavedLeafPageCount++;
+        unsavedMemory += p.getMemory();
+        int capacity = keys.size();
+        keys = new ArrayList<>(capacity);
+        values = new ArrayList<>(capacity);
+        memory = 0;
+        if (unsavedMemory > btreeStorage.getBulkLoadBufferSize())
+            saveLeafPages();
+    }
+
+    // 把还没保存的leaf page写到一个新chunk中，但是不替换map的root page，
+    // 保存后leaf page只留下pos，page本身可以被缓存逐出
+    private void saveLeafPages() {
+        int start = leafPages.size() - unsavedLeafPageCount;
+        ArrayList<BTreePage> pages = new ArrayList<>(unsavedLeafPageCount);
+        for (int i = start, size = leafPages.size(); i < size; i++) {
+            pages.add(leafPages.get(i).page);
+        }
+        btreeStorage.writeDetachedChunk(pages);
+        for (int i = start, size = leafPages.size(); i < size; i++) {
+            BTreePage p = leafPages.get(i).page;
+            PageReference ref = new PageReference(null, p.getPos());
+            ref.bloomFilter = p.getBloomFilter();
+            leafPages.set(i, ref);
+        }
+        unsavedLeafPageCount = 0;
+        unsavedMemory = 0;
+    }
+
+    // 一层层往上建node page，直到只剩一个page
+    private BTreePage buildTree() {
+        List<PageReference> children = leafPages;
+        List<Object> childKeys = firstKeys;
+        if (children.size() == 1)
+            return getRoot(children.get(0));
+        while (children.size() > 1) {
+            int size = children.size();
+            ArrayList<PageReference> parents = new ArrayList<>();
+            ArrayList<Object> parentKeys = new ArrayList<>();
+            ArrayList<Integer> ends = new ArrayList<>();
+            int start = 0;
+            int nodeMemory = PageUtils.PAGE_MEMORY;
+            for (int i = 0; i < size; i++) {
+                if (i > start)
+                    nodeMemory += keyType.getMemory(childKeys.get(i));
+                nodeMemory += PageUtils.PAGE_MEMORY_CHILD;
+                if (nodeMemory > pageSplitSize && i > start) {
+                    ends.add(i + 1);
+                    start = i + 1;
+                    nodeMemory = PageUtils.PAGE_MEMORY;
+                }
+            }
+            // 最后只剩一个子节点时并到前一个node page中
+            if (start < size) {
+                if (size - start == 1 && !ends.isEmpty())
+                    ends.set(ends.size() - 1, size);
+                else
+                    ends.add(size);
+            }
+            start = 0;
+            for (int end : ends) {
+                BTreePage node = createNode(children, childKeys, start, end);
+                parents.add(node.getRef());
+                parentKeys.add(childKeys.get(start));
+                start = end;
+            }
+            children = parents;
+            childKeys = parentKeys;
+        }
+        return children.get(0).page;
+    }
+
+    private BTreePage getRoot(PageReference ref) {
+        BTreePage root = ref.page;
+        if (root == null) {
+            root = btreeStorage.readPage(ref.pos);
+            if (ref.bloomFilter != null)
+                root.setBloomFilter(ref.bloomFilter);
+        }
+        root.setRef(new PageReference(root));
+        return root;
+    }
+
+    private BTreePage createNode(List<PageReference> children, List<Object> childKeys, int start, int end) {
+        Object[] nodeKeys = new Object[end - start - 1];
+        PageReference[] nodeChildren = new PageReference[end - start];
+        for (int i = start; i < end; i++) {
+            if (i > start)
+                nodeKeys[i - start - 1] = childKeys.get(i);
+            PageReference ref = children.get(i);
+            BTreePage p = ref.page;
+            PageReference childRef;
+            if (p == null) {
+                childRef = new PageReference(null, ref.pos);
+                childRef.bloomFilter = ref.bloomFilter;
+            } else {
+                childRef = new PageReference(p);
+                p.setRef(childRef);
+            }
+            nodeChildren[i - start] = childRef;
+        }
+        BTreePage node = BTreeNodePage.create(map, nodeKeys, nodeChildren, 0);
+        PageReference nodeRef = new PageReference(node);
+        node.setRef(nodeRef);
+        for (PageReference ref : nodeChildren) {
+            if (ref.page != null)
+                ref.page.setParentRef(nodeRef);
+        }
+        return node;
+    }
+}
@@ -5,6 +5,8 @@
  */
 package org.lealone.storage.aose.btree;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import org.lealone.common.util.DataUtils;
@@ -51,20 +53,160 @@ public class BTreeChunk {
      */
     public long sumOfPageLength;
 
-    public long sumOfLivePageLength;
-
     public int pagePositionAndLengthOffset;
-    public final HashMap<Long, Integer> pagePositionToLengthMap = new HashMap<>();
+
+    /**
+     * 按写入的顺序存放所有page的pos和长度，同一个chunk中后写入的page的pos更大，所以可以用二分查找。
+     * 用基本类型的数组代替HashMap<Long, Integer>，page很多时能省下大量内存。
+     */
+    long[] pagePositions;
+    int[] pageLengths;
+
+    /**
+     * 已经删除的page，每个bit对应pagePositions中的一个下标，由ChunkMetaData负责同步和持久化。
+     */
+    private long[] removedPages;
+    int removedPageCount;
+    long sumOfRemovedPageLength;
 
     public FileStorage fileStorage;
     public long mapSize;
 
+    /**
+     * 启用mmapRead后，写完的chunk文件只读映射到内存，读page时直接从这里切出一段，由BTreeStorage负责映射。
+     */
+    volatile ByteBuffer mappedBuffer;
+
+    /**
+     * 保存时page先写到一个可重用的缓冲区，缓冲区满了就写到chunk文件中，
+     * 这个字段是已经写到chunk文件中的chunk body的字节数。
+     */
+    int writtenBodyLength;
+
+    /**
+     * Get the offset in the chunk body of the given position of the write buffer.
+     * 
+     * @param bufferPosition the position of the write buffer
+     * @return the offset in the chunk body
+     */
+    int getOffset(int bufferPosition) {
+        return writtenBodyLength + bufferPosition;
+    }
+
     BTreeChunk(int id) {
         this.id = id;
     }
 
     int getPageLength(long pagePosition) {
-        return pagePositionToLengthMap.get(pagePosition);
+        int index = indexOf(pagePosition);
+        if (index < 0) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                    "Page {0} not found in chunk {1}", Long.toHexString(pagePosition), id);
+        }
+        return pageLengths[index];
+    }
+
+    int indexOf(long pagePosition) {
+        return Arrays.binarySearch(pagePositions, 0, pageCount, pagePosition);
+    }
+
+    /**
+     * Add a page that was written to this chunk.
+     *
+     * @param pagePosition the position of the page
+     * @param pageLength the length of the page
+     */
+    void addPage(long pagePosition, int pageLength) {
+        if (pagePositions == null) {
+            pagePositions = new long[16];
+            pageLengths = new int[16];
+        } else if (pageCount == pagePositions.length) {
+            pagePositions = Arrays.copyOf(pagePositions, pageCount * 2);
+            pageLengths = Arrays.copyOf(pageLengths, pageCount * 2);
+        }
+        pagePositions[pageCount] = pagePosition;
+        pageLengths[pageCount] = pageLength;
+        pageCount++;
+        sumOfPageLength += pageLength;
+    }
+
+    /**
+     * Set the positions and lengths of all pages read from the chunk file.
+     * 老版本是按HashMap的顺序写的，所以需要排序。
+     *
+     * @param positions the positions of the pages
+     * @param lengths the lengths of the pages
+     */
+    void setPagePositions(long[] positions, int[] lengths) {
+        boolean sorted = true;
+        for (int i = 1; i < positions.length; i++) {
+            if (positions[i - 1] > positions[i]) {
+                sorted = false;
+                break;
+            }
+        }
+        if (sorted) {
+            pagePositions = positions;
+            pageLengths = lengths;
+            return;
+        }
+        Integer[] indexes = new Integer[positions.length];
+        for (int i = 0; i < indexes.length; i++)
+            indexes[i] = i;
+        Arrays.sort(indexes, (i1, i2) -> Long.compare(positions[i1], positions[i2]));
+        pagePositions = new long[positions.length];
+        pageLengths = new int[lengths.length];
+        for (int i = 0; i < indexes.length; i++) {
+            pagePositions[i] = positions[indexes[i]];
+            pageLengths[i] = lengths[indexes[i]];
+        }
+    }
+
+    boolean isRemovedPage(int index) {
+        int addr = index >>> 6;
+        return removedPages != null && addr < removedPages.length && (removedPages[addr] & (1L << index)) != 0;
+    }
+
+    /**
+     * Mark the page as removed.
+     *
+     * @param pagePosition the position of the page
+     * @return true if the page was not removed before
+     */
+    boolean removePage(long pagePosition) {
+        int index = indexOf(pagePosition);
+        if (index < 0 || isRemovedPage(index))
+            return false;
+        if (removedPages == null)
+            removedPages = new long[(pageCount + 63) >>> 6];
+        removedPages[index >>> 6] |= 1L << index;
+        removedPageCount++;
+        sumOfRemovedPageLength += pageLengths[index];
+        return true;
+    }
+
+    long[] getRemovedPages() {
+        return removedPages;
+    }
+
+    void setRemovedPages(long[] removedPages) {
+        this.removedPages = removedPages;
+        removedPageCount = 0;
+        sumOfRemovedPageLength = 0;
+        for (int i = 0; i < pageCount; i++) {
+            if (isRemovedPage(i)) {
+                removedPageCount++;
+                sumOfRemovedPageLength += pageLengths[i];
+            }
+        }
+    }
+
+    long getSumOfLivePageLength() {
+        return sumOfPageLength - sumOfRemovedPageLength;
+    }
+
+    boolean isUnused() {
+        return removedPageCount >= pageCount;
     }
 
     /**
@@ -75,6 +217,7 @@ public class BTreeChunk {
      * @return the fill rate
      */
     int getFillRate() {
+        long sumOfLivePageLength = getSumOfLivePageLength();
         if (sumOfLivePageLength <= 0) {
             return 0;
         } else if (sumOfLivePageLength == sumOfPageLength) {
@@ -0,0 +1,428 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueByte;
+import org.lealone.db.value.ValueDate;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueShort;
+import org.lealone.storage.ColumnFilter;
+import org.lealone.storage.type.StorageDataType;
+
+/**
+ * column page的轻量级编码，写column page时按这个page里的列值选一种最省空间的编码，
+ * 编码后的数据还可以再做通用的压缩。
+ * <p>
+ * 基数低的列用字典编码，连续相同的值多的列用游程编码，整数和日期用frame-of-reference加bit-packing编码，
+ * 都不合适时按原来的方式一个值一个值的写。
+ *
+ * @author zhh
+ */
+class BTreeColumnEncoding {
+
+    static final int PLAIN = 0;
+    static final int DICTIONARY = 1;
+    static final int RUN_LENGTH = 2;
+    static final int FRAME_OF_REFERENCE = 3;
+
+    // bit-packing时每个值最多占用的bit数，超过了用普通编码更好
+    private static final int MAX_BIT_WIDTH = 56;
+
+    private BTreeColumnEncoding() {
+    }
+
+    /**
+     * Encode the column values if an encoding is smaller than the plain format.
+     *
+     * @param valueType the value type
+     * @param values the values of the leaf page
+     * @param columnIndex the column index
+     * @param buff the buffer, the plain format is already written from start
+     * @param start the start position of the plain format
+     * @return the encoding, if it is not PLAIN the encoding byte and the encoded values
+     *         replace the plain format
+     */
+    static int encode(StorageDataType valueType, Object[] values, int columnIndex, DataBuffer buff, int start) {
+        int rowCount = values.length;
+        int plainLength = buff.position() - start;
+        if (rowCount < 2)
+            return PLAIN;
+        Value[] columns = new Value[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            Value v = valueType.getColumn(values[row], columnIndex);
+            if (v == null || !isEncodable(v))
+                return PLAIN;
+            columns[row] = v;
+        }
+
+        // 先按普通编码的平均长度估算各种编码的大小，只写估算结果最小的那一种
+        int avg = Math.max(1, plainLength / rowCount);
+        HashMap<DictionaryKey, Integer> dictionary = new HashMap<>();
+        int runs = 1;
+        for (int row = 0; row < rowCount; row++) {
+            Value v = columns[row];
+            if (dictionary.size() <= rowCount / 2) {
+                DictionaryKey key = new DictionaryKey(v);
+                if (!dictionary.containsKey(key))
+                    dictionary.put(key, dictionary.size());
+            }
+            if (row > 0 && !isSameValue(v, columns[row - 1]))
+                runs++;
+        }
+        int encoding = PLAIN;
+        long best = plainLength;
+        long rleLength = (long) runs * (avg + 1);
+        if (rleLength < best) {
+            encoding = RUN_LENGTH;
+            best = rleLength;
+        }
+        if (dictionary.size() <= rowCount / 2) {
+            int bitWidth = getBitWidth(dictionary.size() - 1);
+            long dictLength = (long) dictionary.size() * avg + (rowCount * (long) bitWidth + 7) / 8 + 2;
+            if (dictLength < best) {
+                encoding = DICTIONARY;
+                best = dictLength;
+            }
+        }
+        long[] deltas = null;
+        int forBitWidth = 0;
+        long min = 0;
+        int type = columns[0].getType();
+        if (isInteger(type)) {
+            deltas = new long[rowCount];
+            min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int row = 0; row < rowCount; row++) {
+                Value v = columns[row];
+                if (v.getType() != type) {
+                    deltas = null;
+                    break;
+                }
+                long x = toLong(v);
+                deltas[row] = x;
+                if (x < min)
+                    min = x;
+                if (x > max)
+                    max = x;
+            }
+            if (deltas != null && max - min >= 0) { // 差值溢出时不能用
+                forBitWidth = getBitWidth(max - min);
+                long forLength = 12 + (rowCount * (long) forBitWidth + 7) / 8;
+                if (forBitWidth <= MAX_BIT_WIDTH && forLength < best) {
+                    encoding = FRAME_OF_REFERENCE;
+                    best = forLength;
+                }
+            }
+        }
+        if (encoding == PLAIN)
+            return PLAIN;
+
+        // 编码后的数据先写在普通编码的后面，真的更小时再移到前面
+        int encodedStart = buff.position();
+        buff.put((byte) encoding);
+        switch (encoding) {
+        case RUN_LENGTH:
+            writeRunLength(buff, columns, runs);
+            break;
+        case DICTIONARY:
+            writeDictionary(buff, columns, dictionary);
+            break;
+        default:
+            for (int row = 0; row < rowCount; row++) {
+                deltas[row] -= min;
+            }
+            buff.put((byte) type).putVarLong(min).put((byte) forBitWidth);
+            writePacked(buff, deltas, forBitWidth);
+        }
+        int encodedLength = buff.position() - encodedStart;
+        if (encodedLength >= plainLength) {
+            buff.position(encodedStart);
+            return PLAIN;
+        }
+        byte[] bytes = new byte[encodedLength];
+        ByteBuffer b = buff.getBuffer().duplicate();
+        b.position(encodedStart);
+        b.get(bytes);
+        buff.position(start);
+        buff.put(bytes);
+        return encoding;
+    }
+
+    private static boolean isEncodable(Value v) {
+        switch (v.getType()) {
+        case Value.BLOB:
+        case Value.CLOB:
+        case Value.JAVA_OBJECT:
+        case Value.ARRAY:
+        case Value.RESULT_SET:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    // 字典和游程只能合并完全相同的值，Value.equals不够严格，
+    // 比如ValueStringIgnoreCase.equals不区分大小写，ValueString和ValueStringFixed的值相同时也相等
+    private static boolean isSameValue(Value a, Value b) {
+        if (a == b)
+            return true;
+        if (a.getType() != b.getType())
+            return false;
+        if (a.getType() == Value.STRING_IGNORECASE)
+            return a.getString().equals(b.getString());
+        return a.equals(b);
+    }
+
+    private static class DictionaryKey {
+        final Value value;
+
+        DictionaryKey(Value value) {
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof DictionaryKey && isSameValue(value, ((DictionaryKey) obj).value);
+        }
+    }
+
+    private static boolean isInteger(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DATE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static long toLong(Value v) {
+        if (v.getType() == Value.DATE)
+            return ((ValueDate) v).getDateValue();
+        return v.getLong();
+    }
+
+    private static Value fromLong(int type, long x) {
+        switch (type) {
+        case Value.BYTE:
+            return ValueByte.get((byte) x);
+        case Value.SHORT:
+            return ValueShort.get((short) x);
+        case Value.INT:
+            return ValueInt.get((int) x);
+        case Value.LONG:
+            return ValueLong.get(x);
+        case Value.DATE:
+            return ValueDate.fromDateValue(x);
+        default:
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Unknown value type {0}", type);
+        }
+    }
+
+    private static int getBitWidth(long maxValue) {
+        return 64 - Long.numberOfLeadingZeros(maxValue);
+    }
+
+    private static void writeRunLength(DataBuffer buff, Value[] columns, int runs) {
+        buff.putVarInt(runs);
+        int runStart = 0;
+        for (int row = 1; row <= columns.length; row++) {
+            if (row == columns.length || !isSameValue(columns[row], columns[runStart])) {
+                buff.writeValue(columns[runStart]);
+                buff.putVarInt(row - runStart);
+                runStart = row;
+            }
+        }
+    }
+
+    private static void writeDictionary(DataBuffer buff, Value[] columns,
+            HashMap<DictionaryKey, Integer> dictionary) {
+        Value[] entries = new Value[dictionary.size()];
+        for (java.util.Map.Entry<DictionaryKey, Integer> e : dictionary.entrySet()) {
+            entries[e.getValue()] = e.getKey().value;
+        }
+        buff.putVarInt(entries.length);
+        for (Value v : entries) {
+            buff.writeValue(v);
+        }
+        int bitWidth = getBitWidth(entries.length - 1);
+        buff.put((byte) bitWidth);
+        long[] indexes = new long[columns.length];
+        for (int row = 0; row < columns.length; row++) {
+            indexes[row] = dictionary.get(new DictionaryKey(columns[row]));
+        }
+        writePacked(buff, indexes, bitWidth);
+    }
+
+    // 每个值只占bitWidth个bit，从低位开始依次写入字节
+    private static void writePacked(DataBuffer buff, long[] values, int bitWidth) {
+        if (bitWidth == 0)
+            return;
+        long acc = 0;
+        int bits = 0;
+        for (long v : values) {
+            acc |= v << bits;
+            bits += bitWidth;
+            while (bits >= 8) {
+                buff.put((byte) acc);
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0)
+            buff.put((byte) acc);
+    }
+
+    private static long[] readPacked(ByteBuffer buff, int count, int bitWidth) {
+        long[] values = new long[count];
+        if (bitWidth == 0)
+            return values;
+        long mask = (1L << bitWidth) - 1;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < count; i++) {
+            while (bits < bitWidth) {
+                acc |= (buff.get() & 0xFFL) << bits;
+                bits += 8;
+            }
+            values[i] = acc & mask;
+            acc >>>= bitWidth;
+            bits -= bitWidth;
+        }
+        return values;
+    }
+
+    /**
+     * Decode the column values.
+     *
+     * @param buff the buffer
+     * @param encoding the encoding
+     * @param rowCount the number of rows
+     * @return the column values
+     */
+    static Value[] decode(ByteBuffer buff, int encoding, int rowCount) {
+        Value[] columns = new Value[rowCount];
+        switch (encoding) {
+        case RUN_LENGTH: {
+            int runs = DataUtils.readVarInt(buff);
+            int row = 0;
+            for (int i = 0; i < runs; i++) {
+                Value v = DataBuffer.readValue(buff);
+                int len = DataUtils.readVarInt(buff);
+                for (int j = 0; j < len; j++) {
+                    columns[row++] = v;
+                }
+            }
+            break;
+        }
+        case DICTIONARY: {
+            Value[] entries = readDictionary(buff);
+            int bitWidth = buff.get();
+            long[] indexes = readPacked(buff, rowCount, bitWidth);
+            for (int row = 0; row < rowCount; row++) {
+                columns[row] = entries[(int) indexes[row]];
+            }
+            break;
+        }
+        case FRAME_OF_REFERENCE: {
+            int type = buff.get();
+            long min = DataUtils.readVarLong(buff);
+            int bitWidth = buff.get();
+            long[] deltas = readPacked(buff, rowCount, bitWidth);
+            for (int row = 0; row < rowCount; row++) {
+                columns[row] = fromLong(type, min + deltas[row]);
+            }
+            break;
+        }
+        default:
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Unknown encoding {0}",
+                    encoding);
+        }
+        return columns;
+    }
+
+    private static Value[] readDictionary(ByteBuffer buff) {
+        int size = DataUtils.readVarInt(buff);
+        Value[] entries = new Value[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = DataBuffer.readValue(buff);
+        }
+        return entries;
+    }
+
+    /**
+     * Check whether some values of the encoded column may match the filter,
+     * the dictionary or the runs are checked without decoding the rows.
+     *
+     * @param valueType the value type
+     * @param buff the encoded column, it is not changed
+     * @param encoding the encoding
+     * @param filter the column filter
+     * @return false if no value matches the filter
+     */
+    static boolean mayMatch(StorageDataType valueType, ByteBuffer buff, int encoding, ColumnFilter filter) {
+        buff = buff.duplicate();
+        switch (encoding) {
+        case DICTIONARY: {
+            for (Value v : readDictionary(buff)) {
+                if (matches(valueType, v, filter))
+                    return true;
+            }
+            return false;
+        }
+        case RUN_LENGTH: {
+            int runs = DataUtils.readVarInt(buff);
+            for (int i = 0; i < runs; i++) {
+                Value v = DataBuffer.readValue(buff);
+                DataUtils.readVarInt(buff);
+                if (matches(valueType, v, filter))
+                    return true;
+            }
+            return false;
+        }
+        default:
+            return true;
+        }
+    }
+
+    static boolean matches(StorageDataType valueType, Value v, ColumnFilter filter) {
+        if (v == ValueNull.INSTANCE)
+            return filter.isNull;
+        if (filter.isNull)
+            return false;
+        Value min = filter.min, max = filter.max;
+        // 类型不一样时不能确定，当成匹配
+        if (min != null && min != ValueNull.INSTANCE) {
+            if (min.getType() != v.getType())
+                return true;
+            if (valueType.compareColumn(v, min) < 0)
+                return false;
+        }
+        if (max != null && max != ValueNull.INSTANCE) {
+            if (max.getType() != v.getType())
+                return true;
+            if (valueType.compareColumn(v, max) > 0)
+                return false;
+        }
+        return true;
+    }
+}
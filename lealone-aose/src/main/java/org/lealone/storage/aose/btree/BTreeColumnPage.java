@@ -8,6 +8,8 @@ package org.lealone.storage.aose.btree;
 import java.nio.ByteBuffer;
 
 import org.lealone.db.DataBuffer;
+import org.lealone.db.value.Value;
+import org.lealone.storage.ColumnFilter;
 import org.lealone.storage.type.StorageDataType;
 
 class BTreeColumnPage extends BTreePage {
@@ -15,6 +17,8 @@ class BTreeColumnPage extends BTreePage {
     Object[] values; // 每个元素指向一条记录，并不是字段值
     private int columnIndex;
     private ByteBuffer buff;
+    private boolean encoded; // 为true时buff的第一个字节是编码方式
+    private BTreeZoneMap zoneMap;
 
     BTreeColumnPage(BTreeMap<?, ?> map) {
         super(map);
@@ -52,6 +56,7 @@ class BTreeColumnPage extends BTreePage {
         readCheckValue(buff, chunkId, offset, pageLength, disableCheck);
         buff.get(); // page type;
         int compressType = buff.get();
+        encoded = (compressType & PageUtils.PAGE_COLUMN_ENCODED) != 0;
 
         // 解压完之后就结束了，因为还不知道具体的行，所以延迟对列进行反序列化
         this.buff = expandPage(buff, compressType, start, pageLength);
@@ -62,12 +67,43 @@ class BTreeColumnPage extends BTreePage {
         this.values = values;
         this.columnIndex = columnIndex;
         StorageDataType valueType = map.getValueType();
-        for (int row = 0, rowCount = values.length; row < rowCount; row++) {
-            valueType.readColumn(buff, values[row], columnIndex);
+        if (encoded) {
+            int encoding = buff.get();
+            Value[] columns = BTreeColumnEncoding.decode(buff, encoding, values.length);
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                valueType.setColumn(values[row], columnIndex, columns[row]);
+            }
+        } else {
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                valueType.readColumn(buff, values[row], columnIndex);
+            }
         }
         buff = null;
     }
 
+    // 字典编码和游程编码的列不用解码每一行，直接用字典或每一段的值判断有没有满足条件的记录
+    boolean mayMatch(ColumnFilter filter) {
+        ByteBuffer buff = this.buff;
+        if (buff == null) {
+            Object[] values = this.values;
+            if (values == null)
+                return true;
+            // 已经解码过了，直接看每一行的值
+            StorageDataType valueType = map.getValueType();
+            for (Object value : values) {
+                Value v = valueType.getColumn(value, columnIndex);
+                if (v == null || BTreeColumnEncoding.matches(valueType, v, filter))
+                    return true;
+            }
+            return false;
+        }
+        if (!encoded)
+            return true;
+        buff = buff.duplicate();
+        int encoding = buff.get();
+        return BTreeColumnEncoding.mayMatch(map.getValueType(), buff, encoding, filter);
+    }
+
     long write(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
         int start = buff.position();
         int type = PageUtils.PAGE_TYPE_COLUMN;
@@ -84,16 +120,25 @@ class BTreeColumnPage extends BTreePage {
         for (int row = 0, rowCount = values.length; row < rowCount; row++) {
             valueType.writeColumn(buff, values[row], columnIndex);
         }
+        zoneMap = BTreeZoneMap.create(valueType, values, columnIndex);
+        int encoding = BTreeColumnEncoding.encode(valueType, values, columnIndex, buff, compressStart);
+        if (encoding != BTreeColumnEncoding.PLAIN) {
+            compressType = PageUtils.PAGE_COLUMN_ENCODED;
+            buff.getBuffer().put(compressTypePos, (byte) compressType);
+        }
         compressPage(buff, compressStart, compressType, compressTypePos);
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (!replicatePage) {
             updateChunkAndCachePage(chunk, start, pageLength, type);
         }
         return pos;
     }
+
+    // 调用write之后才有
+    BTreeZoneMap getZoneMap() {
+        return zoneMap;
+    }
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.storage.Storage;
+import org.lealone.storage.aose.AOStorage;
+
+/**
+ * 在后台压缩同一个Storage中所有BTreeMap的chunk，保存BTreeMap时不再顺带做压缩，这样检查点的延迟只跟脏页的多少有关。
+ * <p>
+ * 每一轮先删除没有存活page的chunk，然后把所有BTreeMap中fill rate低于minFillRate的chunk放在一起，
+ * 按fill rate从低到高重写，重写的速度受compaction_throughput_in_mb(每秒多少MB)限制，避免跟前台的读写抢占IO。
+ * <p>
+ * 压缩的统计信息通过Storage.getCompactionXxx和INFORMATION_SCHEMA.COMPACTION查看。
+ *
+ * @author zhh
+ */
+public class BTreeCompactionService extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(BTreeCompactionService.class);
+
+    private static final int DEFAULT_THROUGHPUT_IN_MB = 16; // 每秒16M
+    private static final long DEFAULT_LOOP_INTERVAL = 1 * 60 * 1000; // 1分钟
+    // 一个BTreeMap重写了这么多字节后就保存一次，避免新的chunk过大
+    private static final long MAX_BYTES_PER_SAVE = 64 * 1024 * 1024;
+
+    // 每个Storage有自己的压缩服务，使用这个Storage的配置，
+    // 第一个BTreeMap打开时启动，最后一个BTreeMap关闭时停止
+    private static final HashMap<Storage, BTreeCompactionService> instances = new HashMap<>();
+
+    static synchronized BTreeCompactionService register(BTreeStorage btreeStorage) {
+        Storage storage = btreeStorage.getMap().getStorage();
+        BTreeCompactionService service = instances.get(storage);
+        if (service == null) {
+            service = new BTreeCompactionService(((AOStorage) storage).getConfig());
+            instances.put(storage, service);
+            service.start();
+        }
+        service.storages.put(btreeStorage, btreeStorage);
+        return service;
+    }
+
+    /**
+     * Get the compaction service of the storage.
+     * 
+     * @param storage the storage
+     * @return the compaction service, or null if no map of the storage is open
+     */
+    public static synchronized BTreeCompactionService getInstance(Storage storage) {
+        return instances.get(storage);
+    }
+
+    static synchronized void unregister(BTreeStorage btreeStorage) {
+        Storage storage = btreeStorage.getMap().getStorage();
+        BTreeCompactionService service = instances.get(storage);
+        if (service == null)
+            return;
+        service.storages.remove(btreeStorage);
+        if (service.storages.isEmpty()) {
+            instances.remove(storage);
+            service.close();
+        }
+    }
+
+    private final ConcurrentHashMap<BTreeStorage, BTreeStorage> storages = new ConcurrentHashMap<>();
+    private final Semaphore semaphore = new Semaphore(1);
+    private final long loopInterval;
+    private volatile long throughput; // 每秒最多重写多少字节，小于等于0时不限速
+    private volatile boolean isClosed;
+    private int pauseCount; // 大于0时后台不再自动压缩，只执行compactNow请求的压缩
+
+    // compactNow请求的轮次和已经完成的轮次
+    private final Object roundLock = new Object();
+    private long requestedRound;
+    private long finishedRound;
+
+    private final AtomicLong rewrittenBytes = new AtomicLong();
+    private final AtomicLong reclaimedChunks = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    private BTreeCompactionService(Map<String, Object> config) {
+        setName(getClass().getSimpleName());
+        setDaemon(true);
+        throughput = getLongValue(config, "compaction_throughput_in_mb", DEFAULT_THROUGHPUT_IN_MB) * 1024 * 1024;
+        loopInterval = getLongValue(config, "compaction_service_loop_interval", DEFAULT_LOOP_INTERVAL);
+    }
+
+    private static long getLongValue(Map<String, Object> config, String key, long defaultValue) {
+        Object value = config.get(key);
+        return value != null ? Long.parseLong(value.toString()) : defaultValue;
+    }
+
+    private void close() {
+        if (!isClosed) {
+            isClosed = true;
+            semaphore.release();
+            synchronized (roundLock) {
+                roundLock.notifyAll();
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    public void wakeUp() {
+        semaphore.release();
+    }
+
+    /**
+     * Stop compacting automatically until resumeCompaction is called, the rounds requested by compactNow still run.
+     * When this method returns, the running round (if any) has finished.
+     */
+    public synchronized void pauseCompaction() {
+        pauseCount++;
+    }
+
+    public synchronized void resumeCompaction() {
+        if (pauseCount > 0)
+            pauseCount--;
+        if (pauseCount == 0)
+            semaphore.release();
+    }
+
+    /**
+     * Run a compaction round in the background thread and wait until it is finished.
+     * The round starts after this method is called, so it sees all the changes saved before.
+     */
+    public void compactNow() {
+        synchronized (roundLock) {
+            long round = ++requestedRound;
+            semaphore.release();
+            while (finishedRound < round && !isClosed) {
+                try {
+                    roundLock.wait();
+                } catch (InterruptedException e) {
+                    throw new AssertionError();
+                }
+            }
+        }
+    }
+
+    public long getThroughputInMB() {
+        return throughput / 1024 / 1024;
+    }
+
+    public void setThroughputInMB(long mb) {
+        throughput = mb * 1024 * 1024;
+    }
+
+    public long getRewrittenBytes() {
+        return rewrittenBytes.get();
+    }
+
+    public long getReclaimedChunks() {
+        return reclaimedChunks.get();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    @Override
+    public void run() {
+        while (!isClosed) {
+            try {
+                semaphore.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
+                semaphore.drainPermits();
+            } catch (InterruptedException e) {
+                throw new AssertionError();
+            }
+            if (isClosed)
+                break;
+            long round;
+            synchronized (roundLock) {
+                round = requestedRound;
+            }
+            try {
+                compact(round > finishedRound);
+            } catch (Exception e) {
+                logger.error("Failed to compact chunks", e);
+            }
+            synchronized (roundLock) {
+                finishedRound = round;
+                roundLock.notifyAll();
+            }
+        }
+    }
+
+    // 跟pauseCompaction用同一把锁，pauseCompaction返回后不会再开始新的自动压缩，正在进行的压缩也已经结束
+    private synchronized void compact(boolean requested) {
+        if (pauseCount == 0 || requested)
+            compact();
+    }
+
+    /**
+     * Remove unused chunks and re-write old chunks of all btree maps.
+     */
+    public synchronized void compact() {
+        ArrayList<OldChunk> oldChunks = new ArrayList<>();
+        for (BTreeStorage storage : storages.keySet()) {
+            for (BTreeChunk c : storage.removeUnusedChunks()) {
+                reclaimedChunks.incrementAndGet();
+                reclaimedBytes.addAndGet((long) c.blockCount * BTreeStorage.BLOCK_SIZE);
+            }
+            for (BTreeChunk c : storage.getOldChunks()) {
+                oldChunks.add(new OldChunk(storage, c));
+            }
+        }
+        if (oldChunks.isEmpty())
+            return;
+
+        // 所有BTreeMap的chunk一起按fill rate从低到高排序，fill rate相同时优先重写存活page少的
+        Collections.sort(oldChunks, new Comparator<OldChunk>() {
+            @Override
+            public int compare(OldChunk o1, OldChunk o2) {
+                long comp = o1.chunk.getFillRate() - o2.chunk.getFillRate();
+                if (comp == 0) {
+                    comp = o1.chunk.getSumOfLivePageLength() - o2.chunk.getSumOfLivePageLength();
+                }
+                return Long.signum(comp);
+            }
+        });
+
+        HashMap<BTreeStorage, Long> unsavedBytes = new HashMap<>();
+        for (OldChunk old : oldChunks) {
+            long bytes = old.storage.rewrite(old.chunk);
+            if (bytes <= 0)
+                continue;
+            rewrittenBytes.addAndGet(bytes);
+            Long b = unsavedBytes.get(old.storage);
+            b = b == null ? bytes : b + bytes;
+            if (b > MAX_BYTES_PER_SAVE) {
+                save(old.storage);
+                unsavedBytes.remove(old.storage);
+            } else {
+                unsavedBytes.put(old.storage, b);
+            }
+            throttle(bytes);
+        }
+        // 重写过的page会保存到新的chunk中，旧的chunk在下一轮被删除
+        for (BTreeStorage storage : unsavedBytes.keySet()) {
+            save(storage);
+        }
+    }
+
+    private static void save(BTreeStorage storage) {
+        if (!storage.isClosed())
+            storage.getMap().save();
+    }
+
+    private void throttle(long bytes) {
+        long throughput = this.throughput;
+        if (throughput <= 0)
+            return;
+        long millis = bytes * 1000 / throughput;
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private static class OldChunk {
+        final BTreeStorage storage;
+        final BTreeChunk chunk;
+
+        OldChunk(BTreeStorage storage, BTreeChunk chunk) {
+            this.storage = storage;
+            this.chunk = chunk;
+        }
+    }
+}
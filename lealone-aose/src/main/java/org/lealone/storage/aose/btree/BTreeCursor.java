@@ -26,6 +26,10 @@ class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
     private K key;
     private V value;
 
+    // 已经预读到了哪个node page的哪个child page
+    private BTreePage readAheadPage;
+    private int readAheadIndex;
+
     BTreeCursor(BTreeMap<K, ?> map, BTreePage root, IterationParameters<K> parameters) {
         this.map = map;
         this.parameters = parameters;
@@ -54,6 +58,8 @@ class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
                 return false;
             }
             if (pos.index < map.getChildPageCount(pos.page)) {
+                // 读完一个leaf page接着读它的兄弟page，说明是顺序扫描，预读后面的兄弟page
+                readAhead(pos);
                 min(pos.page.getChildPage(pos.index++), null);
             }
         }
@@ -76,6 +82,27 @@ class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
         return key;
     }
 
+    private void readAhead(CursorPos pos) {
+        if (!(pos.page instanceof BTreeNodePage))
+            return;
+        BTreeStorage storage = map.getBTreeStorage();
+        int window = storage.getReadAheadWindow();
+        if (window <= 0)
+            return;
+        BTreeNodePage p = (BTreeNodePage) pos.page;
+        int start = pos.index + 1;
+        if (readAheadPage == p && readAheadIndex > start)
+            start = readAheadIndex;
+        int end = Math.min(pos.index + 1 + window, map.getChildPageCount(p));
+        for (int i = start; i < end; i++) {
+            PageReference ref = p.getChildPageReference(i);
+            if (ref.page == null && ref.pos > 0 && PageUtils.isLeafPage(ref.pos))
+                storage.readAhead(ref.pos);
+        }
+        readAheadPage = p;
+        readAheadIndex = end;
+    }
+
     /**
      * Fetch the next entry that is equal or larger than the given key, starting
      * from the given page. This method retains the stack.
@@ -91,6 +118,10 @@ class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
                 if (x < 0) {
                     x = -x - 1;
                 }
+                // 根据zone map可以确定整个leaf page都没有满足条件的记录，直接跳过
+                if (parameters.columnFilters != null && p.canSkip(parameters)) {
+                    x = p.getKeyCount();
+                }
                 pos = new CursorPos(p, x, pos);
                 break;
             }
@@ -13,6 +13,8 @@ import org.lealone.common.util.DataUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.db.RunMode;
 import org.lealone.net.NetNode;
+import org.lealone.storage.ColumnFilter;
+import org.lealone.storage.IterationParameters;
 import org.lealone.storage.LeafPageMovePlan;
 import org.lealone.storage.PageOperationHandler;
 import org.lealone.storage.type.StorageDataType;
@@ -25,10 +27,13 @@ public class BTreeLeafPage extends BTreeLocalPage {
     private LeafPageMovePlan leafPageMovePlan;
     private ColumnPageReference[] columnPages;
     private volatile long totalCount;
+    private BTreeBloomFilter bloomFilter;
 
     private static class ColumnPageReference {
         BTreeColumnPage page;
+        BTreeColumnPage unparsedPage; // canSkip时读进来但还没有解析的page
         long pos;
+        BTreeZoneMap zoneMap; // 老版本写的page没有zone map
 
         ColumnPageReference(long pos) {
             this.pos = pos;
@@ -105,14 +110,72 @@ public class BTreeLeafPage extends BTreeLocalPage {
 
     @Override
     public Object getValue(int index, boolean allColumns) {
-        if (columnPages != null && allColumns) {
+        if (allColumns) {
+            readAllColumnPages();
+        }
+        return values[index];
+    }
+
+    private void readAllColumnPages() {
+        if (columnPages != null) {
             for (int columnIndex = 0, len = columnPages.length; columnIndex < len; columnIndex++) {
                 if (columnPages[columnIndex].page == null) {
                     readColumnPage(columnIndex);
                 }
             }
         }
-        return values[index];
+    }
+
+    @Override
+    boolean canSkip(IterationParameters<?> parameters) {
+        // 修改过的page还没有重新生成zone map
+        if (columnPages == null || pos == 0)
+            return false;
+        ColumnFilter[] filters = parameters.columnFilters;
+        StorageDataType valueType = map.getValueType();
+        boolean skip = false;
+        for (ColumnFilter filter : filters) {
+            int columnIndex = filter.columnIndex;
+            if (columnIndex < 0 || columnIndex >= columnPages.length)
+                continue;
+            BTreeZoneMap zoneMap = columnPages[columnIndex].zoneMap;
+            if (zoneMap != null && !zoneMap.mayMatch(valueType, filter)) {
+                skip = true;
+                break;
+            }
+        }
+        if (!skip) {
+            // zone map只有范围，再看看列值。没有读进来的column page只有在扫描本来就要读这一列时才读，
+            // 读进来后先不解析，字典编码和游程编码的列直接用字典或每一段的值判断，之后读这一列时也不用再读一次
+            for (ColumnFilter filter : filters) {
+                int columnIndex = filter.columnIndex;
+                if (columnIndex < 0 || columnIndex >= columnPages.length)
+                    continue;
+                ColumnPageReference ref = columnPages[columnIndex];
+                BTreeColumnPage page = ref.page;
+                if (page == null)
+                    page = ref.unparsedPage;
+                if (page == null) {
+                    if (!isColumnRead(parameters, columnIndex))
+                        continue;
+                    page = (BTreeColumnPage) map.btreeStorage.readPage(ref.pos);
+                    ref.unparsedPage = page;
+                }
+                if (!page.mayMatch(filter)) {
+                    skip = true;
+                    break;
+                }
+            }
+        }
+        if (!skip)
+            return false;
+        // zone map是按写page时的值生成的，有未提交的记录时其他事务看到的值可能不在zone map中
+        for (Object value : values) {
+            if (!valueType.isCommitted(value))
+                return false;
+        }
+        map.btreeStorage.zoneMapSkippedPages.incrementAndGet();
+        return true;
     }
 
     @Override
@@ -129,12 +192,9 @@ public class BTreeLeafPage extends BTreeLocalPage {
 
     @Override
     BTreeLeafPage split(int at) { // 小于split key的放在左边，大于等于split key放在右边
-        int a = at, b = keys.length - a;
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a, bKeys, 0, b);
-        keys = aKeys;
+        int a = at, b = getKeyCount() - a;
+        BTreeLeafPage newPage = new BTreeLeafPage(map);
+        splitKeysTo(newPage, a, a);
 
         Object[] aValues = new Object[a];
         Object[] bValues = new Object[b];
@@ -143,7 +203,9 @@ public class BTreeLeafPage extends BTreeLocalPage {
         values = aValues;
 
         totalCount = a;
-        BTreeLeafPage newPage = create(map, bKeys, bValues, bKeys.length, 0);
+        newPage.values = bValues;
+        newPage.totalCount = b;
+        newPage.recalculateMemory();
         newPage.replicationHostIds = replicationHostIds;
         recalculateMemory();
         return newPage;
@@ -153,7 +215,7 @@ public class BTreeLeafPage extends BTreeLocalPage {
     @Deprecated
     public long getTotalCount() {
         if (ASSERT) {
-            long check = keys.length;
+            long check = getKeyCount();
             if (check != totalCount) {
                 throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Expected: {0} got: {1}", check,
                         totalCount);
@@ -166,32 +228,28 @@ public class BTreeLeafPage extends BTreeLocalPage {
     // 给数组预分配额外的空间能提升的性能并不大，已经测过
     @Override
     public void insertLeaf(int index, Object key, Object value) {
-        int len = keys.length + 1;
-        Object[] newKeys = new Object[len];
-        DataUtils.copyWithGap(keys, newKeys, len - 1, index);
-        keys = newKeys;
+        int len = getKeyCount() + 1;
+        insertKey(index, key);
         Object[] newValues = new Object[len];
         DataUtils.copyWithGap(values, newValues, len - 1, index);
         values = newValues;
-        keys[index] = key;
         values[index] = value;
         totalCount++;
         map.incrementSize();// 累加全局计数器
-        addMemory(map.getKeyType().getMemory(key) + map.getValueType().getMemory(value));
+        addMemory(getKeyMemory(key) + map.getValueType().getMemory(value));
     }
 
     @Override
     public BTreePage copyLeaf(int index, Object key, Object value) {
-        int len = keys.length + 1;
-        Object[] newKeys = new Object[len];
-        DataUtils.copyWithGap(keys, newKeys, len - 1, index);
+        int len = getKeyCount() + 1;
         Object[] newValues = new Object[len];
         DataUtils.copyWithGap(values, newValues, len - 1, index);
-        newKeys[index] = key;
         newValues[index] = value;
         map.incrementSize();// 累加全局计数器
-        addMemory(map.getKeyType().getMemory(key) + map.getValueType().getMemory(value));
-        BTreeLeafPage newPage = create(map, newKeys, newValues, totalCount + 1, getMemory(), handler);
+        addMemory(getKeyMemory(key) + map.getValueType().getMemory(value));
+        BTreeLeafPage newPage = create(map, null, newValues, totalCount + 1, getMemory(), handler);
+        copyKeysTo(newPage);
+        newPage.insertKey(index, key);
         newPage.cachedCompare = cachedCompare;
         newPage.replicationHostIds = replicationHostIds;
         newPage.leafPageMovePlan = leafPageMovePlan;
@@ -202,14 +260,9 @@ public class BTreeLeafPage extends BTreeLocalPage {
         return newPage;
     }
 
-    @Override
-    public int getKeyCount() {
-        return keys.length;
-    }
-
     @Override
     public void remove(int index) {
-        int keyLength = keys.length;
+        int keyLength = getKeyCount();
         super.remove(index);
         Object old = values[index];
         addMemory(-map.getValueType().getMemory(old));
@@ -241,11 +294,10 @@ public class BTreeLeafPage extends BTreeLocalPage {
         readCheckValue(buff, chunkId, offset, pageLength, disableCheck);
 
         int keyLength = DataUtils.readVarInt(buff);
-        keys = new Object[keyLength];
         int type = buff.get();
         buff = expandPage(buff, type, start, pageLength);
 
-        map.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, type, keyLength);
         values = new Object[keyLength];
         map.getValueType().read(buff, values, keyLength);
         totalCount = keyLength;
@@ -264,15 +316,20 @@ public class BTreeLeafPage extends BTreeLocalPage {
         int keyLength = DataUtils.readVarInt(buff);
         int columnCount = DataUtils.readVarInt(buff);
         columnPages = new ColumnPageReference[columnCount];
-        keys = new Object[keyLength];
         int type = buff.get();
         for (int i = 0; i < columnCount; i++) {
             long pos = buff.getLong();
             columnPages[i] = new ColumnPageReference(pos);
         }
+        if ((type & PageUtils.PAGE_ZONE_MAPS) != 0) {
+            for (int i = 0; i < columnCount; i++) {
+                if (buff.get() == 1)
+                    columnPages[i].zoneMap = BTreeZoneMap.read(buff, keyLength);
+            }
+        }
         buff = expandPage(buff, type, start, pageLength);
 
-        map.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, type, keyLength);
         values = new Object[keyLength];
         StorageDataType valueType = map.getValueType();
         for (int row = 0; row < keyLength; row++) {
@@ -284,8 +341,24 @@ public class BTreeLeafPage extends BTreeLocalPage {
         recalculateMemory();
     }
 
+    private static boolean isColumnRead(IterationParameters<?> parameters, int columnIndex) {
+        if (parameters.allColumns)
+            return true;
+        if (parameters.columnIndexes != null) {
+            for (int i : parameters.columnIndexes) {
+                if (i == columnIndex)
+                    return true;
+            }
+        }
+        return false;
+    }
+
     private void readColumnPage(int columnIndex) {
-        BTreeColumnPage page = (BTreeColumnPage) map.btreeStorage.readPage(columnPages[columnIndex].pos);
+        BTreeColumnPage page = columnPages[columnIndex].unparsedPage;
+        if (page != null)
+            columnPages[columnIndex].unparsedPage = null;
+        else
+            page = (BTreeColumnPage) map.btreeStorage.readPage(columnPages[columnIndex].pos);
         if (page.values == null) {
             columnPages[columnIndex].page = page;
             page.readColumn(values, columnIndex);
@@ -327,21 +400,34 @@ public class BTreeLeafPage extends BTreeLocalPage {
         if (!remote) {
             StorageDataType kt = map.getKeyType();
             StorageDataType vt = map.getValueType();
-            buff.putInt(keys.length);
-            for (int i = 0, len = keys.length; i < len; i++) {
-                kt.write(buff, keys[i]);
+            int len = getKeyCount();
+            buff.putInt(len);
+            for (int i = 0; i < len; i++) {
+                kt.write(buff, getKey(i));
                 vt.write(buff, values[i]);
             }
         }
     }
 
+    @Override
+    BTreeBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    @Override
+    void setBloomFilter(BTreeBloomFilter bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
     @Override
     void writeUnsavedRecursive(BTreeChunk chunk, DataBuffer buff) {
         if (pos != 0) {
             // already stored before
             return;
         }
+        bloomFilter = map.getBTreeStorage().createBloomFilter(getKeys());
         write(chunk, buff, false);
+        map.getBTreeStorage().writeChunkBody(chunk, buff, false);
     }
 
     private void write(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
@@ -357,7 +443,7 @@ public class BTreeLeafPage extends BTreeLocalPage {
 
     private void writeRowStorage(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
         int start = buff.position();
-        int keyLength = keys.length;
+        int keyLength = getKeyCount();
         int type = PageUtils.PAGE_TYPE_LEAF;
         buff.putInt(0); // 回填pageLength
         buff.put((byte) map.pageStorageMode.ordinal());
@@ -366,19 +452,17 @@ public class BTreeLeafPage extends BTreeLocalPage {
         int typePos = buff.position();
         buff.put((byte) type);
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, keyLength);
+        int pageType = writeKeys(buff, type, typePos);
         map.getValueType().write(buff, values, keyLength);
         writeReplicationHostIds(replicationHostIds, buff);
 
-        compressPage(buff, compressStart, type, typePos);
+        compressPage(buff, compressStart, pageType, typePos);
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (replicatePage) {
-            chunk.pagePositionToLengthMap.put(0L, pageLength);
+            chunk.addPage(0L, pageLength);
         } else {
             updateChunkAndCachePage(chunk, start, pageLength, type);
             removeIfInMemory();
@@ -386,62 +470,79 @@ public class BTreeLeafPage extends BTreeLocalPage {
     }
 
     private void writeColumnStorage(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
+        StorageDataType valueType = map.getValueType();
+        int columnCount = valueType.getColumnCount();
+        // 先写column page，写的时候会生成zone map，这样leaf page里就能直接写入column page的位置和zone map，
+        // 复制page时接收方只从buff的开头读leaf page，所以column page还是写在leaf page后面
+        long[] posArray = new long[columnCount];
+        BTreeZoneMap[] zoneMaps = new BTreeZoneMap[columnCount];
+        if (!replicatePage)
+            writeColumnPages(chunk, buff, false, posArray, zoneMaps);
+
         int start = buff.position();
-        int keyLength = keys.length;
+        int keyLength = getKeyCount();
         int type = PageUtils.PAGE_TYPE_LEAF;
         buff.putInt(0); // 回填pageLength
         buff.put((byte) map.pageStorageMode.ordinal());
-        StorageDataType valueType = map.getValueType();
-        int columnCount = valueType.getColumnCount();
         int checkPos = buff.position();
         buff.putShort((short) 0).putVarInt(keyLength).putVarInt(columnCount);
         int typePos = buff.position();
-        buff.put((byte) type);
-        int columnPageStartPos = buff.position();
+        buff.put((byte) (type | PageUtils.PAGE_ZONE_MAPS));
         for (int i = 0; i < columnCount; i++) {
-            buff.putLong(0);
+            buff.putLong(posArray[i]);
+        }
+        for (int i = 0; i < columnCount; i++) {
+            BTreeZoneMap zoneMap = zoneMaps[i];
+            if (zoneMap == null) {
+                buff.put((byte) 0);
+            } else {
+                buff.put((byte) 1);
+                zoneMap.write(buff);
+            }
         }
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, keyLength);
+        int pageType = writeKeys(buff, type | PageUtils.PAGE_ZONE_MAPS, typePos);
         for (int row = 0; row < keyLength; row++) {
             valueType.writeMeta(buff, values[row]);
         }
         writeReplicationHostIds(replicationHostIds, buff);
-        compressPage(buff, compressStart, type, typePos);
+        compressPage(buff, compressStart, pageType, typePos);
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
-
-        long[] posArray = new long[columnCount];
-        for (int col = 0; col < columnCount; col++) {
-            BTreeColumnPage page = new BTreeColumnPage(map, values, col);
-            posArray[col] = page.write(chunk, buff, replicatePage);
-        }
-        int oldPos = buff.position();
-        buff.position(columnPageStartPos);
-        for (int i = 0; i < columnCount; i++) {
-            buff.putLong(posArray[i]);
-        }
-        buff.position(oldPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (replicatePage) {
-            chunk.pagePositionToLengthMap.put(0L, pageLength);
+            writeColumnPages(chunk, buff, true, posArray, zoneMaps);
+            chunk.addPage(0L, pageLength);
         } else {
             updateChunkAndCachePage(chunk, start, pageLength, type);
             removeIfInMemory();
         }
     }
 
+    private void writeColumnPages(BTreeChunk chunk, DataBuffer buff, boolean replicatePage, long[] posArray,
+            BTreeZoneMap[] zoneMaps) {
+        for (int col = 0; col < posArray.length; col++) {
+            BTreeColumnPage page = new BTreeColumnPage(map, values, col);
+            posArray[col] = page.write(chunk, buff, replicatePage);
+            zoneMaps[col] = page.getZoneMap();
+        }
+    }
+
     @Override
     protected void recalculateMemory() {
         int mem = recalculateKeysMemory();
         StorageDataType valueType = map.getValueType();
-        for (int i = 0; i < keys.length; i++) {
+        for (int i = 0; i < values.length; i++) {
             mem += valueType.getMemory(values[i]);
         }
+        if (columnPages != null) {
+            for (ColumnPageReference ref : columnPages) {
+                if (ref.zoneMap != null)
+                    mem += ref.zoneMap.getMemory();
+            }
+        }
         addMemory(mem - memory);
     }
 
@@ -451,7 +552,8 @@ public class BTreeLeafPage extends BTreeLocalPage {
     }
 
     private BTreeLeafPage copy(boolean removePage) {
-        BTreeLeafPage newPage = create(map, keys, values, totalCount, getMemory());
+        BTreeLeafPage newPage = create(map, null, values, totalCount, getMemory());
+        copyKeysTo(newPage);
         newPage.cachedCompare = cachedCompare;
         newPage.replicationHostIds = replicationHostIds;
         newPage.leafPageMovePlan = leafPageMovePlan;
@@ -485,7 +587,7 @@ public class BTreeLeafPage extends BTreeLocalPage {
             PageOperationHandler handler) {
         BTreeLeafPage p = new BTreeLeafPage(map, handler);
         // the position is 0
-        p.keys = keys;
+        p.setKeys(keys);
         p.values = values;
         p.totalCount = totalCount;
         if (memory == 0) {
@@ -510,18 +612,18 @@ public class BTreeLeafPage extends BTreeLocalPage {
         int start = buff.position();
         buff.putInt(0); // 回填pageLength
         p.write(chunk, buff, true);
-        int pageLength = chunk.pagePositionToLengthMap.get(0L);
+        int pageLength = chunk.getPageLength(0L);
         buff.putInt(start, pageLength);
     }
 
     @Override
     protected void toString(StringBuilder buff) {
-        for (int i = 0, len = keys.length; i <= len; i++) {
+        for (int i = 0, len = getKeyCount(); i <= len; i++) {
             if (i > 0) {
                 buff.append(" ");
             }
             if (i < len) {
-                buff.append(keys[i]);
+                buff.append(getKey(i));
                 if (values != null) {
                     buff.append(':');
                     buff.append(values[i]);
@@ -532,8 +634,12 @@ public class BTreeLeafPage extends BTreeLocalPage {
 
     @Override
     protected void getPrettyPageInfoRecursive(StringBuilder buff, String indent, PrettyPageInfo info) {
+        // 列存储的page要读出所有的列才能打印完整的记录
+        if (info.readOffLinePage) {
+            readAllColumnPages();
+        }
         buff.append(indent).append("values: ");
-        for (int i = 0, len = keys.length; i < len; i++) {
+        for (int i = 0, len = getKeyCount(); i < len; i++) {
             if (i > 0)
                 buff.append(", ");
             buff.append(values[i]);
@@ -5,7 +5,11 @@
  */
 package org.lealone.storage.aose.btree;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
 import org.lealone.storage.PageOperationHandler;
 import org.lealone.storage.type.StorageDataType;
 
@@ -28,12 +32,15 @@ public abstract class BTreeLocalPage extends BTreePage {
     protected int memory;
 
     /**
-     * The keys.
+     * The keys, null if the key type is a long key type.
      * <p>
      * The array might be larger than needed, to avoid frequent re-sizing.
      */
     protected Object[] keys;
 
+    // key类型是long key类型时，key直接保存在long数组中，不再保存key对象，此时keys为null
+    protected long[] longKeys;
+
     /**
      * Whether the page is an in-memory (not stored, or not yet stored) page,
      * and it is removed. This is to keep track of pages that concurrently
@@ -50,9 +57,86 @@ public abstract class BTreeLocalPage extends BTreePage {
         super(map, handler);
     }
 
+    // long数组中的key每次调用都会生成一个新的数组
     @Override
     public Object[] getKeys() {
-        return keys;
+        long[] lk = longKeys;
+        if (lk == null)
+            return keys;
+        StorageDataType keyType = map.getKeyType();
+        Object[] k = new Object[lk.length];
+        for (int i = 0; i < lk.length; i++) {
+            k[i] = keyType.createLongKey(lk[i]);
+        }
+        return k;
+    }
+
+    // 按map的key类型选择key的保存方式，keys为null时由调用者自己设置
+    void setKeys(Object[] keys) {
+        if (keys != null && map.longKeyType) {
+            StorageDataType keyType = map.getKeyType();
+            long[] lk = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                lk[i] = getLongKey(keyType, keys[i]);
+            }
+            this.keys = null;
+            this.longKeys = lk;
+        } else {
+            this.keys = keys;
+            this.longKeys = null;
+        }
+    }
+
+    private static long getLongKey(StorageDataType keyType, Object key) {
+        if (!keyType.isLongKey(key))
+            throw DataUtils.newIllegalArgumentException("Not a long key: {0}", key);
+        return keyType.getLongKey(key);
+    }
+
+    // 修改key时总是会复制数组，所以copy出来的page可以跟当前page共用key数组
+    void copyKeysTo(BTreeLocalPage p) {
+        p.keys = keys;
+        p.longKeys = longKeys;
+    }
+
+    // 当前page只留下[0, at)的key，[from, keyCount)的key放到另一个page中
+    void splitKeysTo(BTreeLocalPage p, int at, int from) {
+        if (longKeys != null) {
+            long[] k = longKeys;
+            p.longKeys = Arrays.copyOfRange(k, from, k.length);
+            longKeys = Arrays.copyOf(k, at);
+        } else {
+            Object[] k = keys;
+            Object[] bKeys = new Object[k.length - from];
+            Object[] aKeys = new Object[at];
+            System.arraycopy(k, from, bKeys, 0, bKeys.length);
+            System.arraycopy(k, 0, aKeys, 0, at);
+            p.keys = bKeys;
+            keys = aKeys;
+        }
+    }
+
+    // 生成新的key数组，不修改原来的数组
+    void insertKey(int index, Object key) {
+        if (longKeys != null) {
+            long[] k = longKeys;
+            long[] newKeys = new long[k.length + 1];
+            System.arraycopy(k, 0, newKeys, 0, index);
+            System.arraycopy(k, index, newKeys, index + 1, k.length - index);
+            newKeys[index] = getLongKey(map.getKeyType(), key);
+            longKeys = newKeys;
+        } else {
+            Object[] k = keys;
+            Object[] newKeys = new Object[k.length + 1];
+            DataUtils.copyWithGap(k, newKeys, k.length, index);
+            newKeys[index] = key;
+            keys = newKeys;
+        }
+    }
+
+    // long数组中的每个key只占8个字节
+    int getKeyMemory(Object key) {
+        return longKeys != null ? 8 : map.getKeyType().getMemory(key);
     }
 
     /**
@@ -63,6 +147,9 @@ public abstract class BTreeLocalPage extends BTreePage {
     */
     @Override
     public Object getKey(int index) {
+        long[] lk = longKeys;
+        if (lk != null)
+            return map.getKeyType().createLongKey(lk[index]);
         return keys[index];
     }
 
@@ -73,15 +160,17 @@ public abstract class BTreeLocalPage extends BTreePage {
      */
     @Override
     public int getKeyCount() {
-        return keys.length;
+        long[] lk = longKeys;
+        return lk != null ? lk.length : keys.length;
     }
 
     @Override
     Object getLastKey() {
-        if (keys == null || keys.length == 0)
+        int keyCount = longKeys != null ? longKeys.length : keys == null ? 0 : keys.length;
+        if (keyCount == 0)
             return null;
         else
-            return keys[keys.length - 1];
+            return getKey(keyCount - 1);
     }
 
     /**
@@ -97,6 +186,14 @@ public abstract class BTreeLocalPage extends BTreePage {
      */
     @Override
     public int binarySearch(Object key) {
+        StorageDataType keyType = map.getKeyType();
+        long[] lk = longKeys;
+        if (lk != null) {
+            if (keyType.isLongKey(key))
+                return binarySearch(keyType.getLongKey(key), lk);
+            else
+                return binarySearch(keyType, key, lk);
+        }
         int low = 0, high = keys.length - 1;
         // the cached index minus one, so that
         // for the first time (when cachedCompare is 0),
@@ -106,7 +203,6 @@ public abstract class BTreeLocalPage extends BTreePage {
             x = high >>> 1;
         }
         Object[] k = keys;
-        StorageDataType keyType = map.getKeyType();
         while (low <= high) {
             int compare = keyType.compare(key, k[x]);
             if (compare > 0) {
@@ -138,9 +234,49 @@ public abstract class BTreeLocalPage extends BTreePage {
         // return -(low + 1);
     }
 
+    // 跟binarySearch(Object)一样，只是直接比较long，不再调用StorageDataType.compare
+    private int binarySearch(long key, long[] k) {
+        int low = 0, high = k.length - 1;
+        int x = cachedCompare - 1;
+        if (x < 0 || x > high) {
+            x = high >>> 1;
+        }
+        while (low <= high) {
+            long v = k[x];
+            if (key > v) {
+                low = x + 1;
+            } else if (key < v) {
+                high = x - 1;
+            } else {
+                cachedCompare = x + 1;
+                return x;
+            }
+            x = (low + high) >>> 1;
+        }
+        cachedCompare = low;
+        return -(low + 1);
+    }
+
+    // 查找的key不是long key时(比如用null查找第一个key)，只能创建出key对象再用StorageDataType.compare比较
+    private int binarySearch(StorageDataType keyType, Object key, long[] k) {
+        int low = 0, high = k.length - 1;
+        while (low <= high) {
+            int x = (low + high) >>> 1;
+            int compare = keyType.compare(key, keyType.createLongKey(k[x]));
+            if (compare > 0) {
+                low = x + 1;
+            } else if (compare < 0) {
+                high = x - 1;
+            } else {
+                return x;
+            }
+        }
+        return -(low + 1);
+    }
+
     @Override
     boolean needSplit() {
-        return memory > map.btreeStorage.getPageSplitSize() && keys.length > 1;
+        return memory > map.btreeStorage.getPageSplitSize() && getKeyCount() > 1;
     }
 
     /**
@@ -151,6 +287,12 @@ public abstract class BTreeLocalPage extends BTreePage {
      */
     @Override
     public void setKey(int index, Object key) {
+        if (longKeys != null) {
+            long[] newKeys = longKeys.clone();
+            newKeys[index] = getLongKey(map.getKeyType(), key);
+            longKeys = newKeys;
+            return;
+        }
         // this is slightly slower:
         // keys = Arrays.copyOf(keys, keys.length);
         keys = keys.clone();
@@ -166,6 +308,17 @@ public abstract class BTreeLocalPage extends BTreePage {
 
     @Override
     public void remove(int index) {
+        if (longKeys != null) {
+            long[] k = longKeys;
+            int keyLength = k.length;
+            int keyIndex = index >= keyLength ? index - 1 : index;
+            addMemory(-8);
+            long[] newKeys = new long[keyLength - 1];
+            System.arraycopy(k, 0, newKeys, 0, keyIndex);
+            System.arraycopy(k, keyIndex + 1, newKeys, keyIndex, keyLength - keyIndex - 1);
+            longKeys = newKeys;
+            return;
+        }
         int keyLength = keys.length;
         int keyIndex = index >= keyLength ? index - 1 : index;
         Object old = keys[keyIndex];
@@ -177,8 +330,41 @@ public abstract class BTreeLocalPage extends BTreePage {
 
     protected abstract void recalculateMemory();
 
+    /**
+     * Write the keys, in a compact form if the key type supports it.
+     *
+     * @param buff the target buffer
+     * @param type the page type
+     * @param typePos the position of the page type in the buffer
+     * @return the page type, PAGE_COMPACT_KEYS is set if the keys are written in a compact form
+     */
+    int writeKeys(DataBuffer buff, int type, int typePos) {
+        // 保存的格式跟key类型无关，long数组中的key也要先转成key对象
+        Object[] keys = getKeys();
+        int keyLength = keys.length;
+        StorageDataType keyType = map.getKeyType();
+        if (keyLength > 1 && keyType.writeCompactKeys(buff, keys, keyLength)) {
+            type |= PageUtils.PAGE_COMPACT_KEYS;
+            buff.putByte(typePos, (byte) type);
+        } else {
+            keyType.write(buff, keys, keyLength);
+        }
+        return type;
+    }
+
+    void readKeys(ByteBuffer buff, int type, int keyLength) {
+        Object[] keys = new Object[keyLength];
+        if ((type & PageUtils.PAGE_COMPACT_KEYS) != 0)
+            map.getKeyType().readCompactKeys(buff, keys, keyLength);
+        else
+            map.getKeyType().read(buff, keys, keyLength);
+        setKeys(keys);
+    }
+
     protected int recalculateKeysMemory() {
         int mem = PageUtils.PAGE_MEMORY;
+        if (longKeys != null)
+            return mem + 8 * longKeys.length;
         StorageDataType keyType = map.getKeyType();
         for (int i = 0, len = keys.length; i < len; i++) {
             mem += keyType.getMemory(keys[i]);
@@ -299,14 +485,15 @@ public abstract class BTreeLocalPage extends BTreePage {
         buff.append(indent).append("chunkId: ").append(PageUtils.getPageChunkId(pos)).append('\n');
         // buff.append(indent).append("totalCount: ").append(getTotalCount()).append('\n');
         buff.append(indent).append("memory: ").append(memory).append('\n');
-        buff.append(indent).append("keyLength: ").append(keys.length).append('\n');
+        int keyLength = getKeyCount();
+        buff.append(indent).append("keyLength: ").append(keyLength).append('\n');
 
-        if (keys.length > 0) {
+        if (keyLength > 0) {
             buff.append(indent).append("keys: ");
-            for (int i = 0, len = keys.length; i < len; i++) {
+            for (int i = 0; i < keyLength; i++) {
                 if (i > 0)
                     buff.append(", ");
-                buff.append(keys[i]);
+                buff.append(getKey(i));
             }
             buff.append('\n');
             getPrettyPageInfoRecursive(buff, indent, info);
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -72,6 +73,13 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     // 每个btree固定一个处理器用于处理node page的所有状态更新操作
     protected final PageOperationHandler nodePageOperationHandler;
     protected PageStorageMode pageStorageMode = PageStorageMode.ROW_STORAGE;
+    // key类型的所有key都是long key时，page直接用long数组保存key
+    final boolean longKeyType;
+    // 大于1时append的每个线程一次从maxKey中预留一段连续的key，不同线程append的记录会落到不同的leaf page中，
+    // 由不同的PageOperationHandler并行处理，不会都挤在最右边那个leaf page的处理器队列中。
+    // 预留的key没用完就会留下空洞，所以只适合不关心key是否连续的场景，并且不能再用put写入同一段范围内的long类型key
+    private final int appendKeyBlockSize;
+    private volatile ThreadLocal<long[]> appendKeyBlocks; // 每个线程预留的key范围[next, end)
 
     // btree的root page，最开始是一个leaf page，随时都会指向新的page
     protected volatile BTreePage root;
@@ -84,6 +92,7 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
             AOStorage aoStorage) {
         super(name, keyType, valueType, aoStorage);
         DataUtils.checkNotNull(config, "config");
+        longKeyType = this.keyType.isLongKeyType();
 
         this.readOnly = config.containsKey("readOnly");
         this.config = config;
@@ -93,6 +102,10 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         if (mode != null) {
             pageStorageMode = PageStorageMode.valueOf(mode.toString());
         }
+        Object blockSize = config.get("appendKeyBlockSize");
+        appendKeyBlockSize = blockSize == null ? 0 : Integer.parseInt(blockSize.toString());
+        if (appendKeyBlockSize > 1)
+            appendKeyBlocks = ThreadLocal.withInitial(() -> new long[2]);
         if (config.containsKey("isShardingMode"))
             isShardingMode = Boolean.parseBoolean(config.get("isShardingMode").toString());
         else
@@ -103,6 +116,8 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         BTreeChunk lastChunk = btreeStorage.getLastChunk();
         if (lastChunk != null) {
             root = btreeStorage.readPage(lastChunk.rootPagePos);
+            // 子节点的parentRef指向root的ref，没有它的话切割第二层的node page时会被当成root
+            root.setRef(new PageReference(root));
             size.set(lastChunk.mapSize);
             setMaxKey(lastKey());
         } else {
@@ -207,7 +222,9 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
 
     @SuppressWarnings("unchecked")
     private V binarySearch(Object key, boolean allColumns) {
-        BTreePage p = root.gotoLeafPage(key);
+        BTreePage p = root.gotoLeafPageIfMayContain(key);
+        if (p == null)
+            return null;
         p = p.redirectIfSplited(key);
         int index = p.binarySearch(key);
         return index >= 0 ? (V) p.getValue(index, allColumns) : null;
@@ -215,7 +232,9 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
 
     @SuppressWarnings("unchecked")
     private V binarySearch(Object key, int[] columnIndexes) {
-        BTreePage p = root.gotoLeafPage(key);
+        BTreePage p = root.gotoLeafPageIfMayContain(key);
+        if (p == null)
+            return null;
         p = p.redirectIfSplited(key);
         int index = p.binarySearch(key);
         return index >= 0 ? (V) p.getValue(index, columnIndexes) : null;
@@ -459,6 +478,9 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
             root.removeAllRecursive();
             size.set(0);
             maxKey.set(0);
+            // 以前预留的key不能再用了
+            if (appendKeyBlocks != null)
+                appendKeyBlocks = ThreadLocal.withInitial(() -> new long[2]);
             newRoot(BTreeLeafPage.createEmpty(this));
             disableParallelIfNeeded();
             root.setReplicationHostIds(replicationHostIds);
@@ -467,6 +489,29 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         }
     }
 
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        checkWrite();
+        try {
+            acquireExclusiveLock();
+            // 空map直接从下往上构建page，分布式场景下的page还要考虑复制，所以还是一条条put
+            if (isEmpty() && root.isLeaf() && !isShardingMode) {
+                long count = new BTreeBulkLoader(this).load(entries);
+                size.set(count);
+                setMaxKey(lastKey());
+                enableParallelIfNeeded();
+                return;
+            }
+        } finally {
+            releaseExclusiveLock();
+        }
+        // put要在PageOperationHandler中获取共享锁，所以释放排它锁之后再put
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            put(e.getKey(), e.getValue());
+        }
+    }
+
     @Override
     public void remove() {
         try {
@@ -560,7 +605,11 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     }
 
     public void printPage(boolean readOffLinePage) {
-        System.out.println(root.getPrettyPageInfo(readOffLinePage));
+        System.out.println(getPrettyPageInfo(readOffLinePage));
+    }
+
+    public String getPrettyPageInfo(boolean readOffLinePage) {
+        return root.getPrettyPageInfo(readOffLinePage);
     }
 
     @Override
@@ -573,6 +622,43 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
         return btreeStorage.getMemorySpaceUsed();
     }
 
+    @Override
+    public long getCacheHits() {
+        return btreeStorage.getCacheHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return btreeStorage.getCacheMisses();
+    }
+
+    /**
+     * Get the number of lookups that the bloom filters of the leaf pages answered without reading the pages.
+     *
+     * @return the number of negative lookups
+     */
+    public long getBloomFilterNegatives() {
+        return btreeStorage.getBloomFilterNegatives();
+    }
+
+    /**
+     * Get the number of lookups that read a leaf page because of its bloom filter but did not find the key.
+     *
+     * @return the number of false positives
+     */
+    public long getBloomFilterFalsePositives() {
+        return btreeStorage.getBloomFilterFalsePositives();
+    }
+
+    /**
+     * Get the number of leaf pages that the scans skipped because of the zone maps of their column pages.
+     *
+     * @return the number of skipped leaf pages
+     */
+    public long getZoneMapSkippedPages() {
+        return btreeStorage.getZoneMapSkippedPages();
+    }
+
     public BTreePage getRootPage() {
         return root;
     }
@@ -626,12 +712,29 @@ public class BTreeMap<K, V> extends StorageMapBase<K, V> {
     public K append(V value, AsyncHandler<AsyncResult<K>> handler) {
         checkWrite();
         // 先得到一个long类型的key
-        K key = (K) ValueLong.get(maxKey.incrementAndGet());
+        K key = (K) ValueLong.get(nextAppendKey());
         Append<K, V> append = new Append<>(this, key, value, handler);
         pohFactory.addPageOperation(append);
         return key;
     }
 
+    private long nextAppendKey() {
+        ThreadLocal<long[]> blocks = appendKeyBlocks;
+        if (blocks == null)
+            return maxKey.incrementAndGet();
+        long[] block = blocks.get();
+        if (block[0] >= block[1]) {
+            long end = maxKey.addAndGet(appendKeyBlockSize) + 1;
+            block[0] = end - appendKeyBlockSize;
+            block[1] = end;
+        }
+        return block[0]++;
+    }
+
+    boolean isAppendKeyBlockEnabled() {
+        return appendKeyBlocks != null;
+    }
+
     ////////////////////// 以下是分布式API的实现 ////////////////////////////////
 
     private boolean isShardingMode;
@@ -70,6 +70,9 @@ public class BTreeNodePage extends BTreeLocalPage {
             return ref.page;
         } else {
             BTreePage p = map.btreeStorage.readPage(ref, ref.pos);
+            // 读出来的leaf page没有修改前，保存到父节点时还要用原来的Bloom filter
+            if (ref.bloomFilter != null)
+                p.setBloomFilter(ref.bloomFilter);
             ref.replacePage(p);
             p.setRef(ref);
             p.setParentRef(getRef());
@@ -79,12 +82,9 @@ public class BTreeNodePage extends BTreeLocalPage {
 
     @Override
     BTreeNodePage split(int at) { // at对应的key只放在父节点中
-        int a = at, b = keys.length - a;
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b - 1];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
-        keys = aKeys;
+        int a = at, b = getKeyCount() - a;
+        BTreeNodePage newPage = new BTreeNodePage(map);
+        splitKeysTo(newPage, a, a + 1);
 
         // children的长度要比keys的长度多1并且右边所有leaf的key都大于或等于at下标对应的key
         PageReference[] aChildren = new PageReference[a + 1];
@@ -93,7 +93,8 @@ public class BTreeNodePage extends BTreeLocalPage {
         System.arraycopy(children, a + 1, bChildren, 0, b);
         children = aChildren;
 
-        BTreeNodePage newPage = create(map, bKeys, bChildren, 0);
+        newPage.children = bChildren;
+        newPage.recalculateMemory();
         recalculateMemory();
         return newPage;
     }
@@ -113,9 +114,9 @@ public class BTreeNodePage extends BTreeLocalPage {
     public void setChild(int index, BTreePage c) {
         Object key;
         boolean first;
-        if (keys.length > 0) {
+        if (getKeyCount() > 0) {
             int keyIndex = index > 0 ? index - 1 : 0;
-            key = keys[keyIndex];
+            key = getKey(keyIndex);
             first = index == 0;
         } else {
             key = children[index].pageKey.key;
@@ -146,10 +147,7 @@ public class BTreeNodePage extends BTreeLocalPage {
     void setAndInsertChild(int index, TmpNodePage tmpNodePage) {
         children = children.clone(); // 必须弄一份新的，否则影响其他线程
         children[index] = tmpNodePage.right;
-        Object[] newKeys = new Object[keys.length + 1];
-        DataUtils.copyWithGap(keys, newKeys, keys.length, index);
-        newKeys[index] = tmpNodePage.key;
-        keys = newKeys;
+        insertKey(index, tmpNodePage.key);
 
         int childCount = children.length;
         PageReference[] newChildren = new PageReference[childCount + 1];
@@ -159,15 +157,12 @@ public class BTreeNodePage extends BTreeLocalPage {
 
         tmpNodePage.left.page.setParentRef(getRef());
         tmpNodePage.right.page.setParentRef(getRef());
-        addMemory(map.getKeyType().getMemory(tmpNodePage.key) + PageUtils.PAGE_MEMORY_CHILD);
+        addMemory(getKeyMemory(tmpNodePage.key) + PageUtils.PAGE_MEMORY_CHILD);
     }
 
     @Override
     public void insertNode(int index, Object key, BTreePage childPage) {
-        Object[] newKeys = new Object[keys.length + 1];
-        DataUtils.copyWithGap(keys, newKeys, keys.length, index);
-        newKeys[index] = key;
-        keys = newKeys;
+        insertKey(index, key);
 
         int childCount = children.length;
         PageReference[] newChildren = new PageReference[childCount + 1];
@@ -176,7 +171,7 @@ public class BTreeNodePage extends BTreeLocalPage {
         children = newChildren;
 
         childPage.setParentRef(getRef());
-        addMemory(map.getKeyType().getMemory(key) + PageUtils.PAGE_MEMORY_CHILD);
+        addMemory(getKeyMemory(key) + PageUtils.PAGE_MEMORY_CHILD);
     }
 
     @Override
@@ -197,7 +192,6 @@ public class BTreeNodePage extends BTreeLocalPage {
         readCheckValue(buff, chunkId, offset, pageLength, disableCheck);
 
         int keyLength = DataUtils.readVarInt(buff);
-        keys = new Object[keyLength];
         int type = buff.get();
         children = new PageReference[keyLength + 1];
         long[] p = new long[keyLength + 1];
@@ -218,29 +212,33 @@ public class BTreeNodePage extends BTreeLocalPage {
                 children[i].replicationHostIds = replicationHostIds;
             } else {
                 List<String> replicationHostIds = null;
-                if (pageType == 0) {
+                BTreeBloomFilter bloomFilter = null;
+                if (pageType == 0 || pageType == 3) {
                     replicationHostIds = readReplicationHostIds(buff);
                     if (replicationHostIds == null) {
                         replicationHostIds = defaultReplicationHostIds;
                     }
+                    if (pageType == 3)
+                        bloomFilter = BTreeBloomFilter.read(buff);
                 }
                 children[i] = new PageReference(null, p[i]);
                 children[i].replicationHostIds = replicationHostIds; // node page的replicationHostIds为null
+                children[i].bloomFilter = bloomFilter;
             }
         }
         buff = expandPage(buff, type, start, pageLength);
 
-        map.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, type, keyLength);
         setChildrenPageKeys();
         recalculateMemory();
     }
 
     private void setChildrenPageKeys() {
-        if (children != null && keys != null && keys.length > 0) {
-            int keyLength = keys.length;
-            children[0].setPageKey(keys[0], true);
+        int keyLength = keys != null || longKeys != null ? getKeyCount() : 0;
+        if (children != null && keyLength > 0) {
+            children[0].setPageKey(getKey(0), true);
             for (int i = 0; i < keyLength; i++) {
-                children[i + 1].setPageKey(keys[i], false);
+                children[i + 1].setPageKey(getKey(i), false);
             }
         }
     }
@@ -250,11 +248,10 @@ public class BTreeNodePage extends BTreeLocalPage {
     *
     * @param chunk the chunk
     * @param buff the target buffer
-    * @return the position of the buffer just after the type
     */
-    private int write(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
+    private void write(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
         int start = buff.position();
-        int keyLength = keys.length;
+        int keyLength = getKeyCount();
         buff.putInt(0);
         int checkPos = buff.position();
         buff.putShort((short) 0).putVarInt(keyLength);
@@ -268,26 +265,28 @@ public class BTreeNodePage extends BTreeLocalPage {
                 writeReplicationHostIds(children[i].replicationHostIds, buff);
             } else {
                 if (children[i].isLeafPage()) {
-                    buff.put((byte) 0);
+                    // 3表示leaf page后面还有Bloom filter
+                    BTreeBloomFilter bloomFilter = children[i].bloomFilter;
+                    buff.put((byte) (bloomFilter == null ? 0 : 3));
                     writeReplicationHostIds(children[i].replicationHostIds, buff);
+                    if (bloomFilter != null)
+                        bloomFilter.write(buff);
                 } else {
                     buff.put((byte) 1);
                 }
             }
         }
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, keyLength);
+        int pageType = writeKeys(buff, type, typePos);
 
-        compressPage(buff, compressStart, type, typePos);
+        compressPage(buff, compressStart, pageType, typePos);
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (replicatePage) {
-            chunk.pagePositionToLengthMap.put(0L, pageLength);
+            chunk.addPage(0L, pageLength);
         } else {
             updateChunkAndCachePage(chunk, start, pageLength, type);
 
@@ -297,11 +296,10 @@ public class BTreeNodePage extends BTreeLocalPage {
 
             removeIfInMemory();
         }
-        return typePos + 1;
     }
 
     private void writeChildrenPositions(DataBuffer buff) {
-        for (int i = 0, len = keys.length; i <= len; i++) {
+        for (int i = 0, len = getKeyCount(); i <= len; i++) {
             buff.putLong(children[i].pos); // pos通常是个很大的long，所以不值得用VarLong
         }
     }
@@ -312,7 +310,8 @@ public class BTreeNodePage extends BTreeLocalPage {
             // already stored before
             return;
         }
-        int patch = write(chunk, buff, false);
+        // 先写子节点再写自己，这样写自己时子节点的pos都已经确定了，不需要再回填，
+        // 写完的page可以直接写到chunk文件中，缓冲区可以重用
         for (int i = 0, len = children.length; i < len; i++) {
             BTreePage p = children[i].page;
             if (p != null) {
@@ -321,10 +320,8 @@ public class BTreeNodePage extends BTreeLocalPage {
             }
         }
         setChildrenPageKeys();
-        int old = buff.position();
-        buff.position(patch);
-        writeChildrenPositions(buff);
-        buff.position(old);
+        write(chunk, buff, false);
+        map.getBTreeStorage().writeChunkBody(chunk, buff, false);
     }
 
     @Override
@@ -338,6 +335,7 @@ public class BTreeNodePage extends BTreeLocalPage {
                 ref.page.writeEnd();
                 children[i] = new PageReference(null, ref.pos);
                 children[i].replicationHostIds = ref.page.getReplicationHostIds();
+                children[i].bloomFilter = ref.bloomFilter;
             }
         }
         setChildrenPageKeys();
@@ -352,6 +350,10 @@ public class BTreeNodePage extends BTreeLocalPage {
     protected void recalculateMemory() {
         int mem = recalculateKeysMemory();
         mem += this.getRawChildPageCount() * PageUtils.PAGE_MEMORY_CHILD;
+        for (PageReference ref : children) {
+            if (ref.bloomFilter != null)
+                mem += ref.bloomFilter.getMemory();
+        }
         addMemory(mem - memory);
     }
 
@@ -361,7 +363,8 @@ public class BTreeNodePage extends BTreeLocalPage {
     }
 
     private BTreeNodePage copy(boolean removePage) {
-        BTreeNodePage newPage = create(map, keys, children, getMemory());
+        BTreeNodePage newPage = create(map, null, children, getMemory());
+        copyKeysTo(newPage);
         newPage.cachedCompare = cachedCompare;
         newPage.setParentRef(getParentRef());
         newPage.setRef(getRef());
@@ -400,7 +403,7 @@ public class BTreeNodePage extends BTreeLocalPage {
     static BTreeNodePage create(BTreeMap<?, ?> map, Object[] keys, PageReference[] children, int memory) {
         BTreeNodePage p = new BTreeNodePage(map);
         // the position is 0
-        p.keys = keys;
+        p.setKeys(keys);
         p.children = children;
         if (memory == 0) {
             p.recalculateMemory();
@@ -428,14 +431,14 @@ public class BTreeNodePage extends BTreeLocalPage {
     @Override
     void moveAllLocalLeafPages(String[] oldNodes, String[] newNodes, RunMode newRunMode) {
         Set<NetNode> candidateNodes = BTreeMap.getCandidateNodes(map.getDatabase(), newNodes);
-        for (int i = 0, len = keys.length; i <= len; i++) {
+        for (int i = 0, len = getKeyCount(); i <= len; i++) {
             if (!children[i].isRemotePage()) {
                 BTreePage p = getChildPage(i);
                 if (p.isNode()) {
                     p.moveAllLocalLeafPages(oldNodes, newNodes, newRunMode);
                 } else {
                     List<String> replicationHostIds = p.getReplicationHostIds();
-                    Object key = i == len ? keys[i - 1] : keys[i];
+                    Object key = i == len ? getKey(i - 1) : getKey(i);
                     if (replicationHostIds == null) {
                         oldNodes = new String[0];
                     } else {
@@ -466,21 +469,21 @@ public class BTreeNodePage extends BTreeLocalPage {
         int start = buff.position();
         buff.putInt(0); // 回填pageLength
         p.write(chunk, buff, true);
-        int pageLength = chunk.pagePositionToLengthMap.get(0L);
+        int pageLength = chunk.getPageLength(0L);
         buff.putInt(start, pageLength);
     }
 
     @Override
     protected void toString(StringBuilder buff) {
-        for (int i = 0, len = keys.length; i <= len; i++) {
+        for (int i = 0, len = getKeyCount(); i <= len; i++) {
             if (i > 0) {
                 buff.append(" ");
             }
             if (children != null) {
                 buff.append("[" + Long.toHexString(children[i].pos) + "] ");
             }
-            if (i < keys.length) {
-                buff.append(keys[i]);
+            if (i < len) {
+                buff.append(getKey(i));
             }
         }
     }
@@ -488,8 +491,8 @@ public class BTreeNodePage extends BTreeLocalPage {
     @Override
     protected void getPrettyPageInfoRecursive(StringBuilder buff, String indent, PrettyPageInfo info) {
         if (children != null) {
-            buff.append(indent).append("children: ").append(keys.length + 1).append('\n');
-            for (int i = 0, len = keys.length; i <= len; i++) {
+            buff.append(indent).append("children: ").append(getKeyCount() + 1).append('\n');
+            for (int i = 0, len = getKeyCount(); i <= len; i++) {
                 buff.append('\n');
                 if (children[i].page != null) {
                     children[i].page.getPrettyPageInfoRecursive(indent + "  ", info);
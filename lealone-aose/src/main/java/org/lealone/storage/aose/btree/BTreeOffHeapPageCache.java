@@ -0,0 +1,266 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.compress.CompressLZF;
+import org.lealone.storage.Storage;
+import org.lealone.storage.aose.AOStorage;
+
+/**
+ * 堆外的二级page缓存，BTreePageCache不命中时先查这里，查不到再读chunk文件。
+ * <p>
+ * 从chunk文件读出来的page以序列化后的形式(可以再用LZF压缩)放到一组固定大小的direct ByteBuffer(slab)中，
+ * slab按顺序写满后循环复用最老的那个，复用时丢弃它里面的所有page，所以不需要额外的淘汰算法，也不会增加GC的负担。
+ * <p>
+ * 缓存的大小由page_cache_off_heap_size(单位MB)决定，默认是0，表示不启用，
+ * page_cache_off_heap_compress为true时用LZF压缩page。
+ * 这两个参数是Storage级别的，同一个Storage中的所有BTreeMap共享一个缓存，在单个map上指定是无效的。
+ * <p>
+ * 读写缓存时都直接在slab和每个线程自己的临时缓冲区之间复制或压缩/解压，不会为每个page分配新的数组，
+ * 只有column page例外，它会一直引用读出来的buff，等到用到这一列时才解析，所以每次都要分配新的缓冲区。
+ *
+ * @author zhh
+ */
+public class BTreeOffHeapPageCache {
+
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    // 每个Storage一个缓存，第一个BTreeMap打开时创建，最后一个BTreeMap关闭时释放
+    private static final HashMap<Storage, BTreeOffHeapPageCache> instances = new HashMap<>();
+
+    // 不启用时返回null
+    static synchronized BTreeOffHeapPageCache register(BTreeStorage btreeStorage) {
+        Storage storage = btreeStorage.getMap().getStorage();
+        BTreeOffHeapPageCache cache = instances.get(storage);
+        if (cache == null) {
+            Map<String, Object> config = ((AOStorage) storage).getConfig();
+            Object size = config.get("page_cache_off_heap_size");
+            long mb = size == null ? 0 : Long.parseLong(size.toString().trim());
+            if (mb <= 0)
+                return null;
+            Object compress = config.get("page_cache_off_heap_compress");
+            cache = new BTreeOffHeapPageCache(mb * 1024 * 1024,
+                    compress != null && Boolean.parseBoolean(compress.toString()));
+            instances.put(storage, cache);
+        }
+        cache.storageCount++;
+        return cache;
+    }
+
+    static synchronized void unregister(BTreeStorage btreeStorage) {
+        Storage storage = btreeStorage.getMap().getStorage();
+        BTreeOffHeapPageCache cache = instances.get(storage);
+        if (cache != null && --cache.storageCount <= 0)
+            instances.remove(storage);
+    }
+
+    // 每个线程自己的临时缓冲区，不够大时才重新分配
+    private static class Scratch {
+        final CompressLZF compressor = new CompressLZF(); // CompressLZF不是线程安全的
+        byte[] bytes = new byte[0];
+        ByteBuffer buff = ByteBuffer.allocate(0);
+
+        byte[] getBytes(int length) {
+            if (bytes.length < length)
+                bytes = new byte[length];
+            return bytes;
+        }
+
+        ByteBuffer getBuffer(int length) {
+            if (buff.capacity() < length)
+                buff = ByteBuffer.allocate(length);
+            buff.clear();
+            buff.limit(length);
+            return buff;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final Slab[] slabs;
+    private final boolean compress;
+    private int currentSlab;
+    private int storageCount; // 在instances上同步
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong usedMemory = new AtomicLong();
+
+    private BTreeOffHeapPageCache(long maxMemory, boolean compress) {
+        slabs = new Slab[(int) Math.max(1, maxMemory / SLAB_SIZE)];
+        this.compress = compress;
+    }
+
+    public long getMaxMemory() {
+        return (long) slabs.length * SLAB_SIZE;
+    }
+
+    public long getUsedMemory() {
+        return usedMemory.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Put the serialized page into the cache.
+     *
+     * @param pages the cached pages of the map
+     * @param pos the page position
+     * @param buff the serialized page, its position and limit are not changed
+     */
+    void put(ConcurrentHashMap<Long, PageRef> pages, long pos, ByteBuffer buff) {
+        int expandedLength = buff.remaining();
+        byte[] comp = null;
+        int length = expandedLength;
+        if (compress) {
+            // 压缩的结果先放到线程自己的临时数组中，压缩后变大了就不压缩
+            byte[] bytes = scratch.get().getBytes(expandedLength * 2);
+            int compLen = scratch.get().compressor.compress(buff.slice(), bytes, 0);
+            if (compLen < expandedLength) {
+                comp = bytes;
+                length = compLen;
+            }
+        }
+        if (length > SLAB_SIZE)
+            return;
+        PageRef ref = new PageRef(pages, pos, length, expandedLength);
+        Slab slab = allocate(ref);
+        synchronized (slab) {
+            // slab可能已经被其他线程复用了，此时ref也已经失效
+            if (ref.slab == slab) {
+                ByteBuffer b = slab.buff.duplicate();
+                b.position(ref.offset);
+                if (comp != null)
+                    b.put(comp, 0, length);
+                else
+                    b.put(buff.duplicate());
+                pages.put(pos, ref);
+            }
+        }
+    }
+
+    // 在当前slab中给page分配空间，当前slab满了就复用下一个slab
+    private synchronized Slab allocate(PageRef ref) {
+        Slab slab = slabs[currentSlab];
+        if (slab == null || slab.position + ref.length > SLAB_SIZE) {
+            if (slab != null)
+                currentSlab = (currentSlab + 1) % slabs.length;
+            slab = slabs[currentSlab];
+            if (slab == null) {
+                slab = new Slab();
+                slabs[currentSlab] = slab;
+            } else {
+                slab.recycle();
+            }
+        }
+        synchronized (slab) {
+            ref.slab = slab;
+            ref.offset = slab.position;
+            slab.position += ref.length;
+            slab.refs.add(ref);
+        }
+        usedMemory.addAndGet(ref.length);
+        return slab;
+    }
+
+    /**
+     * Get the serialized page from the cache.
+     * <p>
+     * The page is copied or expanded from the slab straight into a buffer owned by the current thread,
+     * so the returned buffer must be consumed before the next call on the same thread.
+     * Column pages keep a reference to their buffer and parse it lazily, so they get a new buffer instead.
+     *
+     * @param pages the cached pages of the map
+     * @param pos the page position
+     * @return the serialized page, or null if not found
+     */
+    ByteBuffer get(ConcurrentHashMap<Long, PageRef> pages, long pos) {
+        PageRef ref = pages.get(pos);
+        if (ref != null) {
+            Slab slab = ref.slab;
+            if (slab != null) {
+                ByteBuffer out;
+                if (PageUtils.getPageType(pos) == PageUtils.PAGE_TYPE_COLUMN)
+                    out = ByteBuffer.allocate(ref.expandedLength);
+                else
+                    out = scratch.get().getBuffer(ref.expandedLength);
+                synchronized (slab) {
+                    // 在锁中复制，避免slab被其他线程复用
+                    if (ref.slab == slab) {
+                        ByteBuffer in = slab.buff.duplicate();
+                        in.limit(ref.offset + ref.length);
+                        in.position(ref.offset);
+                        if (ref.length < ref.expandedLength)
+                            CompressLZF.expand(in, out.slice()); // 解压到out的[0, expandedLength)
+                        else
+                            out.put(in);
+                        hits.incrementAndGet();
+                        out.position(0);
+                        out.limit(ref.expandedLength);
+                        return out;
+                    }
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Remove the page from the cache, its space is reclaimed when the slab is reused.
+     *
+     * @param pages the cached pages of the map
+     * @param pos the page position
+     */
+    void remove(ConcurrentHashMap<Long, PageRef> pages, long pos) {
+        pages.remove(pos);
+    }
+
+    private class Slab {
+        final ByteBuffer buff = ByteBuffer.allocateDirect(SLAB_SIZE);
+        final ArrayList<PageRef> refs = new ArrayList<>();
+        int position;
+
+        synchronized void recycle() {
+            for (PageRef ref : refs) {
+                ref.slab = null;
+                ref.pages.remove(ref.pos, ref);
+            }
+            refs.clear();
+            usedMemory.addAndGet(-position);
+            position = 0;
+        }
+    }
+
+    static class PageRef {
+        final ConcurrentHashMap<Long, PageRef> pages;
+        final long pos;
+        final int length;
+        final int expandedLength;
+        volatile Slab slab; // slab被复用后是null
+        int offset;
+
+        PageRef(ConcurrentHashMap<Long, PageRef> pages, long pos, int length, int expandedLength) {
+            this.pages = pages;
+            this.pos = pos;
+            this.length = length;
+            this.expandedLength = expandedLength;
+        }
+    }
+}
@@ -17,6 +17,7 @@ import org.lealone.common.util.DataUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.db.RunMode;
 import org.lealone.db.value.ValueString;
+import org.lealone.storage.IterationParameters;
 import org.lealone.storage.LeafPageMovePlan;
 import org.lealone.storage.PageOperation;
 import org.lealone.storage.PageOperationHandler;
@@ -85,7 +86,8 @@ public class BTreePage {
     private static final AtomicReferenceFieldUpdater<BTreePage, DynamicInfo> dynamicInfoUpdater = AtomicReferenceFieldUpdater
             .newUpdater(BTreePage.class, DynamicInfo.class, "dynamicInfo");
     protected final BTreeMap<?, ?> map;
-    protected final PageOperationHandler handler;
+    // leaf page可以被交给其他处理器，所以不是final的
+    protected volatile PageOperationHandler handler;
     protected long pos;
 
     volatile DynamicInfo dynamicInfo = new DynamicInfo();
@@ -131,6 +133,11 @@ public class BTreePage {
         return handler;
     }
 
+    // 只能由当前处理器调用，之后对这个page的操作都会移交给新的处理器
+    void setHandler(PageOperationHandler handler) {
+        this.handler = handler;
+    }
+
     void addPageOperation(PageOperation po) {
         if (handler != null) {
             handler.handlePageOperation(po);
@@ -168,11 +175,13 @@ public class BTreePage {
             p = p.dynamicInfo.redirect;
             BTreeLeafPage left = (BTreeLeafPage) p.getChildPage(0);
             BTreeLeafPage right = (BTreeLeafPage) p.getChildPage(1);
-            int length = left.keys.length + right.keys.length;
+            Object[] leftKeys = left.getKeys();
+            Object[] rightKeys = right.getKeys();
+            int length = leftKeys.length + rightKeys.length;
             Object[] keys = new Object[length];
             Object[] values = new Object[length];
-            System.arraycopy(left.keys, 0, keys, 0, left.keys.length);
-            System.arraycopy(right.keys, 0, keys, left.keys.length, right.keys.length);
+            System.arraycopy(leftKeys, 0, keys, 0, leftKeys.length);
+            System.arraycopy(rightKeys, 0, keys, leftKeys.length, rightKeys.length);
             System.arraycopy(left.getValues(), 0, values, 0, left.getValues().length);
             System.arraycopy(right.getValues(), 0, values, left.getValues().length, right.getValues().length);
             p = BTreeLeafPage.create(p.map, keys, values, length, left.getMemory() + right.getMemory());
@@ -497,17 +506,36 @@ public class BTreePage {
     }
 
     /**
-     * Read a page.
+     * Read a page from the memory mapped chunk file, without copying.
      * 
      * @param map the map
-     * @param fileStorage the file storage
+     * @param mappedBuffer the memory mapped chunk file
      * @param pos the position
      * @param filePos the position in the file
      * @param pageLength the page length
      * @return the page
      */
-    static BTreePage read(BTreeMap<?, ?> map, FileStorage fileStorage, long pos, long filePos, int pageLength) {
-        ByteBuffer buff = readPageBuff(fileStorage, filePos, pageLength);
+    static BTreePage read(BTreeMap<?, ?> map, ByteBuffer mappedBuffer, long pos, long filePos, int pageLength) {
+        if (pageLength < 0 || filePos + pageLength > mappedBuffer.capacity()) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                    "Illegal page length {0} reading at {1} ", pageLength, filePos);
+        }
+        // 用duplicate是因为多个线程会同时读同一个映射
+        ByteBuffer buff = mappedBuffer.duplicate();
+        buff.limit((int) filePos + pageLength).position((int) filePos);
+        return read(map, buff.slice(), pos, pageLength);
+    }
+
+    /**
+     * Read a page from the buffer that only contains the page.
+     * 
+     * @param map the map
+     * @param buff the serialized page
+     * @param pos the position
+     * @param pageLength the page length
+     * @return the page
+     */
+    static BTreePage read(BTreeMap<?, ?> map, ByteBuffer buff, long pos, int pageLength) {
         int type = PageUtils.getPageType(pos);
         BTreePage p = create(map, type);
         p.pos = pos;
@@ -517,7 +545,7 @@ public class BTreePage {
         return p;
     }
 
-    private static ByteBuffer readPageBuff(FileStorage fileStorage, long filePos, int pageLength) {
+    static ByteBuffer readPageBuff(FileStorage fileStorage, long filePos, int pageLength) {
         if (pageLength < 0) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1} ", pageLength, filePos);
@@ -574,6 +602,35 @@ public class BTreePage {
         return p;
     }
 
+    // 跟gotoLeafPage一样，但是如果key对应的leaf page还没有读到内存中，
+    // 并且它的Bloom filter表明key肯定不存在，就直接返回null，不用再读leaf page了
+    BTreePage gotoLeafPageIfMayContain(Object key) {
+        BTreePage p = this;
+        while (p.isNode()) {
+            int index = p.binarySearch(key);
+            if (index < 0) {
+                index = -index - 1;
+            } else {
+                index++;
+            }
+            PageReference ref = p.getChildPageReference(index);
+            BTreeBloomFilter bloomFilter = ref.bloomFilter;
+            if (bloomFilter != null && ref.page == null) {
+                BTreeStorage btreeStorage = map.getBTreeStorage();
+                if (!bloomFilter.mayContain(map.getKeyType(), key)) {
+                    btreeStorage.bloomFilterNegatives.incrementAndGet();
+                    return null;
+                }
+                p = p.getChildPage(index);
+                if (p.binarySearch(key) < 0)
+                    btreeStorage.bloomFilterFalsePositives.incrementAndGet();
+            } else {
+                p = p.getChildPage(index);
+            }
+        }
+        return p;
+    }
+
     void readRemotePages() {
         throw ie();
     }
@@ -623,6 +680,23 @@ public class BTreePage {
         return null;
     }
 
+    BTreeBloomFilter getBloomFilter() {
+        return null;
+    }
+
+    void setBloomFilter(BTreeBloomFilter bloomFilter) {
+    }
+
+    /**
+     * Check whether the zone maps of the column pages show that no row of this leaf page matches the filters.
+     *
+     * @param parameters the iteration parameters, the column filters are not null
+     * @return true if the page can be skipped
+     */
+    boolean canSkip(IterationParameters<?> parameters) {
+        return false;
+    }
+
     static void writeReplicationHostIds(List<String> replicationHostIds, DataBuffer buff) {
         if (replicationHostIds == null || replicationHostIds.isEmpty())
             buff.putInt(0);
@@ -684,8 +758,8 @@ public class BTreePage {
         }
     }
 
-    static void writeCheckValue(DataBuffer buff, int chunkId, int start, int pageLength, int checkPos) {
-        int check = DataUtils.getCheckValue(chunkId) ^ DataUtils.getCheckValue(start)
+    static void writeCheckValue(DataBuffer buff, BTreeChunk chunk, int start, int pageLength, int checkPos) {
+        int check = DataUtils.getCheckValue(chunk.id) ^ DataUtils.getCheckValue(chunk.getOffset(start))
                 ^ DataUtils.getCheckValue(pageLength);
         buff.putShort(checkPos, (short) check);
     }
@@ -751,10 +825,8 @@ public class BTreePage {
         if (pos != 0) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Page already stored");
         }
-        pos = PageUtils.getPagePos(chunk.id, start, type);
-        chunk.pagePositionToLengthMap.put(pos, pageLength);
-        chunk.sumOfPageLength += pageLength;
-        chunk.pageCount++;
+        pos = PageUtils.getPagePos(chunk.id, chunk.getOffset(start), type);
+        chunk.addPage(pos, pageLength);
 
         map.getBTreeStorage().cachePage(pos, this, getMemory());
 
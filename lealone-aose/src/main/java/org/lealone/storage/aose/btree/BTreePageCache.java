@@ -0,0 +1,94 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.storage.cache.CacheLongKeyLIRS;
+
+/**
+ * 所有数据库的所有BTreeMap共享的page缓存，用(BTreeStorage的缓存id, page pos)作为key，
+ * 整个缓存池一起按LIRS算法淘汰，这样热的BTreeMap可以用到更多的缓存，冷的BTreeMap不会一直占着一份固定的缓存。
+ * <p>
+ * 缓存的大小由page_cache_size决定，可以是MB数，也可以是堆内存的百分比(比如"25%")，默认是堆内存的25%。
+ *
+ * @author zhh
+ */
+public class BTreePageCache extends CacheLongKeyLIRS<BTreePage> {
+
+    private static final String DEFAULT_PAGE_CACHE_SIZE = "25%";
+
+    private static BTreePageCache instance;
+
+    static synchronized BTreePageCache getInstance(Map<String, Object> config) {
+        if (instance == null) {
+            CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
+            cc.maxMemory = getMaxMemory(config);
+            instance = new BTreePageCache(cc);
+        }
+        return instance;
+    }
+
+    private static long getMaxMemory(Map<String, Object> config) {
+        Object value = config.get("page_cache_size");
+        String size = value != null ? value.toString().trim() : DEFAULT_PAGE_CACHE_SIZE;
+        long maxMemory;
+        if (size.endsWith("%")) {
+            int percent = Integer.parseInt(size.substring(0, size.length() - 1).trim());
+            maxMemory = Runtime.getRuntime().maxMemory() / 100 * percent;
+        } else {
+            maxMemory = Long.parseLong(size) * 1024 * 1024;
+        }
+        if (maxMemory <= 0) {
+            throw DataUtils.newIllegalArgumentException("Illegal page_cache_size {0}", size);
+        }
+        return maxMemory;
+    }
+
+    // 缓存id从不复用，所以已经关闭的BTreeStorage留在缓存中的page不会被新的BTreeStorage读到
+    private final AtomicInteger nextCacheId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, BTreeStorage> storages = new ConcurrentHashMap<>();
+
+    private BTreePageCache(Config config) {
+        super(config);
+    }
+
+    int addStorage(BTreeStorage storage) {
+        int cacheId = nextCacheId.incrementAndGet();
+        storages.put(cacheId, storage);
+        return cacheId;
+    }
+
+    // 调用者要先从缓存中删除它的page
+    void removeStorage(int cacheId) {
+        storages.remove(cacheId);
+    }
+
+    synchronized void resize(long maxMemory) {
+        setMaxMemory(maxMemory);
+        clear(); // clear不会调用onRemove，所以要把所有BTreeStorage占用的缓存清零
+        for (BTreeStorage storage : storages.values()) {
+            storage.cacheUsedMemory.set(0);
+        }
+    }
+
+    @Override
+    protected void onAdd(int cacheId, BTreePage page, int memory) {
+        BTreeStorage storage = storages.get(cacheId);
+        if (storage != null)
+            storage.cacheUsedMemory.addAndGet(memory);
+    }
+
+    @Override
+    protected void onRemove(int cacheId, BTreePage page, int memory) {
+        BTreeStorage storage = storages.get(cacheId);
+        if (storage != null)
+            storage.cacheUsedMemory.addAndGet(-memory);
+    }
+}
@@ -49,6 +49,7 @@ public class BTreeRemotePage extends BTreePage {
             return;
         }
         write(chunk, buff, false);
+        map.getBTreeStorage().writeChunkBody(chunk, buff, false);
     }
 
     private void write(BTreeChunk chunk, DataBuffer buff, boolean replicatePage) {
@@ -62,12 +63,10 @@ public class BTreeRemotePage extends BTreePage {
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
-        int chunkId = chunk.id;
-
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunk, start, pageLength, checkPos);
 
         if (replicatePage) {
-            chunk.pagePositionToLengthMap.put(0L, pageLength);
+            chunk.addPage(0L, pageLength);
         } else {
             updateChunkAndCachePage(chunk, start, pageLength, type);
         }
@@ -118,7 +117,7 @@ public class BTreeRemotePage extends BTreePage {
         int start = buff.position();
         buff.putInt(0); // 回填pageLength
         p.write(chunk, buff, true);
-        int pageLength = chunk.pagePositionToLengthMap.get(0L);
+        int pageLength = chunk.getPageLength(0L);
         buff.putInt(start, pageLength);
     }
 }
@@ -5,20 +5,23 @@
  */
 package org.lealone.storage.aose.btree;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
-import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipOutputStream;
 
 import org.lealone.common.compress.CompressDeflate;
 import org.lealone.common.compress.CompressLZF;
@@ -29,9 +32,12 @@ import org.lealone.common.util.DataUtils;
 import org.lealone.common.util.MathUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.sql.SQLStatementExecutor;
+import org.lealone.storage.StorageBase;
 import org.lealone.storage.aose.AOStorage;
 import org.lealone.storage.aose.btree.PageOperations.CallableOperation;
-import org.lealone.storage.cache.CacheLongKeyLIRS;
+import org.lealone.storage.fs.FilePath;
+import org.lealone.storage.fs.FilePathDisk;
+import org.lealone.storage.fs.FilePathNio;
 import org.lealone.storage.fs.FileStorage;
 import org.lealone.storage.fs.FileUtils;
 
@@ -50,6 +56,8 @@ public class BTreeStorage {
     static final int BLOCK_SIZE = 4 * 1024;
     private static final int CHUNK_HEADER_BLOCKS = 2;
     static final int CHUNK_HEADER_SIZE = CHUNK_HEADER_BLOCKS * BLOCK_SIZE;
+    // 保存时写缓冲区的大小，写满了就刷到chunk文件中
+    private static final int CHUNK_WRITE_BUFFER_SIZE = 1024 * 1024;
 
     private static long getFilePos(int offset) {
         long filePos = offset + CHUNK_HEADER_SIZE;
@@ -61,6 +69,8 @@ public class BTreeStorage {
 
     private final BTreeMap<Object, Object> map;
     private final String btreeStoragePath;
+    // 启用mmapRead时是chunk文件所在的磁盘目录，否则是null
+    private final String mmapStoragePath;
 
     private final ConcurrentHashMap<Integer, BTreeChunk> chunks = new ConcurrentHashMap<>();
     private final BitField chunkIds = new BitField();
@@ -68,13 +78,34 @@ public class BTreeStorage {
 
     private final int pageSplitSize;
     private final int minFillRate;
+    private final int readAheadWindow;
+    // 批量导入时没有保存的leaf page最多占用多少内存，超过了就先写到chunk文件中
+    private final int bulkLoadBufferSize;
+    // 每个key占用多少bit的Bloom filter，0表示leaf page不生成Bloom filter
+    private final int bloomFilterBitsPerKey;
+    // Bloom filter直接判定不存在的次数
+    final AtomicLong bloomFilterNegatives = new AtomicLong();
+    // Bloom filter判定可能存在但是读出leaf page后发现不存在的次数
+    final AtomicLong bloomFilterFalsePositives = new AtomicLong();
+    // 扫描时根据列的zone map跳过的leaf page个数
+    final AtomicLong zoneMapSkippedPages = new AtomicLong();
     private final UncaughtExceptionHandler backgroundExceptionHandler;
+    private final BTreeCompactionService compactionService;
 
     /**
-     * The page cache. The default size is 16 MB, and the average size is 2 KB.
-     * It is split in 16 segments. The stack move distance is 2% of the expected number of entries.
+     * The page cache shared by all btree maps, the pages of this map use cacheId as the group of the keys.
+     * It is null if the cacheSize of this map is not larger than 0.
      */
-    private final CacheLongKeyLIRS<BTreePage> cache;
+    private final BTreePageCache cache;
+    private final int cacheId;
+    final AtomicLong cacheHits = new AtomicLong();
+    final AtomicLong cacheMisses = new AtomicLong();
+    final AtomicLong cacheUsedMemory = new AtomicLong(); // 由BTreePageCache负责更新
+    // 堆外的二级缓存，没有启用时是null
+    private final BTreeOffHeapPageCache offHeapCache;
+    private final ConcurrentHashMap<Long, BTreeOffHeapPageCache.PageRef> offHeapPages = new ConcurrentHashMap<>();
+    // 正在预读的page
+    private final ConcurrentHashMap<Long, Long> readingAheadPages = new ConcurrentHashMap<>();
 
     /**
      * The compression level for new pages (0 for disabled, 1 for fast, 2 for high).
@@ -86,6 +117,8 @@ public class BTreeStorage {
 
     private boolean closed;
     private volatile boolean hasUnsavedChanges;
+    // 正在进行的在线备份个数，大于0时后台压缩不能删除旧的chunk文件，也不能复用它们的id
+    private int backupCount;
 
     /**
      * Create and open the storage.
@@ -97,18 +130,12 @@ public class BTreeStorage {
         this.map = map;
         pageSplitSize = getIntValue("pageSplitSize", 16 * 1024);
         minFillRate = getIntValue("minFillRate", 30);
+        readAheadWindow = getIntValue("readAheadWindow", 8);
+        bulkLoadBufferSize = getIntValue("bulkLoadBufferSize", 16 * 1024 * 1024);
+        bloomFilterBitsPerKey = getIntValue("bloomFilterBitsPerKey", 0);
         compressionLevel = getIntValue("compress", 0);
         backgroundExceptionHandler = (UncaughtExceptionHandler) map.config.get("backgroundExceptionHandler");
 
-        int mb = getIntValue("cacheSize", 16);
-        if (mb > 0) {
-            CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
-            cc.maxMemory = mb * 1024L * 1024L;
-            cache = new CacheLongKeyLIRS<>(cc);
-        } else {
-            cache = null; // 当 cacheSize <= 0 时禁用缓存
-        }
-
         btreeStoragePath = map.getStorage().getStoragePath() + File.separator + map.getName();
         if (!FileUtils.exists(btreeStoragePath))
             FileUtils.createDirectories(btreeStoragePath);
@@ -117,12 +144,39 @@ public class BTreeStorage {
                 chunkIds.set(id);
             }
         }
+        mmapStoragePath = getMmapStoragePath();
         chunkMetaData = new ChunkMetaData();
+        chunkMetaData.readLastChunk();
+        compactionService = BTreeCompactionService.register(this);
+
+        // 所有BTreeMap共享一个page缓存，cacheSize不再决定每个BTreeMap的缓存大小
+        if (getIntValue("cacheSize", 16) > 0) {
+            cache = BTreePageCache.getInstance(map.config);
+            cacheId = cache.addStorage(this);
+            offHeapCache = BTreeOffHeapPageCache.register(this);
+        } else {
+            cache = null; // 当 cacheSize <= 0 时禁用缓存
+            cacheId = 0;
+            offHeapCache = null;
+        }
     }
 
     private int getIntValue(String key, int defaultValue) {
         Object value = map.config.get(key);
-        return value != null ? (Integer) value : defaultValue;
+        if (value == null)
+            return defaultValue;
+        return value instanceof Integer ? (Integer) value : Integer.parseInt(value.toString());
+    }
+
+    // 只有本地磁盘上的文件才能映射，加密文件在磁盘上是密文，映射了也不能直接解析
+    private String getMmapStoragePath() {
+        Object value = map.config.get("mmapRead");
+        if (value == null || !Boolean.parseBoolean(value.toString()) || map.config.get("encryptionKey") != null)
+            return null;
+        FilePath p = FilePath.get(btreeStoragePath);
+        if (p instanceof FilePathNio)
+            p = ((FilePathNio) p).unwrap();
+        return p instanceof FilePathDisk ? p.toString() : null;
     }
 
     private List<Integer> getAllChunkIds() {
@@ -137,27 +191,50 @@ public class BTreeStorage {
         return ids;
     }
 
+    private String getChunkFileName(int chunkId) {
+        return btreeStoragePath + File.separator + chunkId + AOStorage.SUFFIX_AO_FILE;
+    }
+
     private FileStorage getFileStorage(int chunkId) {
-        String chunkFileName = btreeStoragePath + File.separator + chunkId + AOStorage.SUFFIX_AO_FILE;
         FileStorage fileStorage = new FileStorage();
-        fileStorage.open(chunkFileName, map.config);
+        fileStorage.open(getChunkFileName(chunkId), map.config);
         return fileStorage;
     }
 
     private static void readPagePositions(BTreeChunk c) {
-        if (!c.pagePositionToLengthMap.isEmpty())
+        if (c.pagePositions != null)
             return;
         int size = c.pageCount;
         ByteBuffer buff = c.fileStorage.readFully(getFilePos(c.pagePositionAndLengthOffset), size * 8 + size * 4);
+        long[] positions = new long[size];
+        int[] lengths = new int[size];
         for (int i = 0; i < size; i++) {
-            long position = buff.getLong();
-            int length = buff.getInt();
-            c.pagePositionToLengthMap.put(position, length);
+            positions[i] = buff.getLong();
+            lengths[i] = buff.getInt();
         }
+        c.setPagePositions(positions, lengths);
     }
 
     private synchronized BTreeChunk readChunkHeader(int chunkId) {
+        // 关闭后后台压缩线程可能还在读page，不能再打开chunk文件，否则没有机会关闭它
+        if (closed)
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_CLOSED, "This storage is closed");
+        BTreeChunk chunk = chunks.get(chunkId); // 其他线程可能已经读过了
+        if (chunk != null)
+            return chunk;
         FileStorage fileStorage = getFileStorage(chunkId);
+        // chunk index中已经有chunk header的所有字段了，不用再读chunk header
+        chunk = chunkMetaData.removeIndexedChunk(chunkId);
+        if (chunk == null)
+            chunk = readChunkHeader(fileStorage);
+        chunk.fileStorage = fileStorage;
+        readPagePositions(chunk);
+        chunkMetaData.readRemovedPages(chunk);
+        chunks.put(chunk.id, chunk);
+        return chunk;
+    }
+
+    private static BTreeChunk readChunkHeader(FileStorage fileStorage) {
         BTreeChunk chunk = null;
         ByteBuffer chunkHeaderBlocks = fileStorage.readFully(0, CHUNK_HEADER_SIZE);
         byte[] buff = new byte[BLOCK_SIZE];
@@ -189,10 +266,6 @@ public class BTreeStorage {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Storage header is corrupt: {0}",
                     fileStorage);
         }
-
-        chunk.fileStorage = fileStorage;
-        chunks.put(chunk.id, chunk);
-        readPagePositions(chunk);
         return chunk;
     }
 
@@ -261,7 +334,7 @@ public class BTreeStorage {
      */
     void cachePage(long pos, BTreePage page, int memory) {
         if (cache != null) {
-            cache.put(pos, page, memory);
+            cache.put(cacheId, pos, page, memory);
         }
     }
 
@@ -332,8 +405,43 @@ public class BTreeStorage {
         }
     }
 
+    int getReadAheadWindow() {
+        return cache == null ? 0 : readAheadWindow;
+    }
+
+    /**
+     * Read the page into the cache in a page operation handler, the caller does not wait for it.
+     * 
+     * @param pos the page position
+     */
+    void readAhead(final long pos) {
+        if (cache == null || cache.containsKey(cacheId, pos) || readingAheadPages.putIfAbsent(pos, pos) != null)
+            return;
+        map.pohFactory.addPageOperation(new CallableOperation(new Callable<BTreePage>() {
+            @Override
+            public BTreePage call() throws Exception {
+                try {
+                    if (!closed)
+                        return readLocalPageSync(pos);
+                } catch (Exception e) {
+                    // 预读失败不要紧，真正读的时候会再读一次
+                } finally {
+                    readingAheadPages.remove(pos);
+                }
+                return null;
+            }
+        }));
+    }
+
     private BTreePage getPageFromCache(long pos) {
-        return cache == null ? null : cache.get(pos);
+        if (cache == null)
+            return null;
+        BTreePage p = cache.get(cacheId, pos);
+        if (p != null)
+            cacheHits.incrementAndGet();
+        else
+            cacheMisses.incrementAndGet();
+        return p;
     }
 
     private BTreePage readLocalPageSync(long pos) {
@@ -343,11 +451,71 @@ public class BTreeStorage {
         BTreeChunk c = getChunk(pos);
         long filePos = getFilePos(PageUtils.getPageOffset(pos));
         int pageLength = c.getPageLength(pos);
-        p = BTreePage.read(map, c.fileStorage, pos, filePos, pageLength);
+        ByteBuffer mappedBuffer = getMappedBuffer(c);
+        if (mappedBuffer != null)
+            p = BTreePage.read(map, mappedBuffer, pos, filePos, pageLength);
+        else
+            p = BTreePage.read(map, readPageBuff(c, pos, filePos, pageLength), pos, pageLength);
         cachePage(pos, p, p.getMemory());
         return p;
     }
 
+    // 先查堆外的二级缓存，不命中时再读chunk文件，读出来的page也放到二级缓存中，
+    // 这样page从一级缓存中被淘汰后，再次读它时只需要反序列化，不用再读文件
+    private ByteBuffer readPageBuff(BTreeChunk c, long pos, long filePos, int pageLength) {
+        if (offHeapCache == null)
+            return BTreePage.readPageBuff(c.fileStorage, filePos, pageLength);
+        ByteBuffer buff = offHeapCache.get(offHeapPages, pos);
+        if (buff == null) {
+            buff = BTreePage.readPageBuff(c.fileStorage, filePos, pageLength);
+            offHeapCache.put(offHeapPages, pos, buff);
+        }
+        return buff;
+    }
+
+    // chunk写完后就不会再修改了，所以第一次读它的page时把整个文件只读映射到内存，
+    // 之后缓存不命中时直接从映射中解析page，不用再调用read和复制数据，由操作系统的page cache充当二级缓存
+    private ByteBuffer getMappedBuffer(BTreeChunk c) {
+        if (mmapStoragePath == null || c.blockCount <= 0) // 正在保存的chunk还没写完
+            return null;
+        ByteBuffer buff = c.mappedBuffer;
+        if (buff == null) {
+            synchronized (c) {
+                buff = c.mappedBuffer;
+                if (buff == null) {
+                    buff = mapChunkFile(c);
+                    c.mappedBuffer = buff;
+                }
+            }
+        }
+        return buff;
+    }
+
+    private ByteBuffer mapChunkFile(BTreeChunk c) {
+        String fileName = mmapStoragePath + File.separator + c.id + AOStorage.SUFFIX_AO_FILE;
+        // 映射在文件关闭后依然有效，不再引用时由GC解除映射，所以删除chunk时不用显式unmap，
+        // 也不用担心延迟解析的column page还引用着映射中的数据
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            // chunk的大小不会超过BTreeChunk.MAX_SIZE，所以总能映射成一个MappedByteBuffer
+            return file.getChannel().map(MapMode.READ_ONLY, 0, file.length());
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED, "Could not map file {0}",
+                    fileName, e);
+        }
+    }
+
+    // 共享的page缓存中可能还有chunk中的page(比如node page)，chunk删除或BTreeStorage关闭后要清除，
+    // 否则它们会一直占着缓存，chunk id被复用时还可能读到旧的page
+    private void removeCachedPages(BTreeChunk c) {
+        if (cache == null || c.pagePositions == null)
+            return;
+        for (int i = 0, size = c.pageCount; i < size; i++) {
+            cache.remove(cacheId, c.pagePositions[i]);
+            if (offHeapCache != null)
+                offHeapCache.remove(offHeapPages, c.pagePositions[i]);
+        }
+    }
+
     /**
      * Remove a page.
      * 
@@ -362,16 +530,26 @@ public class BTreeStorage {
             return;
         }
 
-        chunkMetaData.addRemovedPage(pos);
+        chunkMetaData.addRemovedPage(getChunk(pos), pos);
 
         if (cache != null) {
             if (PageUtils.isLeafPage(pos)) {
                 // keep nodes in the cache, because they are still used for garbage collection
-                cache.remove(pos);
+                cache.remove(cacheId, pos);
+                if (offHeapCache != null)
+                    offHeapCache.remove(offHeapPages, pos);
             }
         }
     }
 
+    public BTreeCompactionService getCompactionService() {
+        return compactionService;
+    }
+
+    public BTreeOffHeapPageCache getOffHeapPageCache() {
+        return offHeapCache;
+    }
+
     int getCompressionLevel() {
         return compressionLevel;
     }
@@ -394,8 +572,12 @@ public class BTreeStorage {
         return pageSplitSize;
     }
 
+    int getBulkLoadBufferSize() {
+        return bulkLoadBufferSize;
+    }
+
     /**
-     * Get the maximum cache size, in MB.
+     * Get the maximum size of the page cache shared by all maps, in MB.
      * 
      * @return the cache size
      */
@@ -407,26 +589,105 @@ public class BTreeStorage {
     }
 
     /**
-     * Set the read cache size in MB.
+     * Set the size of the page cache shared by all maps in MB, the pages of all maps are removed from the cache.
      * 
      * @param mb the cache size in MB.
      */
     public void setCacheSize(int mb) {
         if (cache != null) {
-            cache.setMaxMemory(mb * 1024 * 1024L);
-            cache.clear();
+            cache.resize(mb * 1024 * 1024L);
         }
     }
 
+    long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    BTreeBloomFilter createBloomFilter(Object[] keys) {
+        if (bloomFilterBitsPerKey <= 0 || keys.length == 0)
+            return null;
+        return BTreeBloomFilter.create(map.getKeyType(), keys, bloomFilterBitsPerKey);
+    }
+
+    long getBloomFilterNegatives() {
+        return bloomFilterNegatives.get();
+    }
+
+    long getBloomFilterFalsePositives() {
+        return bloomFilterFalsePositives.get();
+    }
+
+    long getZoneMapSkippedPages() {
+        return zoneMapSkippedPages.get();
+    }
+
     long getDiskSpaceUsed() {
         return FileUtils.folderSize(new File(btreeStoragePath));
     }
 
     long getMemorySpaceUsed() {
-        if (cache != null)
-            return cache.getUsedMemory();
-        else
-            return 0;
+        return cacheUsedMemory.get();
+    }
+
+    /**
+     * Backup all chunk files and the chunkMetaData file of this map without closing the storage.
+     * <p>
+     * chunk文件写完之后就不会再修改，所以只需要在持有锁时确定当前的chunk集合和chunkMetaData，
+     * 然后在备份期间阻止后台压缩删除这些chunk，复制文件时不需要持有锁，其他会话可以继续读写和保存。
+     * 
+     * @param out the zip output stream
+     * @param entryNameBase the base name of the zip entries
+     * @param lastDate only backup the chunks created after this time, or null for a full backup
+     */
+    public void backupTo(ZipOutputStream out, String entryNameBase, Long lastDate) throws IOException {
+        List<Integer> chunkIds;
+        byte[] chunkMetaDataBytes;
+        synchronized (this) {
+            if (closed)
+                return;
+            chunkIds = getAllChunkIds();
+            chunkMetaDataBytes = chunkMetaData.toBytes();
+            backupCount++;
+        }
+        try {
+            for (int id : chunkIds) {
+                String chunkFileName = id + AOStorage.SUFFIX_AO_FILE;
+                String file = btreeStoragePath + File.separator + chunkFileName;
+                if (lastDate == null || FileUtils.lastModified(file) >= lastDate) {
+                    StorageBase.backupFile(out, FileUtils.newInputStream(file), entryNameBase + "/" + chunkFileName);
+                }
+            }
+            StorageBase.backupFile(out, new ByteArrayInputStream(chunkMetaDataBytes),
+                    entryNameBase + "/" + ChunkMetaData.FILE_NAME);
+        } finally {
+            synchronized (this) {
+                backupCount--;
+            }
+        }
+    }
+
+    /**
+     * Backup the files of a map that is not open, no lock is needed because nothing changes them.
+     *
+     * @param btreeStoragePath the directory of the map
+     * @param out the zip output stream
+     * @param entryNameBase the base name of the zip entries
+     * @param lastDate only backup the chunks created after this time, or null for a full backup
+     */
+    public static void backupTo(String btreeStoragePath, ZipOutputStream out, String entryNameBase, Long lastDate)
+            throws IOException {
+        for (FilePath file : FilePath.get(btreeStoragePath).newDirectoryStream()) {
+            String fileName = file.getName();
+            if (fileName.equals(ChunkMetaData.TEMP_FILE_NAME))
+                continue;
+            // 跟打开的map一样，增量备份时也总是包含chunkMetaData
+            if (lastDate == null || fileName.equals(ChunkMetaData.FILE_NAME) || file.lastModified() >= lastDate)
+                StorageBase.backupFile(out, file.newInputStream(), entryNameBase + "/" + fileName);
+        }
     }
 
     /**
@@ -469,17 +730,22 @@ public class BTreeStorage {
         if (!immediate)
             save();
         closed = true;
+        BTreeCompactionService.unregister(this);
         synchronized (this) {
             for (BTreeChunk c : chunks.values()) {
                 if (c.fileStorage != null)
                     c.fileStorage.close();
+                c.mappedBuffer = null;
+                removeCachedPages(c);
             }
             chunks.clear();
 
             // release memory early - this is important when called
             // because of out of memory
             if (cache != null)
-                cache.clear();
+                cache.removeStorage(cacheId);
+            if (offHeapCache != null)
+                BTreeOffHeapPageCache.unregister(this);
 
             chunkMetaData.close();
         }
@@ -519,10 +785,12 @@ public class BTreeStorage {
 
         try {
             executeSave(false);
-            new Compactor().executeCompact();
         } catch (IllegalStateException e) {
             throw panic(e);
         }
+        // 旧chunk由后台的BTreeCompactionService负责压缩，保存时只写脏页
+        if (chunkMetaData.hasRemovedPages())
+            compactionService.wakeUp();
     }
 
     synchronized void forceSave() {
@@ -533,76 +801,209 @@ public class BTreeStorage {
     }
 
     private void executeSave(boolean force) {
+        // 空的root page也要写，如果不写，rootPagePos会是0，重新打开时会报错
+        BTreeChunk c = writeChunk(Collections.singletonList(map.root));
+        chunkMetaData.update(c);
+    }
+
+    /**
+     * Write the unsaved pages to a new chunk without making it the last chunk,
+     * the map still opens from the old root page until the next save.
+     * 
+     * @param pages the pages to write
+     */
+    synchronized void writeDetachedChunk(List<BTreePage> pages) {
+        if (closed)
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_CLOSED, "This storage is closed");
+        writeChunk(pages);
+        chunkMetaData.endSave();
+    }
+
+    // 最后一个page的pos作为chunk的rootPagePos
+    private BTreeChunk writeChunk(List<BTreePage> pages) {
         int id = chunkIds.nextClearBit(1);
         chunkIds.set(id);
         BTreeChunk c = new BTreeChunk(id);
+        chunkMetaData.setSavingChunk(c);
         chunks.put(id, c);
+        c.fileStorage = getFileStorage(c.id);
 
-        BTreePage p = map.root;
-        DataBuffer buff = DataBuffer.create();
-        // 如果不写，rootPagePos会是0，重新打开时会报错
-        // if (p.getTotalCount() > 0 || force) {
-        p.writeUnsavedRecursive(c, buff);
-        c.rootPagePos = p.getPos();
-        // p.writeEnd();
-        // }
+        // 脏页边写边刷到chunk文件中，缓冲区的大小是有上限的并且可以重用，
+        // 所以保存时占用的内存不会随着脏页的数量增长
+        DataBuffer buff = DataBuffer.getOrCreate(CHUNK_WRITE_BUFFER_SIZE);
+        try {
+            for (BTreePage p : pages) {
+                p.writeUnsavedRecursive(c, buff);
+                c.rootPagePos = p.getPos();
+            }
 
-        c.pagePositionAndLengthOffset = buff.position();
-        for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-            buff.putLong(e.getKey()).putInt(e.getValue());
-        }
+            c.pagePositionAndLengthOffset = c.getOffset(buff.position());
+            for (int i = 0, size = c.pageCount; i < size; i++) {
+                buff.putLong(c.pagePositions[i]).putInt(c.pageLengths[i]);
+                writeChunkBody(c, buff, false);
+            }
 
-        int chunkBodyLength = buff.position();
-        chunkBodyLength = MathUtils.roundUpInt(chunkBodyLength, BLOCK_SIZE);
-        buff.limit(chunkBodyLength);
-        buff.position(0);
+            int chunkBodyLength = c.getOffset(buff.position());
+            int alignedLength = MathUtils.roundUpInt(chunkBodyLength, BLOCK_SIZE);
+            for (int i = chunkBodyLength; i < alignedLength; i++) {
+                buff.put((byte) 0);
+            }
+            writeChunkBody(c, buff, true);
 
-        c.blockCount = chunkBodyLength / BLOCK_SIZE + CHUNK_HEADER_BLOCKS; // include chunk header(2 blocks).
-        c.fileStorage = getFileStorage(c.id);
-        c.mapSize = map.size();
+            c.blockCount = alignedLength / BLOCK_SIZE + CHUNK_HEADER_BLOCKS; // include chunk header(2 blocks).
+            c.mapSize = map.size();
+        } finally {
+            buff.close();
+        }
 
-        // chunk header
+        // chunk body已经写完，最后再写chunk header
         writeChunkHeader(c);
-        // chunk body
-        write(c.fileStorage, CHUNK_HEADER_SIZE, buff.getBuffer());
         c.fileStorage.sync();
-        buff.close();
+        return c;
+    }
 
-        chunkMetaData.update(c);
+    /**
+     * Write the data of the buffer to the chunk body if the buffer is full, and then reuse the buffer.
+     * 
+     * @param c the chunk
+     * @param buff the write buffer
+     * @param force whether to write even if the buffer is not full
+     */
+    void writeChunkBody(BTreeChunk c, DataBuffer buff, boolean force) {
+        int length = buff.position();
+        if (length == 0 || (!force && length < CHUNK_WRITE_BUFFER_SIZE))
+            return;
+        // 每次只写按BLOCK_SIZE对齐的部分，剩下的移到缓冲区的开头，
+        // 这样写加密文件时不需要先读出未对齐的块
+        int writeLength = force ? length : length - length % BLOCK_SIZE;
+        ByteBuffer buffer = buff.getBuffer();
+        buffer.flip();
+        buffer.limit(writeLength);
+        write(c.fileStorage, getFilePos(c.writtenBodyLength), buffer);
+        buffer.limit(length);
+        buffer.compact();
+        c.writtenBodyLength += writeLength;
     }
 
-    // chunkMetaData文件保存上一个chunk的id以及所有已经删除的page的pos
+    // chunkMetaData文件保存上一个chunk的id以及每个chunk中已经删除的page，
+    // 已经删除的page用bitmap表示，每个bit对应chunk中的一个page，chunk中的page越多越省空间。
+    // 同时它也是chunk index，保存了每个chunk header中的字段和已删除page的总长度，
+    // 这样打开map和后台压缩时只需要读这一个小文件就知道每个chunk还有多少存活的数据，
+    // 不用逐个打开chunk文件读chunk header。每次都先写到临时文件再原子地替换，崩溃时不会只写了一半
     private class ChunkMetaData {
+        private static final String FILE_NAME = "chunkMetaData";
+        private static final String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+        // 老版本在lastChunkId后面是已删除page的个数，不会是负数，-2是没有chunk index的版本
+        private static final int FORMAT_VERSION = -3;
         /**
          * The newest chunk. If nothing was stored yet, this field is not set.
          */
         private BTreeChunk lastChunk;
-        private final TreeSet<Long> removedPages = new TreeSet<>();
-        private final RandomAccessFile chunkMetaDataFile;
+        private int lastChunkId;
+        private final String fileName;
+        // 还没有读取chunk header的chunk中已经删除的page
+        private final HashMap<Integer, long[]> pendingRemovedPages = new HashMap<>();
+        // chunk index中还没有打开的chunk，只有统计信息，没有fileStorage和page的pos
+        private final HashMap<Integer, BTreeChunk> indexedChunks = new HashMap<>();
+        // 老版本的格式保存的已删除page的pos
+        private long[] oldRemovedPages;
+        private int removedPageCount;
+        // 正在保存的chunk还在追加page，保存期间这个chunk中被删除的page先放在这里，保存完再处理，这种情况很少
+        private BTreeChunk savingChunk;
+        private final ArrayList<Long> savingChunkRemovedPages = new ArrayList<>();
 
         private ChunkMetaData() {
-            String file = btreeStoragePath + File.separator + "chunkMetaData";
-            try {
-                chunkMetaDataFile = new RandomAccessFile(file, "rw");
-                if (chunkMetaDataFile.length() <= 0)
-                    return;
-                int lastChunkId = chunkMetaDataFile.readInt();
-                int removedPagesCount = chunkMetaDataFile.readInt();
-                for (int i = 0; i < removedPagesCount; i++)
-                    removedPages.add(chunkMetaDataFile.readLong());
-                readLastChunk(lastChunkId);
+            fileName = btreeStoragePath + File.separator + FILE_NAME;
+            FileUtils.delete(btreeStoragePath + File.separator + TEMP_FILE_NAME); // 上次没写完的临时文件
+            if (!FileUtils.exists(fileName))
+                return;
+            // 整个文件一次读到内存中再解析，chunk很多时也只有一次读操作
+            byte[] bytes;
+            try (RandomAccessFile chunkMetaDataFile = new RandomAccessFile(fileName, "r")) {
+                bytes = new byte[(int) chunkMetaDataFile.length()];
+                chunkMetaDataFile.readFully(bytes);
             } catch (IOException e) {
-                throw panic(DataUtils.ERROR_READING_FAILED, "Failed to read chunkMetaData: {0}", file, e);
+                throw panic(DataUtils.ERROR_READING_FAILED, "Failed to read chunkMetaData: {0}", fileName, e);
+            }
+            if (bytes.length <= 0)
+                return;
+            ByteBuffer buff = ByteBuffer.wrap(bytes);
+            lastChunkId = buff.getInt();
+            int format = buff.getInt();
+            if (format >= 0) {
+                oldRemovedPages = new long[format];
+                for (int i = 0; i < format; i++)
+                    oldRemovedPages[i] = buff.getLong();
+            } else {
+                int chunkCount = buff.getInt();
+                for (int i = 0; i < chunkCount; i++) {
+                    int chunkId = buff.getInt();
+                    BTreeChunk c = null;
+                    if (format <= -3)
+                        c = readIndexedChunk(buff, chunkId);
+                    long[] removedPages = new long[buff.getInt()];
+                    for (int j = 0; j < removedPages.length; j++)
+                        removedPages[j] = buff.getLong();
+                    // 已经删除的chunk文件在崩溃前可能还没来得及从chunk index中去掉
+                    if (c != null && !chunkIds.get(chunkId))
+                        continue;
+                    if (c != null)
+                        indexedChunks.put(chunkId, c);
+                    if (removedPages.length > 0)
+                        pendingRemovedPages.put(chunkId, removedPages);
+                    for (long bits : removedPages)
+                        removedPageCount += Long.bitCount(bits);
+                }
             }
         }
 
-        private void readLastChunk(int lastChunkId) {
+        // pageCount小于0说明没有这个chunk的统计信息，比如从老版本升级后还没有读过它的chunk header
+        private BTreeChunk readIndexedChunk(ByteBuffer buff, int chunkId) {
+            int pageCount = buff.getInt();
+            if (pageCount < 0)
+                return null;
+            BTreeChunk c = new BTreeChunk(chunkId);
+            c.pageCount = pageCount;
+            c.rootPagePos = buff.getLong();
+            c.blockCount = buff.getInt();
+            c.sumOfPageLength = buff.getLong();
+            c.pagePositionAndLengthOffset = buff.getInt();
+            c.mapSize = buff.getLong();
+            c.removedPageCount = buff.getInt();
+            c.sumOfRemovedPageLength = buff.getLong();
+            return c;
+        }
+
+        private void writeIndexedChunk(ByteBuffer buff, BTreeChunk c) {
+            if (c == null) {
+                buff.putInt(-1);
+                return;
+            }
+            buff.putInt(c.pageCount);
+            buff.putLong(c.rootPagePos);
+            buff.putInt(c.blockCount);
+            buff.putLong(c.sumOfPageLength);
+            buff.putInt(c.pagePositionAndLengthOffset);
+            buff.putLong(c.mapSize);
+            buff.putInt(c.removedPageCount);
+            buff.putLong(c.sumOfRemovedPageLength);
+        }
+
+        private void readLastChunk() {
             try {
                 if (lastChunkId > 0) {
                     lastChunk = readChunkHeader(lastChunkId);
                 } else {
                     lastChunk = null;
                 }
+                if (oldRemovedPages != null) {
+                    for (long pos : oldRemovedPages) {
+                        int chunkId = PageUtils.getPageChunkId(pos);
+                        if (chunks.containsKey(chunkId) || chunkIds.get(chunkId))
+                            addRemovedPage(getChunk(pos), pos);
+                    }
+                    oldRemovedPages = null;
+                }
             } catch (IllegalStateException e) {
                 throw panic(e);
             } catch (Exception e) {
@@ -614,180 +1015,232 @@ public class BTreeStorage {
             return lastChunk;
         }
 
-        private synchronized TreeSet<Long> getRemovedPages() {
-            return removedPages;
+        private synchronized void readRemovedPages(BTreeChunk c) {
+            long[] removedPages = pendingRemovedPages.remove(c.id);
+            if (removedPages != null)
+                c.setRemovedPages(removedPages);
         }
 
-        private synchronized void addRemovedPage(long pagePos) {
-            removedPages.add(pagePos);
+        private synchronized BTreeChunk removeIndexedChunk(int chunkId) {
+            return indexedChunks.remove(chunkId);
         }
 
-        private synchronized void update(BTreeChunk lastChunk) {
-            this.lastChunk = lastChunk;
-            write();
+        // 不在chunk index中的chunk只能读了chunk header才知道是否还有存活的page
+        private synchronized List<Integer> getPendingChunkIds() {
+            ArrayList<Integer> ids = new ArrayList<>();
+            for (int id : pendingRemovedPages.keySet()) {
+                if (!indexedChunks.containsKey(id))
+                    ids.add(id);
+            }
+            return ids;
         }
 
-        private synchronized void update(TreeSet<Long> removedPages) {
-            this.removedPages.clear();
-            this.removedPages.addAll(removedPages);
-            write();
+        private synchronized List<BTreeChunk> getIndexedChunks() {
+            return new ArrayList<>(indexedChunks.values());
         }
 
-        private synchronized void write() {
-            try {
-                chunkMetaDataFile.setLength(0);
-                chunkMetaDataFile.seek(0);
-                chunkMetaDataFile.writeInt(lastChunk == null ? 0 : lastChunk.id);
-                chunkMetaDataFile.writeInt(removedPages.size());
-                for (long pos : removedPages) {
-                    chunkMetaDataFile.writeLong(pos);
-                }
-                chunkMetaDataFile.getFD().sync();
-            } catch (IOException e) {
-                throw panic(DataUtils.ERROR_WRITING_FAILED, "Failed to write chunkMetaData", e);
-            }
+        private synchronized boolean hasRemovedPages() {
+            return removedPageCount > 0;
         }
 
-        private synchronized void close() {
-            try {
-                chunkMetaDataFile.close();
-            } catch (IOException e) {
-            }
-            removedPages.clear();
+        private synchronized boolean isRemovedPage(BTreeChunk c, int index) {
+            return c.isRemovedPage(index);
         }
-    }
 
-    /**
-     * Try to increase the fill rate by re-writing partially full chunks. 
-     * Chunks with a low number of live items are re-written.
-     * <p>
-     * If the current fill rate is higher than the minimum fill rate, nothing is done.
-     */
-    private class Compactor {
+        private synchronized void addRemovedPage(BTreeChunk c, long pagePos) {
+            if (c == savingChunk)
+                savingChunkRemovedPages.add(pagePos);
+            else if (c.removePage(pagePos))
+                removedPageCount++;
+        }
 
-        private void executeCompact() {
-            TreeSet<Long> removedPages = chunkMetaData.getRemovedPages();
-            if (removedPages.isEmpty())
-                return;
+        private synchronized void setSavingChunk(BTreeChunk c) {
+            savingChunk = c;
+        }
 
-            removeUnusedChunks(removedPages);
+        private synchronized void update(BTreeChunk lastChunk) {
+            this.lastChunk = lastChunk;
+            endSave();
+            write();
+        }
 
-            if (minFillRate <= 0)
-                return;
+        private synchronized void endSave() {
+            BTreeChunk c = savingChunk;
+            savingChunk = null;
+            for (long pagePos : savingChunkRemovedPages)
+                addRemovedPage(c, pagePos);
+            savingChunkRemovedPages.clear();
+        }
 
-            if (!removedPages.isEmpty()) {
-                List<BTreeChunk> old = getOldChunks();
-                if (!old.isEmpty()) {
-                    boolean saveIfNeeded = rewrite(old, removedPages);
-                    if (saveIfNeeded) {
-                        executeSave(false);
-                        removedPages = chunkMetaData.getRemovedPages();
-                        removeUnusedChunks(removedPages);
-                    }
-                }
+        private synchronized void removeChunks(List<BTreeChunk> removedChunks) {
+            for (BTreeChunk c : removedChunks) {
+                removedPageCount -= c.removedPageCount;
+                pendingRemovedPages.remove(c.id);
+                indexedChunks.remove(c.id);
             }
+            write();
         }
 
-        private void removeUnusedChunks(TreeSet<Long> removedPages) {
-            int size = removedPages.size();
-            for (BTreeChunk c : findUnusedChunks(removedPages)) {
-                c.fileStorage.close();
-                c.fileStorage.delete();
-                chunks.remove(c.id);
-                chunkIds.clear(c.id);
-                removedPages.removeAll(c.pagePositionToLengthMap.keySet());
+        private synchronized byte[] toBytes() {
+            HashMap<Integer, BTreeChunk> indexedChunks = new HashMap<>(this.indexedChunks);
+            for (BTreeChunk c : chunks.values()) {
+                if (c != savingChunk) // 正在保存的chunk等保存完再加进来
+                    indexedChunks.put(c.id, c);
+            }
+            HashMap<Integer, long[]> removedPages = new HashMap<>(pendingRemovedPages);
+            for (BTreeChunk c : chunks.values()) {
+                if (c.removedPageCount > 0)
+                    removedPages.put(c.id, c.getRemovedPages());
+            }
+            HashSet<Integer> ids = new HashSet<>(indexedChunks.keySet());
+            ids.addAll(removedPages.keySet());
+            int size = 4 + 4 + 4;
+            for (int id : ids) {
+                long[] bits = removedPages.get(id);
+                size += 4 + (4 + 8 + 4 + 8 + 4 + 8 + 4 + 8) + 4 + (bits == null ? 0 : bits.length * 8);
             }
+            ByteBuffer buff = ByteBuffer.allocate(size);
+            buff.putInt(lastChunk == null ? 0 : lastChunk.id);
+            buff.putInt(FORMAT_VERSION);
+            buff.putInt(ids.size());
+            for (int id : ids) {
+                buff.putInt(id);
+                writeIndexedChunk(buff, indexedChunks.get(id));
+                long[] bits = removedPages.get(id);
+                if (bits == null) {
+                    buff.putInt(0);
+                } else {
+                    buff.putInt(bits.length);
+                    for (long b : bits)
+                        buff.putLong(b);
+                }
+            }
+            buff.flip();
+            byte[] bytes = new byte[buff.limit()];
+            buff.get(bytes);
+            return bytes;
+        }
 
-            if (size > removedPages.size()) {
-                chunkMetaData.update(removedPages);
+        private synchronized void write() {
+            String tempFileName = btreeStoragePath + File.separator + TEMP_FILE_NAME;
+            try (RandomAccessFile tempFile = new RandomAccessFile(tempFileName, "rw")) {
+                tempFile.setLength(0);
+                tempFile.write(toBytes());
+                tempFile.getFD().sync();
+            } catch (IOException e) {
+                throw panic(DataUtils.ERROR_WRITING_FAILED, "Failed to write chunkMetaData", e);
             }
+            FileUtils.moveAtomicReplace(tempFileName, fileName);
         }
 
-        private ArrayList<BTreeChunk> findUnusedChunks(TreeSet<Long> removedPages) {
-            ArrayList<BTreeChunk> unusedChunks = new ArrayList<>();
-            if (removedPages.isEmpty())
-                return unusedChunks;
+        private synchronized void close() {
+            pendingRemovedPages.clear();
+            indexedChunks.clear();
+        }
+    }
+
+    ///////////////////// 以下方法由BTreeCompactionService在后台调用 /////////////////////
 
-            readAllChunks();
+    BTreeMap<Object, Object> getMap() {
+        return map;
+    }
 
+    /**
+     * Remove the chunks that have no live pages.
+     * 
+     * @return the removed chunks
+     */
+    synchronized List<BTreeChunk> removeUnusedChunks() {
+        if (closed || backupCount > 0 || !chunkMetaData.hasRemovedPages())
+            return Collections.emptyList();
+
+        // 只有包含已删除page的chunk才可能被删除或重写，其他chunk不需要读，
+        // chunk index中的chunk也不需要读，直接用它的统计信息
+        for (int id : chunkMetaData.getPendingChunkIds()) {
+            if (!chunks.containsKey(id))
+                readChunkHeader(id);
+        }
+        ArrayList<BTreeChunk> unusedChunks = new ArrayList<>();
+        BTreeChunk lastChunk = chunkMetaData.getLastChunk();
+        synchronized (chunkMetaData) {
             for (BTreeChunk c : chunks.values()) {
-                c.sumOfLivePageLength = 0;
-                boolean unused = true;
-                for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-                    if (!removedPages.contains(e.getKey())) {
-                        c.sumOfLivePageLength += e.getValue();
-                        unused = false;
-                    }
-                }
-                if (unused)
+                if (c != lastChunk && c.isUnused())
+                    unusedChunks.add(c);
+            }
+            for (BTreeChunk c : chunkMetaData.getIndexedChunks()) {
+                if (c.isUnused())
                     unusedChunks.add(c);
             }
-            return unusedChunks;
         }
+        if (unusedChunks.isEmpty())
+            return unusedChunks;
 
-        private void readAllChunks() {
-            for (int id : getAllChunkIds()) {
-                if (!chunks.containsKey(id)) {
-                    readChunkHeader(id);
-                }
-            }
-            for (BTreeChunk c : chunks.values()) {
-                readPagePositions(c);
+        for (BTreeChunk c : unusedChunks) {
+            if (c.fileStorage != null) {
+                c.fileStorage.close();
+                c.fileStorage.delete();
+            } else {
+                FileUtils.delete(getChunkFileName(c.id)); // 没有打开过的chunk
             }
+            c.mappedBuffer = null;
+            removeCachedPages(c);
+            chunks.remove(c.id);
+            chunkIds.clear(c.id);
         }
+        chunkMetaData.removeChunks(unusedChunks);
+        return unusedChunks;
+    }
 
-        private List<BTreeChunk> getOldChunks() {
-            long maxBytesToWrite = BTreeChunk.MAX_SIZE;
-            List<BTreeChunk> old = new ArrayList<>();
+    /**
+     * Get the chunks whose fill rate is not higher than the minimum fill rate.
+     * 
+     * @return the old chunks
+     */
+    synchronized List<BTreeChunk> getOldChunks() {
+        List<BTreeChunk> old = new ArrayList<>();
+        if (closed || minFillRate <= 0 || !chunkMetaData.hasRemovedPages())
+            return old;
+        ArrayList<Integer> indexedOldChunkIds = new ArrayList<>();
+        synchronized (chunkMetaData) {
             for (BTreeChunk c : chunks.values()) {
-                if (c.getFillRate() > minFillRate)
-                    continue;
-                old.add(c);
+                if (c.removedPageCount > 0 && c.getFillRate() <= minFillRate)
+                    old.add(c);
             }
-            if (old.isEmpty())
-                return old;
+            for (BTreeChunk c : chunkMetaData.getIndexedChunks()) {
+                if (c.removedPageCount > 0 && c.getFillRate() <= minFillRate)
+                    indexedOldChunkIds.add(c.id);
+            }
+        }
+        // 只有要重写的chunk才需要打开
+        for (int id : indexedOldChunkIds) {
+            old.add(readChunkHeader(id));
+        }
+        return old;
+    }
 
-            Collections.sort(old, new Comparator<BTreeChunk>() {
-                @Override
-                public int compare(BTreeChunk o1, BTreeChunk o2) {
-                    long comp = o1.getFillRate() - o2.getFillRate();
-                    if (comp == 0) {
-                        comp = o1.sumOfLivePageLength - o2.sumOfLivePageLength;
-                    }
-                    return Long.signum(comp);
-                }
-            });
-
-            long bytes = 0;
-            int index = 0;
-            int size = old.size();
-            for (; index < size; index++) {
-                bytes += old.get(index).sumOfLivePageLength;
-                if (bytes > maxBytesToWrite)
-                    break;
-            }
-            return index == size ? old : old.subList(0, index + 1);
-        }
-
-        private boolean rewrite(List<BTreeChunk> old, TreeSet<Long> removedPages) {
-            boolean saveIfNeeded = false;
-            for (BTreeChunk c : old) {
-                for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-                    long pos = e.getKey();
-                    if (PageUtils.isLeafPage(pos)) {
-                        if (!removedPages.contains(pos)) {
-                            BTreePage p = readPage(pos);
-                            if (p.getKeyCount() > 0) {
-                                Object key = p.getKey(0);
-                                Object value = map.get(key);
-                                if (value != null && map.replace(key, value, value))
-                                    saveIfNeeded = true;
-                            }
-                        }
-                    }
+    /**
+     * Re-write the live leaf pages of the chunk, they will be saved in a new chunk at the next save.
+     * 不持有storage的锁，其他会话可以继续读写和保存。
+     * 
+     * @param c the chunk
+     * @return the number of bytes re-written
+     */
+    long rewrite(BTreeChunk c) {
+        long bytes = 0;
+        for (int i = 0, size = c.pageCount; i < size; i++) {
+            if (closed || chunks.get(c.id) != c)
+                break;
+            long pos = c.pagePositions[i];
+            if (PageUtils.isLeafPage(pos) && !chunkMetaData.isRemovedPage(c, i)) {
+                BTreePage p = readPage(pos);
+                if (p.getKeyCount() > 0) {
+                    Object key = p.getKey(0);
+                    Object value = map.get(key);
+                    if (value != null && map.replace(key, value, value))
+                        bytes += c.pageLengths[i];
                 }
             }
-            return saveIfNeeded;
         }
+        return bytes;
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.aose.btree;
+
+import java.nio.ByteBuffer;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+import org.lealone.storage.ColumnFilter;
+import org.lealone.storage.type.StorageDataType;
+
+/**
+ * 一个column page的zone map，记录了列的最小值、最大值和null值的个数，写column page时生成，保存在leaf page中，
+ * 这样扫描时不用读column page就能知道leaf page里肯定没有满足条件的记录。
+ *
+ * @author zhh
+ */
+class BTreeZoneMap {
+
+    // 太长的值不记录最小值和最大值，避免leaf page变得太大
+    private static final int MAX_VALUE_MEMORY = 256;
+
+    private final int rowCount;
+    private final int nullCount;
+    private final Value min; // 为null时说明没有记录不是null值的范围
+    private final Value max;
+
+    private BTreeZoneMap(int rowCount, int nullCount, Value min, Value max) {
+        this.rowCount = rowCount;
+        this.nullCount = nullCount;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Create the zone map of a column.
+     *
+     * @param valueType the value type
+     * @param values the values of the leaf page
+     * @param columnIndex the column index
+     * @return the zone map, or null if a column value is unknown
+     */
+    static BTreeZoneMap create(StorageDataType valueType, Object[] values, int columnIndex) {
+        int nullCount = 0;
+        Value min = null, max = null;
+        boolean hasRange = true;
+        for (Object value : values) {
+            Value v = valueType.getColumn(value, columnIndex);
+            if (v == null)
+                return null;
+            if (v == ValueNull.INSTANCE) {
+                nullCount++;
+                continue;
+            }
+            if (!hasRange)
+                continue;
+            if (!isComparable(v)) {
+                hasRange = false;
+                min = max = null;
+                continue;
+            }
+            if (min == null) {
+                min = max = v;
+            } else if (v.getType() != min.getType()) {
+                hasRange = false;
+                min = max = null;
+            } else if (valueType.compareColumn(v, min) < 0) {
+                min = v;
+            } else if (valueType.compareColumn(v, max) > 0) {
+                max = v;
+            }
+        }
+        return new BTreeZoneMap(values.length, nullCount, min, max);
+    }
+
+    private static boolean isComparable(Value v) {
+        switch (v.getType()) {
+        case Value.BLOB:
+        case Value.CLOB:
+        case Value.JAVA_OBJECT:
+        case Value.ARRAY:
+        case Value.RESULT_SET:
+            return false;
+        default:
+            return v.getMemory() <= MAX_VALUE_MEMORY;
+        }
+    }
+
+    /**
+     * Check whether some rows of the column page may match the filter.
+     *
+     * @param valueType the value type
+     * @param filter the column filter
+     * @return false if no row matches the filter
+     */
+    boolean mayMatch(StorageDataType valueType, ColumnFilter filter) {
+        if (filter.isNull)
+            return nullCount > 0;
+        if (nullCount == rowCount) // 范围条件不匹配null值
+            return false;
+        if (min == null)
+            return true;
+        Value fMin = filter.min;
+        if (fMin != null && fMin != ValueNull.INSTANCE && fMin.getType() == max.getType()
+                && valueType.compareColumn(max, fMin) < 0)
+            return false;
+        Value fMax = filter.max;
+        if (fMax != null && fMax != ValueNull.INSTANCE && fMax.getType() == min.getType()
+                && valueType.compareColumn(min, fMax) > 0)
+            return false;
+        return true;
+    }
+
+    int getMemory() {
+        int memory = 24;
+        if (min != null)
+            memory += min.getMemory() + max.getMemory();
+        return memory;
+    }
+
+    void write(DataBuffer buff) {
+        buff.putVarInt(nullCount);
+        if (min == null) {
+            buff.put((byte) 0);
+        } else {
+            buff.put((byte) 1);
+            buff.writeValue(min);
+            buff.writeValue(max);
+        }
+    }
+
+    static BTreeZoneMap read(ByteBuffer buff, int rowCount) {
+        int nullCount = DataUtils.readVarInt(buff);
+        Value min = null, max = null;
+        if (buff.get() == 1) {
+            min = DataBuffer.readValue(buff);
+            max = DataBuffer.readValue(buff);
+        }
+        return new BTreeZoneMap(rowCount, nullCount, min, max);
+    }
+}
@@ -8,6 +8,7 @@ package org.lealone.storage.aose.btree;
 import java.util.concurrent.Callable;
 
 import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.DataUtils;
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
 import org.lealone.storage.PageKey;
@@ -188,10 +189,20 @@ public abstract class PageOperations {
                 splitLeafPage(p);
                 return PageOperationResult.SPLITTING;
             } else {
+                if (isShiftEnabled)
+                    handOverIfRequested(currentHandler);
                 return PageOperationResult.SUCCEEDED;
             }
         }
 
+        // 当前处理器太忙时，如果有空闲的处理器请求接管，就把刚写过的leaf page交给它，
+        // 越热的leaf page越容易被选中，这里是在当前处理器的线程中修改的，不会跟其他写操作冲突
+        private void handOverIfRequested(PageOperationHandler currentHandler) {
+            PageOperationHandler stealer = currentHandler.takeStealRequest();
+            if (stealer != null && p.getRef() != null && p.getHandler() == currentHandler)
+                p.setHandler(stealer);
+        }
+
         @SuppressWarnings("unchecked")
         private void handleAsyncResult(Object result) {
             AsyncResult<R> ar = new AsyncResult<>();
@@ -293,6 +304,10 @@ public abstract class PageOperations {
 
         @Override
         protected Object writeLocal(int index) {
+            if (index >= 0) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Append key {0} already exists",
+                        key);
+            }
             markDirtyPages();
             insertLeaf(index, value);
             return key;
@@ -300,6 +315,9 @@ public abstract class PageOperations {
 
         @Override
         protected BTreePage gotoLeafPage() { // 直接定位到最后一页
+            // 每个线程预留一段key时，新的key不一定是最大的，要像put一样按key定位
+            if (map.isAppendKeyBlockEnabled())
+                return super.gotoLeafPage();
             BTreePage p = map.root;
             while (true) {
                 if (p.isLeaf()) {
@@ -312,6 +330,8 @@ public abstract class PageOperations {
 
         @Override
         protected int getKeyIndex() {
+            if (map.isAppendKeyBlockEnabled())
+                return super.getKeyIndex();
             return -(p.getKeyCount() + 1);
         }
 
@@ -415,11 +435,14 @@ public abstract class PageOperations {
             if (parent.needSplit()) {
                 // node page的切割直接由单一的node page处理器处理，不会产生并发问题
                 TmpNodePage tmp = splitPage(parent);
+                // 还没有读到内存中的子节点在getChildPage时再设置parentRef
                 for (PageReference ref : tmp.left.page.getChildren()) {
-                    ref.page.setParentRef(tmp.left.page.getRef());
+                    if (ref.page != null)
+                        ref.page.setParentRef(tmp.left.page.getRef());
                 }
                 for (PageReference ref : tmp.right.page.getChildren()) {
-                    ref.page.setParentRef(tmp.right.page.getRef());
+                    if (ref.page != null)
+                        ref.page.setParentRef(tmp.right.page.getRef());
                 }
                 // 如果是root node page，那么直接替换
                 if (parent.getParentRef() == null) {
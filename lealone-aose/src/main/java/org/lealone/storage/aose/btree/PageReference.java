@@ -31,6 +31,7 @@ public class PageReference {
     PageKey pageKey;
     long pos;
     List<String> replicationHostIds;
+    BTreeBloomFilter bloomFilter; // 只有leaf page才有，page没有读到内存中时用它判断key是否肯定不存在
 
     public PageReference(long pos) {
         this.pos = pos;
@@ -49,6 +50,7 @@ public class PageReference {
         if (page != null) {
             pos = page.getPos();
             replicationHostIds = page.getReplicationHostIds();
+            bloomFilter = page.getBloomFilter();
         }
     }
 
@@ -67,6 +69,7 @@ public class PageReference {
         if (page != null) {
             pos = page.getPos();
             replicationHostIds = page.getReplicationHostIds();
+            bloomFilter = page.getBloomFilter();
         }
     }
 
@@ -37,6 +37,22 @@ public class PageUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for pages whose keys are written in a compact form.
+     */
+    public static final int PAGE_COMPACT_KEYS = 8;
+
+    /**
+     * The bit mask for column storage leaf pages that have the zone maps of their column pages.
+     */
+    public static final int PAGE_ZONE_MAPS = 16;
+
+    /**
+     * The bit mask in the compress type byte of column pages whose column values are
+     * written with a lightweight encoding.
+     */
+    public static final int PAGE_COLUMN_ENCODED = 32;
+
     /**
      * The estimated number of bytes used per page object.
      */
@@ -7,11 +7,10 @@ package org.lealone.transaction.aote;
 
 import java.sql.Connection;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
@@ -32,8 +31,6 @@ import org.lealone.transaction.aote.log.UndoLog;
 
 public class AMTransaction implements Transaction {
 
-    private static final LinkedList<WaitingTransaction> EMPTY_LINKED_LIST = new LinkedList<>();
-
     // 以下几个public或包级别的字段是在其他地方频繁使用的，
     // 为了使用方便或节省一点点性能开销就不通过getter方法访问了
     final AMTransactionEngine transactionEngine;
@@ -56,9 +53,11 @@ public class AMTransaction implements Transaction {
     // 被哪个事务锁住记录了
     private volatile AMTransaction lockedBy;
     private long lockStartTime;
-    // 有哪些事务在等待我释放锁
-    private final AtomicReference<LinkedList<WaitingTransaction>> waitingTransactionsRef = new AtomicReference<>(
-            EMPTY_LINKED_LIST);
+    // 被死锁检测器选为牺牲者时的死锁信息
+    private volatile String deadlockMsg;
+    // 有哪些事务在等待我释放锁，按等待的先后顺序唤醒，
+    // 热点记录上可能有很多事务在等，所以用无锁队列，增加和删除时都不需要复制整个队列
+    private final ConcurrentLinkedQueue<WaitingTransaction> waitingTransactions = new ConcurrentLinkedQueue<>();
 
     private final ConcurrentHashMap<TransactionalValue, TransactionalValue.LockOwner> tValues = new ConcurrentHashMap<>();
 
@@ -313,10 +312,14 @@ public class AMTransaction implements Transaction {
         t.endTransaction(false);
         undoLog.unlock();
         wakeUpWaitingTransactions();
-        undoLog.gc();
+        // 最老的快照事务结束后，更老的版本就可以回收了
+        if (t.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ)
+            transactionEngine.updateOldValueWatermark();
+        undoLog.gc(transactionEngine);
     }
 
     private void endTransaction(boolean remove) {
+        transactionEngine.getDeadlockDetector().removeEdge(this);
         savepoints = null;
         undoLog = null;
         status = STATUS_CLOSED;
@@ -324,17 +327,13 @@ public class AMTransaction implements Transaction {
             transactionEngine.removeTransaction(transactionId);
     }
 
+    // 事务结束后才会调用，此时所有记录的锁都释放了，所以要唤醒所有等待的事务
     private void wakeUpWaitingTransactions() {
-        LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
-        while (true) {
-            if (waitingTransactions != null && waitingTransactions != EMPTY_LINKED_LIST) {
-                for (WaitingTransaction waitingTransaction : waitingTransactions) {
-                    waitingTransaction.wakeUp();
-                }
-            }
-            if (waitingTransactionsRef.compareAndSet(waitingTransactions, null))
-                break;
-            waitingTransactions = waitingTransactionsRef.get();
+        DeadlockDetector detector = transactionEngine.getDeadlockDetector();
+        WaitingTransaction waitingTransaction;
+        while ((waitingTransaction = waitingTransactions.poll()) != null) {
+            detector.removeEdge((AMTransaction) waitingTransaction.getTransaction(), this);
+            waitingTransaction.wakeUp();
         }
         lockedBy = null;
     }
@@ -374,21 +373,13 @@ public class AMTransaction implements Transaction {
     }
 
     void wakeUpWaitingTransaction(AMTransaction transaction) {
-        while (true) {
-            LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
-            LinkedList<WaitingTransaction> newWaitingTransactions = new LinkedList<>(waitingTransactions);
-            WaitingTransaction target = null;
-            for (WaitingTransaction wt : newWaitingTransactions) {
-                if (wt.getTransaction() == transaction) {
-                    target = wt;
-                    break;
+        for (WaitingTransaction wt : waitingTransactions) {
+            if (wt.getTransaction() == transaction) {
+                // 只有成功从队列中删除的线程才能唤醒它，避免跟wakeUpWaitingTransactions重复唤醒
+                if (waitingTransactions.remove(wt)) {
+                    transactionEngine.getDeadlockDetector().removeEdge(transaction, this);
+                    wt.wakeUp();
                 }
-            }
-            if (target == null)
-                return;
-            newWaitingTransactions.remove(target);
-            if (waitingTransactionsRef.compareAndSet(waitingTransactions, newWaitingTransactions)) {
-                target.wakeUp();
                 return;
             }
         }
@@ -401,22 +392,20 @@ public class AMTransaction implements Transaction {
         transaction.setStatus(STATUS_WAITING);
         transaction.waitFor(this);
         WaitingTransaction wt = new WaitingTransaction(key, transaction, listener);
-        LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
-        while (true) {
-            // 如果已经提交了，通知重试
-            if (status == STATUS_CLOSED) {
-                transaction.setStatus(STATUS_OPEN);
-                transaction.waitFor(null);
-                session.setStatus(oldSessionStatus);
-                return OPERATION_NEED_RETRY;
-            }
-            LinkedList<WaitingTransaction> newWaitingTransactions = new LinkedList<>(waitingTransactions);
-            newWaitingTransactions.add(wt);
-            if (waitingTransactionsRef.compareAndSet(waitingTransactions, newWaitingTransactions)) {
-                return OPERATION_NEED_WAIT;
-            }
-            waitingTransactions = waitingTransactionsRef.get();
+        // 要在加入等待队列之前加到等待图中，否则被唤醒后才加进去就删不掉了
+        DeadlockDetector detector = transactionEngine.getDeadlockDetector();
+        detector.addEdge(transaction, this, key);
+        waitingTransactions.add(wt);
+        // 先加入队列再检查状态，事务结束时是先改状态再唤醒，所以两边至少有一边能看到对方。
+        // 如果已经提交了并且自己从队列中删除成功(说明还没有被唤醒)，通知重试
+        if (status == STATUS_CLOSED && waitingTransactions.remove(wt)) {
+            detector.removeEdge(transaction, this);
+            transaction.setStatus(STATUS_OPEN);
+            transaction.waitFor(null);
+            session.setStatus(oldSessionStatus);
+            return OPERATION_NEED_RETRY;
         }
+        return OPERATION_NEED_WAIT;
     }
 
     private void waitFor(AMTransaction transaction) {
@@ -424,49 +413,32 @@ public class AMTransaction implements Transaction {
         lockStartTime = System.currentTimeMillis();
     }
 
+    boolean isDeadlockVictim() {
+        return deadlockMsg != null;
+    }
+
+    void setDeadlockVictim(String msg) {
+        deadlockMsg = msg;
+    }
+
+    // 由调度器周期性地调用，死锁由DeadlockDetector在后台检测，这里只负责抛出异常让调度器回滚事务
     @Override
     public void checkTimeout() {
-        if (lockedBy != null)
-            return;
+        if (deadlockMsg != null)
+            throw DbException.get(ErrorCode.DEADLOCK_1, deadlockMsg);
+        AMTransaction lockedBy = this.lockedBy;
         if (lockedBy != null && lockStartTime != 0
                 && System.currentTimeMillis() - lockStartTime > session.getLockTimeout()) {
-            boolean isDeadlock = false;
-            WaitingTransaction waitingTransaction = null;
-            LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
-            if (waitingTransactions == null)
-                return;
-            for (WaitingTransaction wt : waitingTransactions) {
-                if (wt.getTransaction() == lockedBy) {
-                    isDeadlock = true;
-                    waitingTransaction = wt;
-                    break;
-                }
-            }
-            waitingTransactions = lockedBy.waitingTransactionsRef.get();
-            if (waitingTransactions == null)
+            DeadlockDetector.WaitEdge edge = transactionEngine.getDeadlockDetector().getEdge(this);
+            if (edge == null) // 已经被唤醒了
                 return;
-            WaitingTransaction waitingTransaction2 = null;
-            for (WaitingTransaction wt : waitingTransactions) {
-                if (wt.getTransaction() == this) {
-                    waitingTransaction2 = wt;
-                    break;
-                }
-            }
-            if (isDeadlock) {
-                String msg = getMsg(transactionId, session, lockedBy, waitingTransaction2);
-                msg += "\r\n" + getMsg(lockedBy.transactionId, lockedBy.session, this, waitingTransaction);
-                throw DbException.get(ErrorCode.DEADLOCK_1, msg);
-            } else {
-                String msg = getMsg(transactionId, session, lockedBy, waitingTransaction2);
-                throw DbException.get(ErrorCode.LOCK_TIMEOUT_1, msg);
-            }
+            throw DbException.get(ErrorCode.LOCK_TIMEOUT_1, getMsg(this, edge.holder, edge.key));
         }
     }
 
-    private static String getMsg(long tid, Session session, AMTransaction transaction,
-            WaitingTransaction waitingTransaction) {
-        return "transaction #" + tid + " in session " + session + " wait for transaction #" + transaction.transactionId
-                + " in session " + transaction.session + ", key: " + waitingTransaction.getKey();
+    static String getMsg(AMTransaction waiter, AMTransaction holder, Object key) {
+        return "transaction #" + waiter.transactionId + " in session " + waiter.session + " wait for transaction #"
+                + holder.transactionId + " in session " + holder.session + ", key: " + key;
     }
 
     @Override
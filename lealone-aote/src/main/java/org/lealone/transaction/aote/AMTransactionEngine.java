@@ -5,19 +5,26 @@
  */
 package org.lealone.transaction.aote;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.lealone.common.concurrent.DebuggableThreadPoolExecutor;
+import org.lealone.common.exceptions.DbException;
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.DateTimeUtils;
+import org.lealone.common.util.Histogram;
 import org.lealone.common.util.ShutdownHookUtils;
 import org.lealone.db.RunMode;
 import org.lealone.db.SysProperties;
@@ -40,9 +47,16 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
     private static final class MapInfo {
         final StorageMap<Object, TransactionalValue> map;
         final AtomicInteger estimatedMemory = new AtomicInteger(0);
+        // 最近一次保存花了多少毫秒，还没有保存过时是-1
+        volatile long lastSaveTime = -1;
+        // 已提交的记录数，刚打开map时还没有事务修改过它，所以就是底层map的记录数
+        final AtomicLong committedSize;
+        // 最近一次已提交的记录数发生变化时已经分配过的最大事务id，比它老的快照事务要自己数
+        volatile long lastSizeChangeTimestamp;
 
         MapInfo(StorageMap<Object, TransactionalValue> map) {
             this.map = map;
+            committedSize = new AtomicLong(map.size());
         }
     }
 
@@ -52,9 +66,13 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
     private final ConcurrentSkipListMap<Long, AMTransaction> currentTransactions = new ConcurrentSkipListMap<>();
     private final AtomicLong lastTransactionId = new AtomicLong();
     private final ConcurrentHashMap<TransactionalValue, TransactionalValue.OldValue> tValues = new ConcurrentHashMap<>();
+    // 比它更老的版本已经不会被任何事务读到了，只在gc时更新，旧一点也没关系，只是少回收一些
+    private volatile long oldValueWatermark;
 
     private LogSyncService logSyncService;
     private CheckpointService checkpointService;
+    // 关闭后不置null，还没结束的事务还会用到
+    private DeadlockDetector deadlockDetector;
 
     public AMTransactionEngine() {
         super(NAME);
@@ -68,6 +86,36 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         return logSyncService;
     }
 
+    DeadlockDetector getDeadlockDetector() {
+        return deadlockDetector;
+    }
+
+    /**
+     * Find the deadlocks now instead of waiting for the background detector.
+     *
+     * @return the number of new deadlocks
+     */
+    public int detectDeadlocks() {
+        return deadlockDetector.detect();
+    }
+
+    public int getLockWaitingTransactionCount() {
+        return deadlockDetector.getWaitingTransactionCount();
+    }
+
+    // 单位是毫秒
+    public Histogram getLockWaitTime() {
+        return deadlockDetector.getLockWaitTime();
+    }
+
+    public long getDeadlockCount() {
+        return deadlockDetector.getDeadlockCount();
+    }
+
+    public int getDeadlocksPerMinute() {
+        return deadlockDetector.getDeadlocksPerMinute();
+    }
+
     AMTransaction removeTransaction(long tid) {
         return currentTransactions.remove(tid);
     }
@@ -111,6 +159,45 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
             mapInfo.estimatedMemory.addAndGet(memory);
     }
 
+    // 事务提交时或者直接写入已提交的记录时调用，要先更新时间再更新记录数，
+    // 这样读到新的记录数时也一定能读到新的时间
+    public void addCommittedSize(String mapName, long delta) {
+        if (delta == 0)
+            return;
+        MapInfo mapInfo = maps.get(mapName);
+        if (mapInfo != null) {
+            mapInfo.lastSizeChangeTimestamp = lastTransactionId.get();
+            mapInfo.committedSize.addAndGet(delta);
+        }
+    }
+
+    void resetCommittedSize(String mapName) {
+        MapInfo mapInfo = maps.get(mapName);
+        if (mapInfo != null) {
+            mapInfo.lastSizeChangeTimestamp = lastTransactionId.get();
+            mapInfo.committedSize.set(0);
+        }
+    }
+
+    // 返回事务能看到的已提交的记录数，不能直接得到时返回-1
+    long getCommittedSize(String mapName, AMTransaction t) {
+        MapInfo mapInfo = maps.get(mapName);
+        if (mapInfo == null)
+            return -1;
+        switch (t.getIsolationLevel()) {
+        case Transaction.IL_READ_COMMITTED:
+            return mapInfo.committedSize.get();
+        case Transaction.IL_REPEATABLE_READ:
+        case Transaction.IL_SERIALIZABLE: {
+            // 事务开始后还没有其他事务改变过记录数才行
+            long size = mapInfo.committedSize.get();
+            return mapInfo.lastSizeChangeTimestamp < t.transactionId ? size : -1;
+        }
+        default:
+            return -1;
+        }
+    }
+
     // 看看是否有REPEATABLE_READ和SERIALIZABLE隔离级别的事务，并且事务id小于给定值tid的
     public boolean containsRepeatableReadTransactions(long lessThanVersion) {
         for (AMTransaction t : currentTransactions.headMap(lessThanVersion).values()) {
@@ -135,6 +222,7 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         if (logSyncService != null)
             return;
         checkpointService = new CheckpointService(config);
+        deadlockDetector = new DeadlockDetector(config);
         logSyncService = LogSyncService.create(config);
 
         long lastTransactionId = logSyncService.getRedoLog().init();
@@ -143,6 +231,7 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         // 调用完initPendingRedoLog后再启动logSyncService
         logSyncService.start();
         checkpointService.start();
+        deadlockDetector.start();
 
         ShutdownHookUtils.addShutdownHook(this, () -> {
             close();
@@ -154,6 +243,11 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         if (logSyncService == null)
             return;
         // logSyncService放在最后关闭，这样还能执行一次checkpoint，下次启动时能减少redo操作的次数
+        try {
+            deadlockDetector.close();
+            deadlockDetector.join();
+        } catch (Exception e) {
+        }
         try {
             checkpointService.close();
             checkpointService.join();
@@ -257,6 +351,48 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         checkpointService.checkpoint();
     }
 
+    @Override
+    public long beginBackup() {
+        return checkpointService.beginBackup();
+    }
+
+    @Override
+    public void endBackup() {
+        checkpointService.endBackup();
+    }
+
+    /**
+     * Get the duration of the last checkpoint in milliseconds.
+     *
+     * @return the duration, or -1 if no checkpoint was executed
+     */
+    public long getLastCheckpointDuration() {
+        CheckpointService cs = checkpointService;
+        return cs == null ? -1 : cs.lastCheckpointDuration;
+    }
+
+    /**
+     * Get the time the map spent on its last save during a checkpoint, in milliseconds.
+     *
+     * @param mapName the map name
+     * @return the time, or -1 if the map was not saved by a checkpoint
+     */
+    public long getLastSaveTime(String mapName) {
+        MapInfo mapInfo = maps.get(mapName);
+        return mapInfo == null ? -1 : mapInfo.lastSaveTime;
+    }
+
+    /**
+     * Get the estimated memory of the data committed to the map since it was last saved by a checkpoint.
+     *
+     * @param mapName the map name
+     * @return the estimated memory, or -1 if the map is not open
+     */
+    public int getEstimatedMemory(String mapName) {
+        MapInfo mapInfo = maps.get(mapName);
+        return mapInfo == null ? -1 : mapInfo.estimatedMemory.get();
+    }
+
     ///////////////////// 实现StorageEventListener接口 /////////////////////
 
     @Override
@@ -282,6 +418,77 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         return tValues.get(tv);
     }
 
+    public int getOldValueCount() {
+        return tValues.size();
+    }
+
+    // 最老的REPEATABLE_READ和SERIALIZABLE隔离级别的事务的id，没有这样的事务时返回已经分配过的最大事务id，
+    // 要在遍历之前取最大事务id，之后才开始的事务的id都比它大
+    private long getOldValueWatermark() {
+        long watermark = lastTransactionId.get();
+        for (AMTransaction t : currentTransactions.values()) {
+            if (t.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ)
+                return Math.min(t.transactionId, watermark);
+        }
+        return watermark;
+    }
+
+    void updateOldValueWatermark() {
+        oldValueWatermark = getOldValueWatermark();
+    }
+
+    // 事务id不小于watermark的事务从头开始找版本，找到第一个tid不大于watermark的版本就返回了，后面的版本都读不到
+    private static boolean truncateOldValue(TransactionalValue.OldValue head, long watermark) {
+        for (TransactionalValue.OldValue v = head; v != null; v = v.next) {
+            if (v.tid <= watermark) {
+                if (v.next == null)
+                    return false;
+                v.next = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 提交事务时顺便回收它修改过的记录的旧版本，用的是上一次gc时的watermark
+    public void gcOldValue(TransactionalValue tv) {
+        TransactionalValue.OldValue head = tValues.get(tv);
+        if (head != null)
+            truncateOldValue(head, oldValueWatermark);
+    }
+
+    /**
+     * Remove the old versions that no active snapshot can read anymore.
+     *
+     * @return the number of values whose old versions were removed or truncated
+     */
+    public int gcOldValues() {
+        if (tValues.isEmpty())
+            return 0;
+        long watermark = getOldValueWatermark();
+        boolean containsRepeatableReadTransactions = containsRepeatableReadTransactions(watermark + 1);
+        oldValueWatermark = watermark;
+        int count = 0;
+        for (Map.Entry<TransactionalValue, TransactionalValue.OldValue> e : tValues.entrySet()) {
+            TransactionalValue tv = e.getKey();
+            TransactionalValue.OldValue head = e.getValue();
+            if (head.tid <= watermark) {
+                // 没有REPEATABLE_READ和SERIALIZABLE隔离级别的事务时旧版本都不需要了，
+                // 否则最新的版本必须就是记录当前的值才能删除，删除操作对应的版本tid是0，不能删除
+                if (!containsRepeatableReadTransactions || head.tid != 0 && tv.getTid() == 0
+                        && head.value == tv.getValue()) {
+                    // 如果刚好有事务提交加入了新版本就不删除
+                    if (tValues.remove(tv, head))
+                        count++;
+                    continue;
+                }
+            }
+            if (truncateOldValue(head, watermark))
+                count++;
+        }
+        return count;
+    }
+
     private class CheckpointService extends Thread {
 
         private static final int DEFAULT_COMMITTED_DATA_CACHE_SIZE = 32 * 1024 * 1024; // 32M
@@ -290,9 +497,17 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         private final int committedDataCacheSize;
         private final long checkpointPeriod;
         private final long loopInterval;
+        // 最多同时保存几个map，每个map保存时都要写自己的chunk文件并且fsync，
+        // 串行保存时检查点的耗时跟脏map的个数成正比，并行保存后主要受限于磁盘的带宽
+        private final int ioConcurrency;
+        private DebuggableThreadPoolExecutor saveExecutor; // 第一次并行保存时才创建
+        private boolean executorShutdown; // 关闭后不能再创建saveExecutor，只能串行保存
 
         private volatile long lastSavedAt = System.currentTimeMillis();
+        private volatile long lastCheckpointDuration = -1;
         private volatile boolean isClosed;
+        private long lastCheckpointId = -1;
+        private int backupCount; // 大于0时有备份正在进行，不再执行新的检查点，否则redo log会被截断
 
         CheckpointService(Map<String, String> config) {
             setName(getClass().getSimpleName());
@@ -318,6 +533,12 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
                 loopInterval = checkpointPeriod;
 
             this.loopInterval = loopInterval;
+
+            v = config.get("checkpoint_service_io_concurrency");
+            if (v != null)
+                ioConcurrency = Math.max(1, Integer.parseInt(v));
+            else
+                ioConcurrency = Math.min(4, Runtime.getRuntime().availableProcessors());
         }
 
         void close() {
@@ -327,6 +548,24 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
             }
         }
 
+        private synchronized void shutdownExecutor() {
+            executorShutdown = true;
+            if (saveExecutor != null) {
+                saveExecutor.shutdown();
+                saveExecutor = null;
+            }
+        }
+
+        // 跟shutdownExecutor用同一把锁，关闭后返回null
+        private synchronized DebuggableThreadPoolExecutor getSaveExecutor() {
+            if (executorShutdown)
+                return null;
+            if (saveExecutor == null)
+                saveExecutor = DebuggableThreadPoolExecutor.createWithMaximumPoolSize(getName(), ioConcurrency, 60,
+                        TimeUnit.SECONDS);
+            return saveExecutor;
+        }
+
         // 例如通过执行CHECKPOINT语句触发
         void checkpoint() {
             if (isClosed)
@@ -334,8 +573,22 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
             checkpoint(true);
         }
 
+        // 多个备份同时进行时共用第一个备份的检查点
+        synchronized long beginBackup() {
+            if (backupCount == 0)
+                checkpoint();
+            backupCount++;
+            return lastCheckpointId;
+        }
+
+        synchronized void endBackup() {
+            backupCount--;
+        }
+
         // 按周期自动触发
         private synchronized void checkpoint(boolean force) {
+            if (backupCount > 0 && !isClosed)
+                return;
             long now = System.currentTimeMillis();
             boolean executeCheckpoint = force || isClosed || (lastSavedAt + checkpointPeriod < now);
 
@@ -348,6 +601,8 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
                 executeCheckpoint = totalEstimatedMemory > committedDataCacheSize;
             }
             if (executeCheckpoint) {
+                ArrayList<MapInfo> dirtyMaps = new ArrayList<>();
+                ArrayList<Integer> dirtyMemory = new ArrayList<>();
                 for (MapInfo mapInfo : maps.values()) {
                     StorageMap<?, ?> map = mapInfo.map;
                     if (map.isClosed())
@@ -357,14 +612,65 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
                     // 不过不要紧，如果在生成检查点之后系统崩溃了导致未提交事务不能正常完成，还有读时撤销机制保证数据完整性，
                     // 因为在保存未提交数据时，也同时保存了原来的数据，如果在读到未提交数据时发现了异常，就会进行撤销，
                     // 读时撤销机制在TransactionalValue类中实现。
-                    AtomicInteger counter = mapInfo.estimatedMemory;
-                    if (force || counter != null && counter.getAndSet(0) > 0) {
-                        map.save();
+                    int memory = mapInfo.estimatedMemory.get();
+                    if (force || memory > 0) {
+                        dirtyMaps.add(mapInfo);
+                        dirtyMemory.add(memory);
                     }
                 }
+                saveMaps(dirtyMaps);
+                // 所有map都保存成功了才减掉保存前的预估内存，保存过程中新增的不能清掉，
+                // 保存失败时不减，下一次还会保存它们
+                for (int i = 0, size = dirtyMaps.size(); i < size; i++) {
+                    dirtyMaps.get(i).estimatedMemory.addAndGet(-dirtyMemory.get(i));
+                }
                 lastSavedAt = now;
-                logSyncService.checkpoint(nextEvenTransactionId());
+                lastCheckpointDuration = System.currentTimeMillis() - now;
+                // 所有map都保存成功了才能生成检查点，否则redo log还不能删除
+                long checkpointId = nextEvenTransactionId();
+                logSyncService.checkpoint(checkpointId);
+                lastCheckpointId = checkpointId;
+            }
+        }
+
+        private void saveMaps(List<MapInfo> dirtyMaps) {
+            DebuggableThreadPoolExecutor executor = null;
+            if (ioConcurrency > 1 && dirtyMaps.size() > 1)
+                executor = getSaveExecutor();
+            if (executor == null) {
+                for (MapInfo mapInfo : dirtyMaps) {
+                    save(mapInfo);
+                }
+                return;
+            }
+            ArrayList<Future<?>> futures = new ArrayList<>(dirtyMaps.size());
+            for (MapInfo mapInfo : dirtyMaps) {
+                futures.add(executor.submit(() -> save(mapInfo)));
+            }
+            // 等所有map都保存完，即使有map保存失败了也要等其他的map，然后再抛出第一个异常
+            RuntimeException e = null;
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (e == null)
+                        e = cause instanceof RuntimeException ? (RuntimeException) cause : DbException.convert(cause);
+                } catch (InterruptedException ex) {
+                    if (e == null)
+                        e = DbException.convert(ex);
+                }
             }
+            if (e != null)
+                throw e;
+        }
+
+        private void save(MapInfo mapInfo) {
+            long start = System.currentTimeMillis();
+            mapInfo.map.save();
+            mapInfo.lastSaveTime = System.currentTimeMillis() - start;
+            if (logger.isDebugEnabled())
+                logger.debug("Saved map " + mapInfo.map.getName() + " in " + mapInfo.lastSaveTime + " ms");
         }
 
         @Override
@@ -376,12 +682,20 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
                 } catch (InterruptedException e) {
                     throw new AssertionError();
                 }
+                try {
+                    int count = gcOldValues();
+                    if (count > 0 && logger.isDebugEnabled())
+                        logger.debug("Removed old versions of " + count + " values");
+                } catch (Exception e) {
+                    logger.error("Failed to gc old values", e);
+                }
                 try {
                     checkpoint(false);
                 } catch (Exception e) {
                     logger.error("Failed to execute checkpoint", e);
                 }
             }
+            shutdownExecutor();
         }
     }
 }
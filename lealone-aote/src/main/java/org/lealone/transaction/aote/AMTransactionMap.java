@@ -31,6 +31,7 @@ import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionMap;
 import org.lealone.transaction.TransactionMapEntry;
+import org.lealone.transaction.aote.log.UndoLog;
 import org.lealone.transaction.aote.log.UndoLogRecord;
 
 //只支持单机场景
@@ -249,6 +250,35 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
      */
     @Override
     public long size() {
+        // 已提交的记录数加上当前事务自己插入和删除的记录数
+        UndoLog undoLog = transaction.undoLog;
+        if (undoLog != null) {
+            long committedSize = transaction.transactionEngine.getCommittedSize(getName(), transaction);
+            if (committedSize >= 0)
+                return committedSize + undoLog.getSizeDelta(getName());
+            // 快照开始后其他事务提交的记录也在底层map中，只能逐条判断是否可见
+            if (transaction.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ)
+                return countVisible();
+        }
+        return scanSize();
+    }
+
+    private long countVisible() {
+        long size = 0;
+        StorageMapCursor<K, TransactionalValue> cursor = map.cursor();
+        while (cursor.hasNext()) {
+            K key = cursor.next();
+            TransactionalValue tv = cursor.getValue();
+            Object value = getValue(key, tv);
+            if (value != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    // 其他事务还没有提交的记录太多时要遍历整个map，否则遍历所有事务的undo log减去看不到的记录
+    private long scanSize() {
         long sizeRaw = map.size();
         long undoLogSize = 0;
         for (AMTransaction t : transaction.transactionEngine.getCurrentTransactions()) {
@@ -260,17 +290,7 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         if (undoLogSize > sizeRaw) {
             // the undo log is larger than the map -
             // count the entries of the map
-            long size = 0;
-            StorageMapCursor<K, TransactionalValue> cursor = map.cursor();
-            while (cursor.hasNext()) {
-                K key = cursor.next();
-                TransactionalValue tv = cursor.getValue();
-                Object value = getValue(key, tv);
-                if (value != null) {
-                    size++;
-                }
-            }
-            return size;
+            return countVisible();
         }
         // the undo log is smaller than the map -
         // scan the undo log and subtract invisible entries
@@ -375,6 +395,7 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
     public void clear() {
         // TODO 可以rollback吗?
         map.clear();
+        transaction.transactionEngine.resetCommittedSize(getName());
     }
 
     @Override
@@ -437,6 +458,16 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         return map.getMemorySpaceUsed();
     }
 
+    @Override
+    public long getCacheHits() {
+        return map.getCacheHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return map.getCacheMisses();
+    }
+
     ////////////////////// 以下是分布式API的默认实现 ////////////////////////////////
 
     @Override
@@ -514,9 +545,37 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         DataUtils.checkNotNull(value, "value");
         TransactionalValue newValue = TransactionalValue.createCommitted(value);
         TransactionalValue oldValue = map.put(key, newValue);
+        if (oldValue == null || oldValue.getValue() == null)
+            transaction.transactionEngine.addCommittedSize(getName(), 1);
         return (V) (oldValue == null ? null : oldValue.getValue());
     }
 
+    @Override
+    public void bulkLoadCommitted(Iterator<? extends Map.Entry<K, V>> entries) {
+        long oldSize = map.size();
+        try {
+            bulkLoadRaw(entries);
+        } finally {
+            transaction.transactionEngine.addCommittedSize(getName(), map.size() - oldSize);
+        }
+    }
+
+    private void bulkLoadRaw(Iterator<? extends Map.Entry<K, V>> entries) {
+        map.bulkLoad(new Iterator<Map.Entry<K, TransactionalValue>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<K, TransactionalValue> next() {
+                Map.Entry<K, V> e = entries.next();
+                DataUtils.checkNotNull(e.getValue(), "value");
+                return new TransactionMapEntry<>(e.getKey(), TransactionalValue.createCommitted(e.getValue()));
+            }
+        });
+    }
+
     // 子类在hasNext()中取出下一行，这样能保证不会多读一行
     private abstract class TIterator<E> implements Iterator<E> {
 
@@ -524,6 +583,13 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         E current;
 
         TIterator(IterationParameters<K> parameters) {
+            // 可重复读的事务可能需要看到旧值，而zone map只是按最新的值生成的，此时不能跳过page
+            if (parameters.columnFilters != null && transaction.transactionEngine.containsRepeatableReadTransactions()) {
+                IterationParameters<K> p = parameters.copy(parameters.from, parameters.to);
+                p.allColumns = parameters.allColumns;
+                p.columnFilters = null;
+                parameters = p;
+            }
             cursor = map.cursor(parameters);
         }
 
@@ -593,14 +659,15 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         transaction.checkNotClosed();
         TransactionalValue newTV = new TransactionalValue(value, transaction);
         String mapName = getName();
-        final UndoLogRecord r = transaction.undoLog.add(mapName, key, null, newTV, false);
+        UndoLog undoLog = transaction.undoLog;
+        final UndoLogRecord r = undoLog.add(mapName, key, null, newTV, false, 1);
 
         AsyncCallback<Integer> ac = new AsyncCallback<>();
         AsyncHandler<AsyncResult<TransactionalValue>> handler = (ar) -> {
             if (ar.isSucceeded()) {
                 TransactionalValue old = ar.getResult();
                 if (old != null) {
-                    r.setUndone(true);
+                    undoLog.setUndone(r);
                     // 同一个事务，先删除再更新，因为删除记录时只是打了一个删除标记，存储层并没有真实删除
                     if (old.getValue() == null) {// || old.getValue() == ValueNull.INSTANCE) { //唯一索引加上这个条件会出错
                                                  // 辅助索引的值是ValueNull.INSTANCE
@@ -621,7 +688,7 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
                     afterAddComplete();
                 }
             } else {
-                r.setUndone(true);
+                undoLog.setUndone(r);
                 ac.setAsyncResult(ar.getCause());
             }
         };
@@ -642,7 +709,7 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
             key = map.append(newTV);
         // 记事务log和append新值都是更新内存中的相应数据结构，所以不必把log调用放在append前面
         // 放在前面的话调用log方法时就不知道key是什么，当事务要rollback时就不知道如何修改map的内存数据
-        transaction.undoLog.add(map.getName(), key, null, newTV, false);
+        transaction.undoLog.add(map.getName(), key, null, newTV, false, 1);
         if (handler != null)
             handler.handle(new AsyncResult<>(key));
         return key;
@@ -675,7 +742,13 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         Object oldValue = tv.getValue();
         tv.setTransaction(transaction);
         tv.setValue(value);
-        transaction.undoLog.add(getName(), key, oldValue, tv, false);
+        // 删除的记录在提交前只是打了删除标记，所以再次插入时也是更新
+        int sizeDelta = 0;
+        if (value == null && oldValue != null)
+            sizeDelta = -1;
+        else if (value != null && oldValue == null)
+            sizeDelta = 1;
+        transaction.undoLog.add(getName(), key, oldValue, tv, false, sizeDelta);
         return Transaction.OPERATION_COMPLETE;
     }
 
@@ -0,0 +1,213 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.transaction.aote;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.util.DateTimeUtils;
+import org.lealone.common.util.Histogram;
+
+/**
+ * 维护事务之间的等待图(waits-for graph)，并且在后台线程中周期性地检测死锁。
+ * <p>
+ * 一个事务同一时间最多只会等待一个事务，所以等待图中每个事务最多只有一条出边，沿着出边走就能找到环。
+ * 找到死锁后选最年轻(事务id最大)的事务作为牺牲者，只给它打上标记，
+ * 真正的回滚由调度器在检查超时时调用AMTransaction.checkTimeout抛出异常后完成。
+ * <p>
+ * 检测时用的是等待图的副本，打标记前要确认环上的每条边都还在，
+ * 事务被唤醒或者再次等待时会清除标记，这样已经不在死锁中的事务不会被误杀。
+ *
+ * @author zhh
+ */
+class DeadlockDetector extends Thread {
+
+    private static final long ONE_MINUTE = 60 * 1000;
+
+    static class WaitEdge {
+        final AMTransaction waiter;
+        final AMTransaction holder;
+        final Object key;
+        final long startTime = System.currentTimeMillis();
+
+        WaitEdge(AMTransaction waiter, AMTransaction holder, Object key) {
+            this.waiter = waiter;
+            this.holder = holder;
+            this.key = key;
+        }
+    }
+
+    // key: 正在等待的事务
+    private final ConcurrentHashMap<AMTransaction, WaitEdge> waitsFor = new ConcurrentHashMap<>();
+    private final Semaphore semaphore = new Semaphore(1);
+    private final long loopInterval;
+    private volatile boolean isClosed;
+
+    // 每次等锁的时间，单位是毫秒
+    private final Histogram lockWaitTime = new Histogram();
+    private final AtomicLong deadlockCount = new AtomicLong();
+    // 最近一分钟内检测到死锁的时间
+    private final ArrayDeque<Long> recentDeadlocks = new ArrayDeque<>();
+
+    DeadlockDetector(Map<String, String> config) {
+        setName(getClass().getSimpleName());
+        setDaemon(true);
+        // 默认1秒
+        loopInterval = DateTimeUtils.getLoopInterval(config, "deadlock_detection_interval", 1000);
+    }
+
+    // 再次等待时之前的死锁已经不存在了，清除以前打上的标记
+    void addEdge(AMTransaction waiter, AMTransaction holder, Object key) {
+        waiter.setDeadlockVictim(null);
+        waitsFor.put(waiter, new WaitEdge(waiter, holder, key));
+    }
+
+    // 被唤醒或者不用等了，只有还在等holder时才删除，避免删掉等待其他事务的新边，
+    // 被唤醒后会重试，所以也要清除死锁标记，先删边再清除标记，跟onCycle的顺序正好相反
+    void removeEdge(AMTransaction waiter, AMTransaction holder) {
+        WaitEdge edge = waitsFor.get(waiter);
+        if (edge != null && edge.holder == holder && waitsFor.remove(waiter, edge)) {
+            lockWaitTime.add(System.currentTimeMillis() - edge.startTime);
+            waiter.setDeadlockVictim(null);
+        }
+    }
+
+    // 事务结束时调用
+    void removeEdge(AMTransaction waiter) {
+        WaitEdge edge = waitsFor.remove(waiter);
+        if (edge != null)
+            lockWaitTime.add(System.currentTimeMillis() - edge.startTime);
+    }
+
+    WaitEdge getEdge(AMTransaction waiter) {
+        return waitsFor.get(waiter);
+    }
+
+    int getWaitingTransactionCount() {
+        return waitsFor.size();
+    }
+
+    Histogram getLockWaitTime() {
+        return lockWaitTime;
+    }
+
+    long getDeadlockCount() {
+        return deadlockCount.get();
+    }
+
+    synchronized int getDeadlocksPerMinute() {
+        long now = System.currentTimeMillis();
+        while (!recentDeadlocks.isEmpty() && recentDeadlocks.peekFirst() < now - ONE_MINUTE)
+            recentDeadlocks.pollFirst();
+        return recentDeadlocks.size();
+    }
+
+    private synchronized void onDeadlock() {
+        deadlockCount.incrementAndGet();
+        recentDeadlocks.addLast(System.currentTimeMillis());
+    }
+
+    void close() {
+        if (!isClosed) {
+            isClosed = true;
+            semaphore.release();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!isClosed) {
+            try {
+                semaphore.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
+                semaphore.drainPermits();
+            } catch (InterruptedException e) {
+                throw new AssertionError();
+            }
+            if (!isClosed)
+                detect();
+        }
+    }
+
+    /**
+     * Find the cycles in the waits-for graph and mark the youngest transaction of each cycle as the victim.
+     *
+     * @return the number of new deadlocks
+     */
+    synchronized int detect() {
+        // 先复制一份，检测过程中其他线程还会修改等待图
+        HashMap<AMTransaction, WaitEdge> graph = new HashMap<>(waitsFor);
+        HashSet<AMTransaction> visited = new HashSet<>();
+        int count = 0;
+        for (AMTransaction start : graph.keySet()) {
+            if (visited.contains(start))
+                continue;
+            // 只属于这次遍历的路径，遇到之前遍历过的事务说明不会再有新的环
+            HashMap<AMTransaction, Integer> path = new HashMap<>();
+            ArrayList<WaitEdge> edges = new ArrayList<>();
+            AMTransaction t = start;
+            while (t != null && !visited.contains(t)) {
+                visited.add(t);
+                WaitEdge edge = graph.get(t);
+                if (edge == null)
+                    break;
+                path.put(t, edges.size());
+                edges.add(edge);
+                Integer index = path.get(edge.holder);
+                if (index != null) {
+                    if (onCycle(edges.subList(index, edges.size())))
+                        count++;
+                    break;
+                }
+                t = edge.holder;
+            }
+        }
+        return count;
+    }
+
+    private boolean onCycle(List<WaitEdge> cycle) {
+        WaitEdge victimEdge = null;
+        for (WaitEdge edge : cycle) {
+            // 复制等待图之后事务可能已经被唤醒了，环已经不存在了
+            if (!isLive(edge))
+                return false;
+            // 已经选过牺牲者了，等它回滚就行
+            if (edge.waiter.isDeadlockVictim())
+                return false;
+            if (victimEdge == null || edge.waiter.transactionId > victimEdge.waiter.transactionId)
+                victimEdge = edge;
+        }
+        StringBuilder msg = new StringBuilder();
+        for (WaitEdge edge : cycle) {
+            if (msg.length() > 0)
+                msg.append("\r\n");
+            msg.append(AMTransaction.getMsg(edge.waiter, edge.holder, edge.key));
+        }
+        AMTransaction victim = victimEdge.waiter;
+        victim.setDeadlockVictim(msg.toString());
+        // 先打标记再检查一次，如果在这之前环上的事务被唤醒了，removeEdge不一定能看到这个标记，要自己清除
+        for (WaitEdge edge : cycle) {
+            if (!isLive(edge)) {
+                victim.setDeadlockVictim(null);
+                return false;
+            }
+        }
+        onDeadlock();
+        return true;
+    }
+
+    // 每次等待都会生成新的WaitEdge，所以只有同一个对象还在等待图中时才说明这条边还在
+    private boolean isLive(WaitEdge edge) {
+        return waitsFor.get(edge.waiter) == edge;
+    }
+}
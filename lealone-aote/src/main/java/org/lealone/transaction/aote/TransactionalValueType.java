@@ -8,6 +8,7 @@ package org.lealone.transaction.aote;
 import java.nio.ByteBuffer;
 
 import org.lealone.db.DataBuffer;
+import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueArray;
 import org.lealone.storage.type.StorageDataType;
 
@@ -95,6 +96,12 @@ public class TransactionalValueType implements StorageDataType {
         valueType.readColumn(buff, v.getValue(), columnIndex);
     }
 
+    @Override
+    public void setColumn(Object obj, int columnIndex, Value value) {
+        TransactionalValue v = (TransactionalValue) obj;
+        valueType.setColumn(v.getValue(), columnIndex, value);
+    }
+
     @Override
     public void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         valueType.setColumns(oldObj, newObj, columnIndexes);
@@ -115,4 +122,22 @@ public class TransactionalValueType implements StorageDataType {
         TransactionalValue v = (TransactionalValue) obj;
         return valueType.getMemory(v.getValue(), columnIndex);
     }
+
+    @Override
+    public Value getColumn(Object obj, int columnIndex) {
+        TransactionalValue v = (TransactionalValue) obj;
+        Object value = v.getValue();
+        return value == null ? null : valueType.getColumn(value, columnIndex); // 已删除的记录返回null
+    }
+
+    @Override
+    public int compareColumn(Value a, Value b) {
+        return valueType.compareColumn(a, b);
+    }
+
+    @Override
+    public boolean isCommitted(Object obj) {
+        TransactionalValue v = (TransactionalValue) obj;
+        return v.getTid() == 0; // 被事务锁住的记录，其他事务看到的可能是旧值
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.transaction.aote.log;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 跟InstantLogSyncService一样，事务要等redo log同步完才能提交，
+ * 但是每次同步前会根据最近的同步耗时和redo log的到达速度等待一小段时间，让更多的事务一起同步(group commit)，
+ * 等待的时间以满足配置的提交延迟目标(log_sync_commit_latency_target)为上限。
+ *
+ * @author zhh
+ */
+class AdaptiveLogSyncService extends InstantLogSyncService {
+
+    private static final long DEFAULT_COMMIT_LATENCY_TARGET = 10; // 毫秒
+
+    private final long latencyTargetNanos;
+
+    // 以下字段只由日志同步线程访问，都是指数移动平均值
+    private double syncNanos; // 每次同步的耗时
+    private double syncNanosDeviation; // 同步耗时的平均偏差
+    private double arrivalRate; // 每纳秒到达多少条redo log记录
+    private long lastSyncEndNanos;
+
+    AdaptiveLogSyncService(Map<String, String> config) {
+        super(config);
+        String v = config.get("log_sync_commit_latency_target");
+        long latencyTarget = v == null ? DEFAULT_COMMIT_LATENCY_TARGET : Long.parseLong(v);
+        latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTarget);
+    }
+
+    @Override
+    protected void onSync(Collection<RedoLogRecord> records, long syncStartNanos, long syncEndNanos) {
+        super.onSync(records, syncStartNanos, syncEndNanos);
+        long d = syncEndNanos - syncStartNanos;
+        if (syncNanos == 0) {
+            syncNanos = d;
+        } else {
+            syncNanosDeviation = 0.8 * syncNanosDeviation + 0.2 * Math.abs(d - syncNanos);
+            syncNanos = 0.8 * syncNanos + 0.2 * d;
+        }
+        // 两次同步之间的空闲时间也算进去，这样负载降下来后到达速度也会跟着变小
+        if (lastSyncEndNanos > 0) {
+            double rate = (double) records.size() / Math.max(1, syncEndNanos - lastSyncEndNanos);
+            arrivalRate = arrivalRate == 0 ? rate : 0.8 * arrivalRate + 0.2 * rate;
+        }
+        lastSyncEndNanos = syncEndNanos;
+    }
+
+    /**
+     * Get the time to wait for more redo log records before the next sync.
+     *
+     * @return the time in nanoseconds, 0 means sync immediately
+     */
+    long getGroupWindowNanos() {
+        // 一条记录最坏的情况是先等正在进行的同步，再等分组，最后等它自己的那次同步，
+        // 所以从目标延迟中减去两次同步的耗时(按p99估算)才是分组最多能等的时间
+        double syncP99 = syncNanos + 3 * syncNanosDeviation;
+        double window = latencyTargetNanos - 2 * syncP99;
+        // 等这么久也等不到其他记录就没必要等了
+        if (window <= 0 || arrivalRate * window < 1)
+            return 0;
+        return (long) Math.min(window, redoLogRecordSyncThreshold / arrivalRate);
+    }
+
+    @Override
+    protected void waitForNextSync(long syncStarted) {
+        try {
+            if (redoLog.size() == 0) {
+                haveWork.tryAcquire(syncIntervalMillis, TimeUnit.MILLISECONDS);
+                haveWork.drainPermits();
+                if (redoLog.size() == 0)
+                    return;
+            }
+            long window = getGroupWindowNanos();
+            if (window <= 0)
+                return;
+            // 预计的分组大小到了就提前同步
+            int groupSize = (int) Math.max(1, Math.min(redoLogRecordSyncThreshold, arrivalRate * window));
+            long deadline = System.nanoTime() + window;
+            while (running && redoLog.size() < groupSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                haveWork.tryAcquire(remaining, TimeUnit.NANOSECONDS);
+                haveWork.drainPermits();
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError();
+        }
+    }
+}
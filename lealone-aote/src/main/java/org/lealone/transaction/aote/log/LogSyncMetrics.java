@@ -0,0 +1,52 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.transaction.aote.log;
+
+import java.util.Collection;
+
+import org.lealone.common.util.Histogram;
+
+/**
+ * 日志同步的统计信息，由日志同步线程更新(有多个日志流时多个线程共用)，其他线程可以随时读取。
+ *
+ * @author zhh
+ */
+public class LogSyncMetrics {
+
+    // 每次把redo log写到文件并且fsync的耗时，单位是微秒
+    private final Histogram syncTime = new Histogram();
+    // 每次同步的redo log记录数
+    private final Histogram groupSize = new Histogram();
+    // 每条redo log记录从加入队列到同步完成的等待时间，单位是微秒
+    private final Histogram commitWait = new Histogram();
+
+    void onSync(Collection<RedoLogRecord> records, long syncStartNanos, long syncEndNanos) {
+        syncTime.add((syncEndNanos - syncStartNanos) / 1000);
+        groupSize.add(records.size());
+        for (RedoLogRecord r : records) {
+            long addedAt = r.getAddedAt();
+            if (addedAt != 0)
+                commitWait.add((syncEndNanos - addedAt) / 1000);
+        }
+    }
+
+    public Histogram getSyncTime() {
+        return syncTime;
+    }
+
+    public Histogram getGroupSize() {
+        return groupSize;
+    }
+
+    public Histogram getCommitWait() {
+        return commitWait;
+    }
+
+    @Override
+    public String toString() {
+        return "syncTime(us): " + syncTime + ", groupSize: " + groupSize + ", commitWait(us): " + commitWait;
+    }
+}
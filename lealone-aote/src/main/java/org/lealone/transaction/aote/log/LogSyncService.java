@@ -6,6 +6,7 @@
 package org.lealone.transaction.aote.log;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
@@ -19,6 +20,7 @@ public abstract class LogSyncService extends Thread {
     public static final String LOG_SYNC_TYPE_PERIODIC = "periodic";
     public static final String LOG_SYNC_TYPE_INSTANT = "instant";
     public static final String LOG_SYNC_TYPE_NO_SYNC = "no_sync";
+    public static final String LOG_SYNC_TYPE_ADAPTIVE = "adaptive";
 
     protected final Semaphore haveWork = new Semaphore(1);
     protected final WaitQueue syncComplete = new WaitQueue();
@@ -31,6 +33,7 @@ public abstract class LogSyncService extends Thread {
     protected volatile long lastSyncedAt = System.currentTimeMillis();
     protected boolean running = true;
     protected RedoLog redoLog;
+    protected LogSyncMetrics metrics = new LogSyncMetrics(); // 多个日志流时共用一个
 
     private volatile boolean waiting;
 
@@ -47,6 +50,10 @@ public abstract class LogSyncService extends Thread {
         return redoLog;
     }
 
+    public LogSyncMetrics getMetrics() {
+        return metrics;
+    }
+
     public abstract void maybeWaitForSync(RedoLogRecord r);
 
     public void asyncCommit(AMTransaction t) {
@@ -66,21 +73,7 @@ public abstract class LogSyncService extends Thread {
             sync();
             lastSyncedAt = syncStarted;
             syncComplete.signalAll();
-            if (redoLog.size() > redoLogRecordSyncThreshold)
-                continue;
-            long now = System.currentTimeMillis();
-            long sleep = syncStarted + syncIntervalMillis - now;
-            if (sleep < 0)
-                continue;
-            waiting = true;
-            try {
-                haveWork.tryAcquire(sleep, TimeUnit.MILLISECONDS);
-                haveWork.drainPermits();
-            } catch (InterruptedException e) {
-                throw new AssertionError();
-            } finally {
-                waiting = false;
-            }
+            waitForNextSync(syncStarted);
         }
         // 结束前最后sync一次
         sync();
@@ -88,12 +81,39 @@ public abstract class LogSyncService extends Thread {
         redoLog.close();
     }
 
+    // 等到下一次同步的时间，子类可以用不同的策略
+    protected void waitForNextSync(long syncStarted) {
+        if (redoLog.size() > redoLogRecordSyncThreshold)
+            return;
+        long now = System.currentTimeMillis();
+        long sleep = syncStarted + syncIntervalMillis - now;
+        if (sleep < 0)
+            return;
+        waiting = true;
+        try {
+            haveWork.tryAcquire(sleep, TimeUnit.MILLISECONDS);
+            haveWork.drainPermits();
+        } catch (InterruptedException e) {
+            throw new AssertionError();
+        } finally {
+            waiting = false;
+        }
+    }
+
     private void sync() {
-        if (redoLog != null)
-            redoLog.save();
+        if (redoLog != null) {
+            long start = System.nanoTime();
+            Collection<RedoLogRecord> records = redoLog.save();
+            if (records != null)
+                onSync(records, start, System.nanoTime());
+        }
         notifyComplete();
     }
 
+    protected void onSync(Collection<RedoLogRecord> records, long syncStartNanos, long syncEndNanos) {
+        metrics.onSync(records, syncStartNanos, syncEndNanos);
+    }
+
     private void notifyComplete() {
         if (transactions.isEmpty())
             return;
@@ -105,6 +125,7 @@ public abstract class LogSyncService extends Thread {
     }
 
     public void addRedoLogRecord(RedoLogRecord r) {
+        r.setAddedAt(System.nanoTime());
         redoLog.addRedoLogRecord(r);
         // 对于需要立即做同步的场景，及时唤醒日志同步线程
         if (isInstantSync() || waiting)
@@ -112,6 +133,7 @@ public abstract class LogSyncService extends Thread {
     }
 
     public void addAndMaybeWaitForSync(RedoLogRecord r) {
+        r.setAddedAt(System.nanoTime());
         redoLog.addRedoLogRecord(r);
         maybeWaitForSync(r);
     }
@@ -130,7 +152,19 @@ public abstract class LogSyncService extends Thread {
         return true;
     }
 
+    // 每个日志流都有自己的redo log文件和同步线程
+    public int getStreamCount() {
+        return 1;
+    }
+
     public static LogSyncService create(Map<String, String> config) {
+        int streamCount = StripedLogSyncService.getStreamCount(config);
+        if (streamCount > 1)
+            return new StripedLogSyncService(config, streamCount);
+        return createStream(config);
+    }
+
+    static LogSyncService createStream(Map<String, String> config) {
         LogSyncService logSyncService;
         String logSyncType = config.get("log_sync_type");
         if (logSyncType == null || LOG_SYNC_TYPE_PERIODIC.equalsIgnoreCase(logSyncType))
@@ -139,6 +173,8 @@ public abstract class LogSyncService extends Thread {
             logSyncService = new InstantLogSyncService(config);
         else if (LOG_SYNC_TYPE_NO_SYNC.equalsIgnoreCase(logSyncType))
             logSyncService = new NoLogSyncService(config);
+        else if (LOG_SYNC_TYPE_ADAPTIVE.equalsIgnoreCase(logSyncType))
+            logSyncService = new AdaptiveLogSyncService(config);
         else
             throw new IllegalArgumentException("Unknow log_sync_type: " + logSyncType);
         logSyncService.redoLog = new RedoLog(config);
@@ -8,12 +8,25 @@ package org.lealone.transaction.aote.log;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.lealone.common.concurrent.DebuggableThreadPoolExecutor;
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
 import org.lealone.db.Constants;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.fs.FilePath;
@@ -31,16 +44,22 @@ import org.lealone.transaction.aote.log.RedoLogRecord.ReplicaPrepareCommitRedoLo
  */
 public class RedoLog {
 
+    private static final Logger logger = LoggerFactory.getLogger(RedoLog.class);
+
     private static final long DEFAULT_LOG_CHUNK_SIZE = 32 * 1024 * 1024;
 
     public static final char NAME_ID_SEPARATOR = Constants.NAME_SEPARATOR;
 
     // key: mapName, value: map key/value ByteBuffer list
-    private final HashMap<String, List<ByteBuffer>> pendingRedoLog = new HashMap<>();
+    // 恢复完之后可能有多个线程同时打开不同的map
+    private final ConcurrentHashMap<String, List<ByteBuffer>> pendingRedoLog = new ConcurrentHashMap<>();
+    private final AtomicLong replayedEntryCount = new AtomicLong();
     private final Map<String, String> config;
     private final long logChunkSize;
 
     private RedoLogChunk currentChunk;
+    private long recoveryTime; // 读取和解析所有redo log记录用的时间，单位是毫秒
+    private int recoveredRecordCount;
 
     RedoLog(Map<String, String> config) {
         this.config = config;
@@ -74,38 +93,129 @@ public class RedoLog {
     }
 
     public long init() {
-        long lastTransactionId = 0;
-        List<Integer> ids = getAllChunkIds();
-        if (ids.isEmpty()) {
-            currentChunk = new RedoLogChunk(0, config);
-        } else {
-            LinkedHashMap<String, ReplicaPrepareCommitRedoLogRecord> replicaPrepareCommitMap = new LinkedHashMap<>();
-            int lastId = ids.get(ids.size() - 1);
-            for (int id : ids) {
-                RedoLogChunk chunk = null;
-                try {
-                    chunk = new RedoLogChunk(id, config);
-                    for (RedoLogRecord r : chunk.getAndResetRedoLogRecords()) {
-                        if (r instanceof ReplicaPrepareCommitRedoLogRecord) {
-                            ReplicaPrepareCommitRedoLogRecord rpc = (ReplicaPrepareCommitRedoLogRecord) r;
-                            replicaPrepareCommitMap.put(rpc.getCurrentReplicationName(), rpc);
-                        } else if (r instanceof ReplicaCommitRedoLogRecord) {
-                            ReplicaCommitRedoLogRecord rc = (ReplicaCommitRedoLogRecord) r;
-                            replicaPrepareCommitMap.remove(rc.getCurrentReplicationName());
-                        }
-                        lastTransactionId = r.initPendingRedoLog(pendingRedoLog, lastTransactionId);
+        long start = System.currentTimeMillis();
+        List<RedoLogRecord> records = readRedoLogRecords();
+        long lastTransactionId = initPendingRedoLog(records);
+        recoveredRecordCount = records.size();
+        recoveryTime = System.currentTimeMillis() - start;
+        if (!records.isEmpty())
+            logger.info("Read {} redo log records of {} maps in {} ms", recoveredRecordCount,
+                    pendingRedoLog.size(), recoveryTime);
+        return lastTransactionId;
+    }
+
+    // 有多个日志流时子类会合并所有日志流的记录
+    List<RedoLogRecord> readRedoLogRecords() {
+        return readRedoLogRecords(this);
+    }
+
+    /**
+     * Read and decode the chunks of the redo logs in parallel.
+     *
+     * @param redoLogs the redo logs, the last chunk of each one becomes its current chunk
+     * @return the records of every redo log in the given order, ordered by chunk id within each redo log
+     */
+    static List<RedoLogRecord> readRedoLogRecords(RedoLog... redoLogs) {
+        ArrayList<List<Integer>> allIds = new ArrayList<>(redoLogs.length);
+        int chunkCount = 0;
+        for (RedoLog redoLog : redoLogs) {
+            List<Integer> ids = redoLog.getAllChunkIds();
+            allIds.add(ids);
+            chunkCount += ids.size();
+        }
+        int threads = Math.min(chunkCount, getRecoveryThreads(redoLogs[0].config));
+        ExecutorService executor = null;
+        if (threads > 1)
+            executor = DebuggableThreadPoolExecutor.createWithMaximumPoolSize("RedoLogRecovery", threads, 60,
+                    TimeUnit.SECONDS);
+        try {
+            // 每个chunk的读取和解析是独立的，可以并行，但是合并记录时必须按chunk id的顺序
+            ArrayList<List<Future<RedoLogChunk>>> allFutures = new ArrayList<>(redoLogs.length);
+            for (int i = 0; i < redoLogs.length; i++) {
+                RedoLog redoLog = redoLogs[i];
+                List<Integer> ids = allIds.get(i);
+                ArrayList<Future<RedoLogChunk>> futures = new ArrayList<>(ids.size());
+                for (int j = 0, size = ids.size(); j < size; j++) {
+                    int id = ids.get(j);
+                    boolean last = j == size - 1;
+                    Callable<RedoLogChunk> task = () -> {
+                        RedoLogChunk chunk = new RedoLogChunk(id, redoLog.config);
+                        // 注意一定要关闭，否则对应的chunk文件将无法删除，
+                        // 内部会打开一个FileStorage，不会因为没有引用到了而自动关闭
+                        if (!last)
+                            chunk.close();
+                        return chunk;
+                    };
+                    if (executor != null) {
+                        futures.add(executor.submit(task));
+                    } else {
+                        FutureTask<RedoLogChunk> f = new FutureTask<>(task);
+                        f.run();
+                        futures.add(f);
                     }
-                } finally {
-                    // 注意一定要关闭，否则对应的chunk文件将无法删除，
-                    // 内部会打开一个FileStorage，不会因为没有引用到了而自动关闭
-                    if (id == lastId)
-                        currentChunk = chunk;
-                    else if (chunk != null)
-                        chunk.close();
                 }
+                allFutures.add(futures);
+            }
+            ArrayList<RedoLogRecord> records = new ArrayList<>();
+            RuntimeException e = null;
+            for (int i = 0; i < redoLogs.length; i++) {
+                RedoLog redoLog = redoLogs[i];
+                List<Future<RedoLogChunk>> futures = allFutures.get(i);
+                if (futures.isEmpty()) {
+                    redoLog.currentChunk = new RedoLogChunk(0, redoLog.config);
+                    continue;
+                }
+                // 即使有chunk读取失败了也要等其他的chunk，然后再抛出第一个异常
+                for (Future<RedoLogChunk> f : futures) {
+                    try {
+                        RedoLogChunk chunk = f.get();
+                        records.addAll(chunk.getAndResetRedoLogRecords());
+                        redoLog.currentChunk = chunk;
+                    } catch (ExecutionException ex) {
+                        Throwable cause = ex.getCause();
+                        if (e == null)
+                            e = cause instanceof RuntimeException ? (RuntimeException) cause
+                                    : DbException.convert(cause);
+                    } catch (InterruptedException ex) {
+                        if (e == null)
+                            e = DbException.convert(ex);
+                    }
+                }
+            }
+            if (e != null)
+                throw e;
+            return records;
+        } finally {
+            if (executor != null)
+                executor.shutdown();
+        }
+    }
+
+    private static int getRecoveryThreads(Map<String, String> config) {
+        String v = config.get("redo_log_recovery_threads");
+        if (v != null)
+            return Math.max(1, Integer.parseInt(v));
+        else
+            return Runtime.getRuntime().availableProcessors();
+    }
+
+    // 按顺序重放redo log记录，返回最大的事务id
+    long initPendingRedoLog(List<RedoLogRecord> records) {
+        long lastTransactionId = 0;
+        if (records.isEmpty())
+            return lastTransactionId;
+        LinkedHashMap<String, ReplicaPrepareCommitRedoLogRecord> replicaPrepareCommitMap = new LinkedHashMap<>();
+        for (RedoLogRecord r : records) {
+            if (r instanceof ReplicaPrepareCommitRedoLogRecord) {
+                ReplicaPrepareCommitRedoLogRecord rpc = (ReplicaPrepareCommitRedoLogRecord) r;
+                replicaPrepareCommitMap.put(rpc.getCurrentReplicationName(), rpc);
+            } else if (r instanceof ReplicaCommitRedoLogRecord) {
+                ReplicaCommitRedoLogRecord rc = (ReplicaCommitRedoLogRecord) r;
+                replicaPrepareCommitMap.remove(rc.getCurrentReplicationName());
             }
-            redoReplicaPrepareCommit(replicaPrepareCommitMap);
+            lastTransactionId = r.initPendingRedoLog(pendingRedoLog, lastTransactionId);
         }
+        redoReplicaPrepareCommit(replicaPrepareCommitMap);
         return lastTransactionId;
     }
 
@@ -116,26 +226,61 @@ public class RedoLog {
         }
     }
 
-    // 第一次打开底层存储的map时调用这个方法，重新执行一次上次已经成功并且在检查点之后的事务操作
+    // 第一次打开底层存储的map时调用这个方法，重新执行一次上次已经成功并且在检查点之后的事务操作，
+    // 不同的map可以在不同的线程中同时重做
     @SuppressWarnings("unchecked")
     public <K> void redo(StorageMap<K, TransactionalValue> map) {
         List<ByteBuffer> pendingKeyValues = pendingRedoLog.remove(map.getName());
         if (pendingKeyValues != null && !pendingKeyValues.isEmpty()) {
             StorageDataType kt = map.getKeyType();
             StorageDataType vt = ((TransactionalValueType) map.getValueType()).valueType;
-            for (ByteBuffer kv : pendingKeyValues) {
-                K key = (K) kt.read(kv);
-                if (kv.get() == 0)
-                    map.remove(key);
-                else {
-                    Object value = vt.read(kv);
-                    TransactionalValue tv = TransactionalValue.createCommitted(value);
-                    map.put(key, tv);
+            if (map.isEmpty()) {
+                // 空map先按key合并，只留下每个key最后一次的操作，排好序后就可以批量导入了
+                TreeMap<K, TransactionalValue> lastValues = new TreeMap<>(kt::compare);
+                for (ByteBuffer kv : pendingKeyValues) {
+                    K key = (K) kt.read(kv);
+                    if (kv.get() == 0)
+                        lastValues.put(key, null);
+                    else
+                        lastValues.put(key, TransactionalValue.createCommitted(vt.read(kv)));
+                }
+                lastValues.values().removeIf(v -> v == null);
+                map.bulkLoad(lastValues.entrySet().iterator());
+            } else {
+                for (ByteBuffer kv : pendingKeyValues) {
+                    K key = (K) kt.read(kv);
+                    if (kv.get() == 0)
+                        map.remove(key);
+                    else {
+                        Object value = vt.read(kv);
+                        TransactionalValue tv = TransactionalValue.createCommitted(value);
+                        map.put(key, tv);
+                    }
                 }
             }
+            replayedEntryCount.addAndGet(pendingKeyValues.size());
+            if (logger.isDebugEnabled())
+                logger.debug("Redo " + pendingKeyValues.size() + " entries of map " + map.getName());
         }
     }
 
+    public long getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    public int getRecoveredRecordCount() {
+        return recoveredRecordCount;
+    }
+
+    // 还没有打开过的map要等打开时才重做
+    public int getPendingMapCount() {
+        return pendingRedoLog.size();
+    }
+
+    public long getReplayedEntryCount() {
+        return replayedEntryCount.get();
+    }
+
     int size() {
         return currentChunk.size();
     }
@@ -149,11 +294,12 @@ public class RedoLog {
         currentChunk.close();
     }
 
-    void save() {
-        currentChunk.save();
+    Collection<RedoLogRecord> save() {
+        Collection<RedoLogRecord> records = currentChunk.save();
         if (currentChunk.logChunkSize() > logChunkSize) {
             currentChunk.close();
             currentChunk = new RedoLogChunk(currentChunk.getId() + 1, config);
         }
+        return records;
     }
 }
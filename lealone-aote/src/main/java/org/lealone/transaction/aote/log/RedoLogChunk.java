@@ -86,7 +86,8 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
         fileStorage.close();
     }
 
-    synchronized void save() {
+    // 返回这次同步的redo log记录，没有记录时返回null
+    synchronized LinkedTransferQueue<RedoLogRecord> save() {
         if (logQueueSize.get() > 0) {
             // System.out.println("logQueueSize: " + logQueueSize.get());
 
@@ -99,7 +100,7 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
                     buff.clear();
                     pos = 0;
                 }
-                r.write(buff);
+                r.writeWithSequence(buff);
                 if (buff.position() > BUFF_SIZE)
                     chunkLength += write(buff);
                 logQueueSize.decrementAndGet();
@@ -114,7 +115,9 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
             // 避免占用太多内存
             if (buff.capacity() > BUFF_SIZE * 3)
                 buff = DataBuffer.create(BUFF_SIZE);
+            return redoLogRecordQueue;
         }
+        return null;
     }
 
     private int write(DataBuffer buff) {
@@ -27,8 +27,11 @@ public abstract class RedoLogRecord {
     private static byte TYPE_DISTRIBUTED_TRANSACTION_REDO_LOG_RECORD = 3;
     private static byte TYPE_REPLICA_PREPARE_COMMIT_REDO_LOG_RECORD = 4;
     private static byte TYPE_REPLICA_COMMIT_REDO_LOG_RECORD = 5;
+    private static byte TYPE_SEQUENCE = 6; // 不是单独的记录，而是后面那条记录的序号
 
     private volatile boolean synced;
+    private long addedAt; // 加入日志同步队列的时间，单位是纳秒，用于统计等待同步的时间
+    private long sequence; // 有多个日志流时才会分配，恢复时按它合并各个日志流，0表示没有序号
 
     boolean isSynced() {
         return synced;
@@ -38,6 +41,22 @@ public abstract class RedoLogRecord {
         this.synced = synced;
     }
 
+    long getAddedAt() {
+        return addedAt;
+    }
+
+    void setAddedAt(long addedAt) {
+        this.addedAt = addedAt;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     boolean isCheckpoint() {
         return false;
     }
@@ -46,9 +65,23 @@ public abstract class RedoLogRecord {
 
     abstract void write(DataBuffer buff);
 
+    // 有序号时先写序号，没有序号时跟原来的格式一样
+    void writeWithSequence(DataBuffer buff) {
+        if (sequence > 0) {
+            buff.put(TYPE_SEQUENCE);
+            buff.putVarLong(sequence);
+        }
+        write(buff);
+    }
+
     static RedoLogRecord read(ByteBuffer buff) {
         int type = buff.get();
-        if (type == TYPE_CHECKPOINT) {
+        if (type == TYPE_SEQUENCE) {
+            long sequence = DataUtils.readVarLong(buff);
+            RedoLogRecord r = read(buff);
+            r.sequence = sequence;
+            return r;
+        } else if (type == TYPE_CHECKPOINT) {
             return Checkpoint.read(buff);
         } else if (type == TYPE_DROPPED_MAP_REDO_LOG_RECORD) {
             return DroppedMapRedoLogRecord.read(buff);
@@ -189,10 +222,13 @@ public abstract class RedoLogRecord {
                     keyValues = new LinkedList<>();
                     pendingRedoLog.put(mapName, keyValues);
                 }
+                // 直接引用operations中的字节，不用再复制一次
                 int len = buff.getInt();
-                byte[] keyValue = new byte[len];
-                buff.get(keyValue);
-                keyValues.add(ByteBuffer.wrap(keyValue));
+                int end = buff.position() + len;
+                ByteBuffer keyValue = buff.duplicate();
+                keyValue.limit(end);
+                keyValues.add(keyValue.slice());
+                buff.position(end);
             }
             return transactionId > lastTransactionId ? transactionId : lastTransactionId;
         }
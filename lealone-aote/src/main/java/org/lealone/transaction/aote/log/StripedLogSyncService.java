@@ -0,0 +1,228 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.transaction.aote.log;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.transaction.aote.AMTransaction;
+
+/**
+ * 把redo log分成多个日志流，每个日志流都有自己的redo log文件和同步线程，避免所有事务都挤在一个日志同步线程上。
+ * <p>
+ * 每个线程第一次写redo log时按轮转的方式分到一个日志流，之后固定写这个日志流，
+ * 调度线程是固定的，所以调度线程的个数不超过日志流的个数时每个调度线程都有自己的日志流。
+ * 每条记录都有一个全局递增的序号，恢复时按序号把所有日志流合并后再重放。
+ * 检查点记录会同时写到所有日志流中并且用同一个序号，这样每个日志流都能独立地删除检查点之前的记录。
+ * <p>
+ * 多个日志流只能跟instant或adaptive一起用：这两种同步方式在事务提交返回前redo log已经同步完成，
+ * 依赖它的事务写的记录一定更晚同步，所以崩溃后每个日志流剩下的记录合并起来还是一个前缀。
+ * periodic和no_sync做不到这一点，一个日志流同步了而另一个没有同步时，恢复出来的数据可能缺了前面的事务，
+ * 所以这两种同步方式配置多个日志流时直接报错；如果只是以前留下了多个日志流，
+ * 还是要恢复所有日志流，但是新的记录只写第一个日志流。
+ *
+ * @author zhh
+ */
+class StripedLogSyncService extends LogSyncService {
+
+    private static final String STREAM_DIR_PREFIX = "stream_";
+
+    private final LogSyncService[] streams;
+    // 分配序号和加入队列必须是原子的，这样每个日志流中记录的顺序跟序号的顺序是一样的
+    private final ReentrantLock[] locks;
+    private final AtomicLong lastSequence = new AtomicLong();
+    // 新的记录只写前writeStreamCount个日志流，后面的日志流只用于恢复
+    private final int writeStreamCount;
+    private final AtomicInteger nextStreamIndex = new AtomicInteger();
+    private final ThreadLocal<Integer> streamIndex = new ThreadLocal<>();
+
+    StripedLogSyncService(Map<String, String> config, int streamCount) {
+        super(config);
+        streams = new LogSyncService[streamCount];
+        locks = new ReentrantLock[streamCount];
+        String redoLogDir = config.get("redo_log_dir");
+        for (int i = 0; i < streamCount; i++) {
+            // 第一个日志流还是用原来的目录，这样从一个日志流改成多个时原来的redo log也能恢复
+            HashMap<String, String> streamConfig = new HashMap<>(config);
+            if (i > 0)
+                streamConfig.put("redo_log_dir", getStreamDir(redoLogDir, i));
+            LogSyncService stream = createStream(streamConfig);
+            stream.setName(stream.getName() + "-" + i);
+            stream.metrics = metrics;
+            streams[i] = stream;
+            locks[i] = new ReentrantLock();
+        }
+        redoLog = new StripedRedoLog(config, streams, lastSequence);
+        writeStreamCount = streams[0].isInstantSync() ? streamCount : 1;
+    }
+
+    private static String getStreamDir(String redoLogDir, int index) {
+        return redoLogDir + File.separator + STREAM_DIR_PREFIX + index;
+    }
+
+    static int getStreamCount(Map<String, String> config) {
+        int streamCount = 1;
+        if (config.containsKey("redo_log_stream_count"))
+            streamCount = Integer.parseInt(config.get("redo_log_stream_count"));
+        if (streamCount > 1 && !isInstantSync(config.get("log_sync_type")))
+            throw new IllegalArgumentException(
+                    "redo_log_stream_count > 1 requires log_sync_type " + LOG_SYNC_TYPE_INSTANT + " or "
+                            + LOG_SYNC_TYPE_ADAPTIVE + ", but it is " + config.get("log_sync_type"));
+        // 以前用过更多的日志流时，那些日志流中的记录也要恢复，所以日志流的个数不能变少，
+        // 不管现在用哪种同步方式都要先检查已经存在的日志流
+        String baseDir = config.get("base_dir");
+        String redoLogDir = config.get("redo_log_dir");
+        int existing = 1;
+        while (FileUtils.exists(baseDir + File.separator + getStreamDir(redoLogDir, existing)))
+            existing++;
+        return Math.max(streamCount, existing);
+    }
+
+    private static boolean isInstantSync(String logSyncType) {
+        return LOG_SYNC_TYPE_INSTANT.equalsIgnoreCase(logSyncType)
+                || LOG_SYNC_TYPE_ADAPTIVE.equalsIgnoreCase(logSyncType);
+    }
+
+    // 线程id不是连续的，直接取模会让多个调度线程挤在同一个日志流上，所以按第一次写的顺序轮转分配
+    private int getStreamIndex() {
+        if (writeStreamCount == 1)
+            return 0;
+        Integer index = streamIndex.get();
+        if (index == null) {
+            index = nextStreamIndex.getAndIncrement() % writeStreamCount;
+            streamIndex.set(index);
+        }
+        return index;
+    }
+
+    @Override
+    public int getStreamCount() {
+        return streams.length;
+    }
+
+    @Override
+    public synchronized void start() {
+        for (LogSyncService stream : streams) {
+            stream.start();
+        }
+        super.start();
+    }
+
+    @Override
+    public void run() {
+        // 只负责在关闭时关闭所有日志流，同步由每个日志流自己的线程完成
+        while (running) {
+            haveWork.acquireUninterruptibly();
+        }
+        for (LogSyncService stream : streams) {
+            stream.close();
+        }
+        for (LogSyncService stream : streams) {
+            try {
+                stream.join();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    @Override
+    public boolean isInstantSync() {
+        return streams[0].isInstantSync();
+    }
+
+    @Override
+    public boolean needSync() {
+        return streams[0].needSync();
+    }
+
+    @Override
+    public void maybeWaitForSync(RedoLogRecord r) {
+        streams[getStreamIndex()].maybeWaitForSync(r);
+    }
+
+    @Override
+    public void asyncCommit(AMTransaction t) {
+        streams[getStreamIndex()].asyncCommit(t);
+    }
+
+    @Override
+    public void addRedoLogRecord(RedoLogRecord r) {
+        int index = getStreamIndex();
+        ReentrantLock lock = locks[index];
+        lock.lock();
+        try {
+            r.setSequence(lastSequence.incrementAndGet());
+            streams[index].addRedoLogRecord(r);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void addAndMaybeWaitForSync(RedoLogRecord r) {
+        addRedoLogRecord(r);
+        maybeWaitForSync(r);
+    }
+
+    @Override
+    public void checkpoint(long checkpointId) {
+        int streamCount = streams.length;
+        RedoLogRecord[] checkpoints = new RedoLogRecord[streamCount];
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            long sequence = lastSequence.incrementAndGet();
+            for (int i = 0; i < streamCount; i++) {
+                RedoLogRecord r = RedoLogRecord.createCheckpoint(checkpointId);
+                r.setSequence(sequence);
+                streams[i].addRedoLogRecord(r);
+                checkpoints[i] = r;
+            }
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+        for (int i = 0; i < streamCount; i++) {
+            streams[i].maybeWaitForSync(checkpoints[i]);
+        }
+    }
+
+    // 只用于恢复，恢复完后每个日志流用自己的RedoLog
+    private static class StripedRedoLog extends RedoLog {
+
+        private final LogSyncService[] streams;
+        private final AtomicLong lastSequence;
+
+        StripedRedoLog(Map<String, String> config, LogSyncService[] streams, AtomicLong lastSequence) {
+            super(config);
+            this.streams = streams;
+            this.lastSequence = lastSequence;
+        }
+
+        @Override
+        List<RedoLogRecord> readRedoLogRecords() {
+            RedoLog[] redoLogs = new RedoLog[streams.length];
+            for (int i = 0; i < streams.length; i++) {
+                redoLogs[i] = streams[i].getRedoLog();
+            }
+            List<RedoLogRecord> records = readRedoLogRecords(redoLogs);
+            // 稳定排序，没有序号的记录是只有一个日志流时写的，都排在前面并且保持原来的顺序
+            records.sort(Comparator.comparingLong(RedoLogRecord::getSequence));
+            if (!records.isEmpty())
+                lastSequence.set(records.get(records.size() - 1).getSequence());
+            return records;
+        }
+    }
+}
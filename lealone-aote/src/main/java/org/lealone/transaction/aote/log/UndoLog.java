@@ -6,6 +6,9 @@
 package org.lealone.transaction.aote.log;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.db.DataBuffer;
 import org.lealone.transaction.aote.AMTransactionEngine;
@@ -17,6 +20,9 @@ public class UndoLog {
     private int logId;
     private UndoLogRecord first;// 指向最早加进来的，执行commit时从first开始遍历
     private UndoLogRecord last; // 总是指向新增加的，执行rollback时从first开始遍历
+    // key: mapName，value: 当前事务在这个map中插入的记录数减去删除的记录数，提交时加到map已提交的记录数上，
+    // 插入失败时会在异步回调中撤销，所以要用线程安全的
+    private final ConcurrentHashMap<String, AtomicLong> sizeDeltas = new ConcurrentHashMap<>();
 
     public int getLogId() {
         return logId;
@@ -40,7 +46,13 @@ public class UndoLog {
 
     public UndoLogRecord add(String mapName, Object key, Object oldValue, TransactionalValue newTV,
             boolean isForUpdate) {
-        UndoLogRecord r = new UndoLogRecord(mapName, key, oldValue, newTV, isForUpdate);
+        return add(mapName, key, oldValue, newTV, isForUpdate, 0);
+    }
+
+    public UndoLogRecord add(String mapName, Object key, Object oldValue, TransactionalValue newTV,
+            boolean isForUpdate, int sizeDelta) {
+        UndoLogRecord r = new UndoLogRecord(mapName, key, oldValue, newTV, isForUpdate, sizeDelta);
+        addSizeDelta(mapName, sizeDelta);
         if (first == null) {
             first = last = r;
         } else {
@@ -62,10 +74,36 @@ public class UndoLog {
                 first = null;
             }
             --logId;
+            if (!r.isUndone())
+                addSizeDelta(r.getMapName(), -r.getSizeDelta());
         }
         return r;
     }
 
+    private void addSizeDelta(String mapName, int delta) {
+        if (delta != 0)
+            sizeDeltas.computeIfAbsent(mapName, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Get the number of rows this transaction added to the map, minus the rows it removed.
+     *
+     * @param mapName the map name
+     * @return the delta
+     */
+    public long getSizeDelta(String mapName) {
+        AtomicLong delta = sizeDeltas.get(mapName);
+        return delta == null ? 0 : delta.get();
+    }
+
+    // 插入失败时调用，撤销对记录数的影响
+    public void setUndone(UndoLogRecord r) {
+        if (!r.isUndone()) {
+            r.setUndone(true);
+            addSizeDelta(r.getMapName(), -r.getSizeDelta());
+        }
+    }
+
     public void undo() {
         removeLast();
     }
@@ -76,6 +114,9 @@ public class UndoLog {
             r.commit(transactionEngine, tid);
             r = r.next;
         }
+        for (Map.Entry<String, AtomicLong> e : sizeDeltas.entrySet()) {
+            transactionEngine.addCommittedSize(e.getKey(), e.getValue().get());
+        }
     }
 
     public void unlock() {
@@ -86,7 +127,13 @@ public class UndoLog {
         }
     }
 
-    public void gc() { // TODO
+    // 回收这个事务修改过的记录中已经不会再被读到的旧版本
+    public void gc(AMTransactionEngine transactionEngine) {
+        UndoLogRecord r = first;
+        while (r != null) {
+            r.gc(transactionEngine);
+            r = r.next;
+        }
     }
 
     public void rollbackTo(AMTransactionEngine transactionEngine, int toLogId) {
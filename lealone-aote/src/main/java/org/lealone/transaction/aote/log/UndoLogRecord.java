@@ -22,16 +22,23 @@ public class UndoLogRecord {
     private final TransactionalValue newTV;
     private final boolean isForUpdate;
     private volatile boolean undone;
+    private final int sizeDelta; // 对map记录数的影响，插入是1，删除是-1，其他是0
 
     UndoLogRecord next;
     UndoLogRecord prev;
 
     public UndoLogRecord(String mapName, Object key, Object oldValue, TransactionalValue newTV, boolean isForUpdate) {
+        this(mapName, key, oldValue, newTV, isForUpdate, 0);
+    }
+
+    public UndoLogRecord(String mapName, Object key, Object oldValue, TransactionalValue newTV, boolean isForUpdate,
+            int sizeDelta) {
         this.mapName = mapName;
         this.key = key;
         this.oldValue = oldValue;
         this.newTV = newTV;
         this.isForUpdate = isForUpdate;
+        this.sizeDelta = sizeDelta;
     }
 
     public String getMapName() {
@@ -58,6 +65,14 @@ public class UndoLogRecord {
         this.undone = undone;
     }
 
+    boolean isUndone() {
+        return undone;
+    }
+
+    int getSizeDelta() {
+        return sizeDelta;
+    }
+
     public void setRetryReplicationNames(List<String> retryReplicationNames) {
         if (newTV != null)
             newTV.setRetryReplicationNames(retryReplicationNames);
@@ -100,6 +115,11 @@ public class UndoLogRecord {
             newTV.unlock();
     }
 
+    void gc(AMTransactionEngine transactionEngine) {
+        if (newTV != null && !isForUpdate)
+            transactionEngine.gcOldValue(newTV);
+    }
+
     // 当前事务开始rollback了，调用这个方法在内存中撤销之前的更新
     public void rollback(AMTransactionEngine transactionEngine) {
         if (undone)
@@ -0,0 +1,69 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with power of two buckets, bucket i holds the values in [2^(i-1), 2^i).
+ * It can be updated and read by multiple threads at the same time.
+ */
+public class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void add(long value) {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Get the upper bound of the bucket that contains the given percentile.
+     *
+     * @param percentile a value between 0 and 1, for example 0.99
+     * @return the estimated value, never larger than the maximum value
+     */
+    public long getPercentile(double percentile) {
+        long c = count.get();
+        if (c == 0)
+            return 0;
+        long target = (long) Math.ceil(c * percentile);
+        long n = 0;
+        for (int i = 0; i < 64; i++) {
+            n += buckets.get(i);
+            if (n >= target)
+                return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getPercentile(0.5) + ", p99="
+                + getPercentile(0.99) + ", max=" + getMax();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage;
+
+import org.lealone.db.value.Value;
+
+/**
+ * 扫描时某个列必须满足的条件，存储引擎可以用它跟page的zone map比较，跳过肯定没有匹配记录的page。
+ * <p>
+ * 这只是一个必要条件，没有被跳过的记录调用者还要自己再判断一次。
+ *
+ * @author zhh
+ */
+public class ColumnFilter {
+
+    public final int columnIndex;
+    public final Value min; // 包含边界值，null表示没有下限
+    public final Value max; // 包含边界值，null表示没有上限
+    public final boolean isNull; // 为true时只匹配null值
+
+    private ColumnFilter(int columnIndex, Value min, Value max, boolean isNull) {
+        this.columnIndex = columnIndex;
+        this.min = min;
+        this.max = max;
+        this.isNull = isNull;
+    }
+
+    /**
+     * Create a filter that only matches the not null values between min and max.
+     *
+     * @param columnIndex the column index
+     * @param min the inclusive lower bound, or null
+     * @param max the inclusive upper bound, or null
+     * @return the filter
+     */
+    public static ColumnFilter range(int columnIndex, Value min, Value max) {
+        return new ColumnFilter(columnIndex, min, max, false);
+    }
+
+    /**
+     * Create a filter that only matches the null values.
+     *
+     * @param columnIndex the column index
+     * @return the filter
+     */
+    public static ColumnFilter isNull(int columnIndex) {
+        return new ColumnFilter(columnIndex, null, null, true);
+    }
+
+    @Override
+    public String toString() {
+        if (isNull)
+            return "c" + columnIndex + " IS NULL";
+        return "c" + columnIndex + " BETWEEN " + min + " AND " + max;
+    }
+}
@@ -10,12 +10,14 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.DateTimeUtils;
 import org.lealone.common.util.ShutdownHookUtils;
 import org.lealone.db.async.AsyncResult;
+import org.lealone.storage.PageOperation.PageOperationResult;
 
 public class DefaultPageOperationHandler implements PageOperationHandler, Runnable, PageOperation.Listener<Object> {
 
@@ -28,7 +30,21 @@ public class DefaultPageOperationHandler implements PageOperationHandler, Runnab
     private final long loopInterval;
     private Thread thread;
     private boolean stopped;
-    private long shiftCount;
+
+    // 以下字段用于工作窃取:
+    // 空闲的处理器发现其他处理器的队列长度超过stealThreshold时，向它发出窃取请求，
+    // 繁忙的处理器处理完自己的某个leaf page上的写操作后，就把这个leaf page交给发出请求的处理器
+    private final AtomicReference<DefaultPageOperationHandler> stealer = new AtomicReference<>();
+    private final int stealThreshold;
+    private DefaultPageOperationHandler[] peers; // 为null时不窃取
+    private long lastStealTime;
+
+    // 以下字段是统计信息，除了stolenLeafPageCount由交出leaf page的处理器修改，其他的只由当前处理器的线程修改
+    private volatile long startTime = System.nanoTime();
+    private volatile long busyTime; // 纳秒
+    private volatile long completedTaskCount;
+    private volatile long shiftCount;
+    private final AtomicLong stolenLeafPageCount = new AtomicLong();
 
     public DefaultPageOperationHandler(int id, Map<String, String> config) {
         this(DefaultPageOperationHandler.class.getSimpleName() + "-" + id, config);
@@ -38,6 +54,12 @@ public class DefaultPageOperationHandler implements PageOperationHandler, Runnab
         this.name = name;
         // 默认100毫秒
         loopInterval = DateTimeUtils.getLoopInterval(config, "page_operation_handler_loop_interval", 100);
+        String threshold = config.get("page_operation_handler_steal_threshold");
+        stealThreshold = threshold == null ? 64 : Math.max(1, Integer.parseInt(threshold));
+    }
+
+    public void setPeers(DefaultPageOperationHandler[] peers) {
+        this.peers = peers;
     }
 
     @Override
@@ -64,7 +86,7 @@ public class DefaultPageOperationHandler implements PageOperationHandler, Runnab
     public void reset(boolean clearTasks) {
         thread = null;
         stopped = false;
-        shiftCount = 0;
+        resetMetrics();
         if (clearTasks) {
             size.set(0);
             tasks.clear();
@@ -93,14 +115,89 @@ public class DefaultPageOperationHandler implements PageOperationHandler, Runnab
         haveWork.release(1);
     }
 
+    public void resetMetrics() {
+        startTime = System.nanoTime();
+        busyTime = 0;
+        completedTaskCount = 0;
+        shiftCount = 0;
+        stolenLeafPageCount.set(0);
+    }
+
+    /**
+     * Get the number of page operations that were moved to other handlers.
+     */
     public long getShiftCount() {
         return shiftCount;
     }
 
+    /**
+     * Get the time in nanoseconds spent running page operations.
+     */
+    public long getBusyTime() {
+        return busyTime;
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount;
+    }
+
+    /**
+     * Get the number of leaf pages this handler took over from overloaded handlers.
+     */
+    public long getStolenLeafPageCount() {
+        return stolenLeafPageCount.get();
+    }
+
+    /**
+     * Get the fraction of time spent running page operations since the metrics were last reset.
+     *
+     * @return a value between 0 and 1
+     */
+    public double getUtilization() {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed <= 0 ? 0 : Math.min(1.0, (double) busyTime / elapsed);
+    }
+
+    @Override
+    public PageOperationHandler takeStealRequest() {
+        if (stealer.get() == null)
+            return null;
+        DefaultPageOperationHandler h = stealer.getAndSet(null);
+        // 已经不忙了或者请求者也忙起来了就不用交出去了
+        if (h == null || size.get() <= stealThreshold || h.getLoad() >= size.get() / 2)
+            return null;
+        h.stolenLeafPageCount.incrementAndGet();
+        return h;
+    }
+
+    // 当前处理器空闲时找出队列最长的处理器，请求接管它的一个leaf page
+    private void tryToSteal() {
+        DefaultPageOperationHandler[] peers = this.peers;
+        if (peers == null || size.get() > 0)
+            return;
+        long now = System.currentTimeMillis();
+        // 限制窃取的频率，避免一个很热的leaf page在两个处理器之间来回移交
+        if (now - lastStealTime < loopInterval)
+            return;
+        DefaultPageOperationHandler victim = null;
+        long maxLoad = stealThreshold;
+        for (DefaultPageOperationHandler h : peers) {
+            long load = h.getLoad();
+            if (h != this && load > maxLoad) {
+                maxLoad = load;
+                victim = h;
+            }
+        }
+        if (victim != null && victim.stealer.compareAndSet(null, this)) {
+            lastStealTime = now;
+        }
+    }
+
     @Override
     public void run() {
         while (!stopped) {
             runTasks();
+            tryToSteal();
             try {
                 haveWork.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
                 haveWork.drainPermits();
@@ -114,19 +211,27 @@ public class DefaultPageOperationHandler implements PageOperationHandler, Runnab
 
     private void runTasks() {
         PageOperation task = tasks.poll();
+        if (task == null)
+            return;
+        long start = System.nanoTime();
+        long count = 0, shifted = 0;
         while (task != null) {
             size.decrementAndGet();
             try {
-                task.run(this);
-                // PageOperationResult result = task.run(this);
-                // if (result == PageOperationResult.SHIFTED) {
-                // shiftCount++;
-                // }
+                PageOperationResult result = task.run(this);
+                if (result == PageOperationResult.SHIFTED) {
+                    shifted++;
+                }
             } catch (Throwable e) {
                 logger.warn("Failed to run page operation: " + task, e);
             }
+            count++;
             task = tasks.poll();
         }
+        // 每批任务只更新一次统计信息
+        busyTime += System.nanoTime() - start;
+        completedTaskCount += count;
+        shiftCount += shifted;
     }
 
     // 以下使用同步方式执行
@@ -14,6 +14,7 @@ public class IterationParameters<K> {
     public List<PageKey> pageKeys;
     public int[] columnIndexes;
     public boolean allColumns;
+    public ColumnFilter[] columnFilters; // 用于跳过不满足条件的page，可以为null
 
     public <K2> IterationParameters<K2> copy(K2 from, K2 to) {
         IterationParameters<K2> p = new IterationParameters<>();
@@ -21,6 +22,7 @@ public class IterationParameters<K> {
         p.to = to;
         p.pageKeys = pageKeys;
         p.columnIndexes = columnIndexes;
+        p.columnFilters = columnFilters;
         return p;
     }
 
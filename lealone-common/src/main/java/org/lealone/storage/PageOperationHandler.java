@@ -10,4 +10,10 @@ public interface PageOperationHandler {
     long getLoad();
 
     void handlePageOperation(PageOperation po);
+
+    // 返回请求接管当前处理器的一个leaf page的空闲处理器，没有请求时返回null，
+    // 只能由当前处理器自己调用，并且调用一次后请求就被清除了
+    default PageOperationHandler takeStealRequest() {
+        return null;
+    }
 }
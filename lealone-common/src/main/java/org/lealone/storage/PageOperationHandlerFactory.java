@@ -17,8 +17,11 @@ public abstract class PageOperationHandlerFactory {
 
     protected final DefaultPageOperationHandler nodePageOperationHandler;
     protected PageOperationHandler[] pageOperationHandlers;
+    // 是否允许空闲的DefaultPageOperationHandler接管繁忙的DefaultPageOperationHandler的leaf page
+    protected final boolean workStealing;
 
     protected PageOperationHandlerFactory(Map<String, String> config, PageOperationHandler[] handlers) {
+        workStealing = !"false".equalsIgnoreCase(config.get("page_operation_handler_work_stealing"));
         nodePageOperationHandler = new DefaultPageOperationHandler("NodePageOperationHandler", config);
         nodePageOperationHandler.start();
         if (handlers != null) {
@@ -38,6 +41,7 @@ public abstract class PageOperationHandlerFactory {
         for (int i = 0; i < handlerCount; i++) {
             pageOperationHandlers[i] = new DefaultPageOperationHandler("LeafPageOperationHandler-" + i, config);
         }
+        initWorkStealing();
         startHandlers();
     }
 
@@ -57,6 +61,22 @@ public abstract class PageOperationHandlerFactory {
     public void setPageOperationHandlers(PageOperationHandler[] handlers) {
         pageOperationHandlers = new PageOperationHandler[handlers.length];
         System.arraycopy(handlers, 0, pageOperationHandlers, 0, handlers.length);
+        initWorkStealing();
+    }
+
+    // 只有DefaultPageOperationHandler之间可以互相窃取
+    private void initWorkStealing() {
+        ArrayList<DefaultPageOperationHandler> list = new ArrayList<>(pageOperationHandlers.length);
+        for (PageOperationHandler h : pageOperationHandlers) {
+            if (h instanceof DefaultPageOperationHandler)
+                list.add((DefaultPageOperationHandler) h);
+        }
+        DefaultPageOperationHandler[] peers = null;
+        if (workStealing && list.size() > 1)
+            peers = list.toArray(new DefaultPageOperationHandler[list.size()]);
+        for (DefaultPageOperationHandler h : list) {
+            h.setPeers(peers);
+        }
     }
 
     public void addPageOperation(PageOperation po) {
@@ -166,8 +186,10 @@ public abstract class PageOperationHandlerFactory {
             int index = 0;
             for (int i = 0, size = pageOperationHandlers.length; i < size; i++) {
                 long load = pageOperationHandlers[i].getLoad();
-                if (load < minLoad)
+                if (load < minLoad) {
+                    minLoad = load;
                     index = i;
+                }
             }
             return pageOperationHandlers[index];
         }
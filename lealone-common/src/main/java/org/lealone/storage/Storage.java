@@ -48,6 +48,38 @@ public interface Storage {
 
     void backupTo(String fileName);
 
+    /**
+     * 增量备份，只备份在lastDate之后修改过的文件，lastDate为null时等同于全量备份
+     */
+    void backupTo(String fileName, Long lastDate);
+
+    /**
+     * 跟backupTo(fileName, lastDate)一样，同时在备份文件中记下备份对应的redo log检查点，
+     * 恢复备份后从这个检查点开始重放redo log，checkpointId小于0时表示没有检查点
+     */
+    void backupTo(String fileName, Long lastDate, long checkpointId);
+
+    /**
+     * 后台压缩重写过的存活page的总字节数，从压缩服务启动时开始统计，没有后台压缩时返回0
+     */
+    default long getCompactionRewrittenBytes() {
+        return 0;
+    }
+
+    /**
+     * 后台压缩删除的chunk个数，从压缩服务启动时开始统计，没有后台压缩时返回0
+     */
+    default long getCompactionReclaimedChunks() {
+        return 0;
+    }
+
+    /**
+     * 后台压缩删除的chunk文件的总字节数，从压缩服务启动时开始统计，没有后台压缩时返回0
+     */
+    default long getCompactionReclaimedBytes() {
+        return 0;
+    }
+
     void close();
 
     void closeImmediately();
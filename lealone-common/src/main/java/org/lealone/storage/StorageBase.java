@@ -5,11 +5,14 @@
  */
 package org.lealone.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
@@ -26,6 +29,9 @@ public abstract class StorageBase implements Storage {
 
     protected static final String TEMP_NAME_PREFIX = Constants.NAME_SEPARATOR + "temp" + Constants.NAME_SEPARATOR;
 
+    // 备份文件中记录备份信息的文件，包含备份的开始时间和对应的redo log检查点
+    public static final String BACKUP_INFO_FILE_NAME = "backup.info";
+
     protected final ConcurrentHashMap<StorageEventListener, StorageEventListener> listeners = new ConcurrentHashMap<>();
     protected final ConcurrentHashMap<String, StorageMap<?, ?>> maps = new ConcurrentHashMap<>();
     protected final Map<String, Object> config;
@@ -109,14 +115,48 @@ public abstract class StorageBase implements Storage {
 
     @Override
     public void backupTo(String fileName) {
+        backupTo(fileName, null);
+    }
+
+    @Override
+    public void backupTo(String fileName, Long lastDate) {
+        backupTo(fileName, lastDate, -1);
+    }
+
+    @Override
+    public void backupTo(String fileName, Long lastDate, long checkpointId) {
         if (isInMemory())
             return;
+        // 下一次增量备份可以用这个时间作为lastDate
+        long backupDate = System.currentTimeMillis();
         save();
-        // TODO 如何在不关闭存储的情况下备份，可能相关的文件在打开时就用排它锁锁住了，所以读不了
-        close();
+        try (OutputStream zip = FileUtils.newOutputStream(fileName, false);
+                ZipOutputStream out = new ZipOutputStream(zip)) {
+            String path = getStoragePath(); // 可能是一个文件或目录
+            backupTo(path, out, lastDate);
+            backupInfo(out, backupDate, lastDate, checkpointId);
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, fileName);
+        }
+    }
 
-        String path = getStoragePath(); // 可能是一个文件或目录
-        backupFiles(path, fileName);
+    // 默认实现需要先关闭存储，因为相关的文件可能在打开时就用排它锁锁住了，
+    // 子类如果能在不关闭存储的情况下备份，可以覆盖这个方法
+    protected void backupTo(String path, ZipOutputStream out, Long lastDate) throws IOException {
+        close();
+        FilePath p = FilePath.get(path);
+        if (p.isDirectory()) {
+            String pathShortName = getPathShortName(path);
+            for (FilePath map : p.newDirectoryStream()) {
+                String entryNameBase = pathShortName + "/" + map.getName();
+                for (FilePath file : map.newDirectoryStream()) {
+                    if (lastDate == null || file.lastModified() >= lastDate)
+                        backupFile(out, file.newInputStream(), entryNameBase + "/" + file.getName());
+                }
+            }
+        } else {
+            backupFile(out, p.newInputStream(), p.getName());
+        }
     }
 
     @Override
@@ -153,29 +193,25 @@ public abstract class StorageBase implements Storage {
         listeners.remove(listener);
     }
 
-    private static void backupFiles(String path, String toFile) {
-        try (OutputStream zip = FileUtils.newOutputStream(toFile, false);
-                ZipOutputStream out = new ZipOutputStream(zip)) {
-            FilePath p = FilePath.get(path);
-            if (p.isDirectory()) {
-                String pathShortName = path.replace('\\', '/');
-                pathShortName = pathShortName.substring(pathShortName.lastIndexOf('/') + 1);
-                FilePath dir = FilePath.get(path);
-                for (FilePath map : dir.newDirectoryStream()) {
-                    String entryNameBase = pathShortName + "/" + map.getName();
-                    for (FilePath file : map.newDirectoryStream()) {
-                        backupFile(out, file.newInputStream(), entryNameBase + "/" + file.getName());
-                    }
-                }
-            } else {
-                backupFile(out, p.newInputStream(), p.getName());
-            }
-        } catch (IOException e) {
-            throw DbException.convertIOException(e, toFile);
-        }
+    private static void backupInfo(ZipOutputStream out, long backupDate, Long lastDate, long checkpointId)
+            throws IOException {
+        Properties info = new Properties();
+        info.setProperty("backupDate", Long.toString(backupDate));
+        if (lastDate != null)
+            info.setProperty("lastDate", lastDate.toString());
+        if (checkpointId >= 0)
+            info.setProperty("checkpointId", Long.toString(checkpointId));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        info.store(bytes, null);
+        backupFile(out, new ByteArrayInputStream(bytes.toByteArray()), BACKUP_INFO_FILE_NAME);
+    }
+
+    protected static String getPathShortName(String path) {
+        String pathShortName = path.replace('\\', '/');
+        return pathShortName.substring(pathShortName.lastIndexOf('/') + 1);
     }
 
-    private static void backupFile(ZipOutputStream out, InputStream in, String entryName) throws IOException {
+    public static void backupFile(ZipOutputStream out, InputStream in, String entryName) throws IOException {
         out.putNextEntry(new ZipEntry(entryName));
         IOUtils.copyAndCloseInput(in, out);
         out.closeEntry();
@@ -83,7 +83,8 @@ public abstract class StorageBuilder {
     }
 
     /**
-     * Set the read cache size in MB. The default is 16 MB.
+     * Enable or disable the read cache. All maps share one page cache whose size is set by page_cache_size,
+     * so only a value not larger than 0 matters, it disables the cache for the map.
      * 
      * @param mb the cache size in megabytes
      * @return this
@@ -166,6 +167,41 @@ public abstract class StorageBuilder {
         return set("minFillRate", minFillRate);
     }
 
+    /**
+     * Set the number of sibling leaf pages to read ahead during sequential scans.
+     * The default is 8, 0 disables read-ahead.
+     * 
+     * @param pages the number of pages
+     * @return this
+     */
+    public StorageBuilder readAheadWindow(int pages) {
+        return set("readAheadWindow", pages);
+    }
+
+    /**
+     * Read pages of the finished chunk files through read-only memory mappings
+     * instead of reading them into a new buffer for every cache miss.
+     * It is ignored if the files are encrypted or not on the local disk.
+     *
+     * @param mmapRead whether to enable it
+     * @return this
+     */
+    public StorageBuilder mmapRead(boolean mmapRead) {
+        return set("mmapRead", mmapRead);
+    }
+
+    /**
+     * Build a bloom filter of the keys for every leaf page when it is saved,
+     * so that get or containsKey of a key that does not exist does not need to read the leaf page.
+     * Only the keys that the key type can hash are filtered, see StorageDataType.hashKey.
+     *
+     * @param bitsPerKey the number of bits per key, 10 gives about 1% false positive rate, 0 for disabled
+     * @return this
+     */
+    public StorageBuilder bloomFilterBitsPerKey(int bitsPerKey) {
+        return set("bloomFilterBitsPerKey", bitsPerKey);
+    }
+
     public StorageBuilder db(Object db) {
         return set("db", db);
     }
@@ -6,6 +6,7 @@
 package org.lealone.storage;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -75,6 +76,19 @@ public interface StorageMap<K, V> {
      */
     V putIfAbsent(K key, V value);
 
+    /**
+     * Add the key-value pairs of a sorted stream, the keys must be distinct and in ascending order.
+     * An empty map can build its pages directly from the stream instead of inserting the keys one by one.
+     *
+     * @param entries the sorted key-value pairs
+     */
+    default void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            put(e.getKey(), e.getValue());
+        }
+    }
+
     /**
      * Remove a key-value pair, if the key exists.
      *
@@ -231,6 +245,24 @@ public interface StorageMap<K, V> {
 
     long getMemorySpaceUsed();
 
+    /**
+     * Get the number of times a page of this map was found in the page cache.
+     * 
+     * @return the cache hits, 0 if the map does not use a page cache
+     */
+    default long getCacheHits() {
+        return 0;
+    }
+
+    /**
+     * Get the number of times a page of this map was not found in the page cache.
+     * 
+     * @return the cache misses, 0 if the map does not use a page cache
+     */
+    default long getCacheMisses() {
+        return 0;
+    }
+
     //////////////////// 以下是异步API， 默认用同步API实现 ////////////////////////////////
 
     default void get(K key, AsyncHandler<AsyncResult<V>> handler) {
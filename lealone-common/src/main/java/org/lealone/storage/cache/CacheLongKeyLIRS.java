@@ -84,13 +84,13 @@ public class CacheLongKeyLIRS<V> {
     public void clear() {
         long max = Math.max(1, maxMemory / segmentCount);
         for (int i = 0; i < segmentCount; i++) {
-            segments[i] = new Segment<V>(max, stackMoveDistance, 8, nonResidentQueueSize);
+            segments[i] = new Segment<V>(this, max, stackMoveDistance, 8, nonResidentQueueSize);
         }
     }
 
     private Entry<V> find(long key) {
         int hash = getHash(key);
-        return getSegment(hash).find(key, hash);
+        return getSegment(hash).find(0, key, hash);
     }
 
     /**
@@ -101,8 +101,20 @@ public class CacheLongKeyLIRS<V> {
      * @return true if there is a resident entry
      */
     public boolean containsKey(long key) {
-        int hash = getHash(key);
-        return getSegment(hash).containsKey(key, hash);
+        return containsKey(0, key);
+    }
+
+    /**
+     * Check whether there is a resident entry for the given key of the given group.
+     * This method does not adjust the internal state of the cache.
+     *
+     * @param group the group of the key
+     * @param key the key (may not be null)
+     * @return true if there is a resident entry
+     */
+    public boolean containsKey(int group, long key) {
+        int hash = getHash(group, key);
+        return getSegment(hash).containsKey(group, key, hash);
     }
 
     /**
@@ -139,7 +151,22 @@ public class CacheLongKeyLIRS<V> {
      * @return the old value, or null if there was no resident entry
      */
     public V put(long key, V value, int memory) {
-        int hash = getHash(key);
+        return put(0, key, value, memory);
+    }
+
+    /**
+     * Add an entry for the given key of the given group to the cache.
+     * Entries of different groups never replace each other even if the keys are the same,
+     * so one cache can be shared by several owners whose keys may overlap.
+     *
+     * @param group the group of the key
+     * @param key the key (may not be null)
+     * @param value the value (may not be null)
+     * @param memory the memory used for the given entry
+     * @return the old value, or null if there was no resident entry
+     */
+    public V put(int group, long key, V value, int memory) {
+        int hash = getHash(group, key);
         int segmentIndex = getSegmentIndex(hash);
         Segment<V> s = segments[segmentIndex];
         // check whether resize is required: synchronize on s, to avoid
@@ -147,7 +174,7 @@ public class CacheLongKeyLIRS<V> {
         // from the old segment)
         synchronized (s) {
             s = resizeIfNeeded(s, segmentIndex);
-            return s.put(key, hash, value, memory);
+            return s.put(group, key, hash, value, memory);
         }
     }
 
@@ -185,7 +212,19 @@ public class CacheLongKeyLIRS<V> {
      * @return the old value, or null if there was no resident entry
      */
     public V remove(long key) {
-        int hash = getHash(key);
+        return remove(0, key);
+    }
+
+    /**
+     * Remove an entry of the given group. Both resident and non-resident entries can be
+     * removed.
+     *
+     * @param group the group of the key
+     * @param key the key (may not be null)
+     * @return the old value, or null if there was no resident entry
+     */
+    public V remove(int group, long key) {
+        int hash = getHash(group, key);
         int segmentIndex = getSegmentIndex(hash);
         Segment<V> s = segments[segmentIndex];
         // check whether resize is required: synchronize on s, to avoid
@@ -193,7 +232,7 @@ public class CacheLongKeyLIRS<V> {
         // from the old segment)
         synchronized (s) {
             s = resizeIfNeeded(s, segmentIndex);
-            return s.remove(key, hash);
+            return s.remove(group, key, hash);
         }
     }
 
@@ -205,7 +244,7 @@ public class CacheLongKeyLIRS<V> {
      */
     public int getMemory(long key) {
         int hash = getHash(key);
-        return getSegment(hash).getMemory(key, hash);
+        return getSegment(hash).getMemory(0, key, hash);
     }
 
     /**
@@ -217,8 +256,41 @@ public class CacheLongKeyLIRS<V> {
      * @return the value, or null if there is no resident entry
      */
     public V get(long key) {
-        int hash = getHash(key);
-        return getSegment(hash).get(key, hash);
+        return get(0, key);
+    }
+
+    /**
+     * Get the value for the given key of the given group if the entry is cached.
+     *
+     * @param group the group of the key
+     * @param key the key (may not be null)
+     * @return the value, or null if there is no resident entry
+     */
+    public V get(int group, long key) {
+        int hash = getHash(group, key);
+        return getSegment(hash).get(group, key, hash);
+    }
+
+    /**
+     * Called when an entry becomes resident. It is called while the segment is locked,
+     * so it should be fast. The default implementation does nothing.
+     *
+     * @param group the group of the key
+     * @param value the value
+     * @param memory the memory used for the entry
+     */
+    protected void onAdd(int group, V value, int memory) {
+    }
+
+    /**
+     * Called when a resident entry is removed, replaced or evicted, but not when the cache is cleared.
+     * It is called while the segment is locked, so it should be fast. The default implementation does nothing.
+     *
+     * @param group the group of the key
+     * @param value the value
+     * @param memory the memory used for the entry
+     */
+    protected void onRemove(int group, V value, int memory) {
     }
 
     private Segment<V> getSegment(int hash) {
@@ -246,6 +318,17 @@ public class CacheLongKeyLIRS<V> {
         return hash;
     }
 
+    /**
+     * Get the hash code for the given key of the given group.
+     *
+     * @param group the group of the key
+     * @param key the key
+     * @return the hash code
+     */
+    static int getHash(int group, long key) {
+        return getHash(key ^ (group * 0x9E3779B97F4A7C15L));
+    }
+
     /**
      * Get the currently used memory.
      *
@@ -476,6 +559,11 @@ public class CacheLongKeyLIRS<V> {
      */
     private static class Segment<V> {
 
+        /**
+         * The cache this segment belongs to.
+         */
+        private final CacheLongKeyLIRS<V> cache;
+
         /**
          * The number of (hot, cold, and non-resident) entries in the map.
          */
@@ -571,13 +659,16 @@ public class CacheLongKeyLIRS<V> {
         /**
          * Create a new cache segment.
          *
+         * @param cache the cache
          * @param maxMemory the maximum memory to use
          * @param stackMoveDistance the number of other entries to be moved to
          *        the top of the stack before moving an entry to the top
          * @param len the number of hash table buckets (must be a power of 2)
          * @param nonResidentQueueSize the non-resident queue size factor
          */
-        Segment(long maxMemory, int stackMoveDistance, int len, int nonResidentQueueSize) {
+        Segment(CacheLongKeyLIRS<V> cache, long maxMemory, int stackMoveDistance, int len,
+                int nonResidentQueueSize) {
+            this.cache = cache;
             setMaxMemory(maxMemory);
             this.stackMoveDistance = stackMoveDistance;
             this.nonResidentQueueSize = nonResidentQueueSize;
@@ -607,7 +698,7 @@ public class CacheLongKeyLIRS<V> {
          * @param len the number of hash table buckets (must be a power of 2)
          */
         Segment(Segment<V> old, int len) {
-            this(old.maxMemory, old.stackMoveDistance, len, old.nonResidentQueueSize);
+            this(old.cache, old.maxMemory, old.stackMoveDistance, len, old.nonResidentQueueSize);
             hits = old.hits;
             misses = old.misses;
             Entry<V> s = old.stack.stackPrev;
@@ -619,7 +710,7 @@ public class CacheLongKeyLIRS<V> {
             }
             s = old.queue.queuePrev;
             while (s != old.queue) {
-                Entry<V> e = find(s.key, getHash(s.key));
+                Entry<V> e = find(s.group, s.key, getHash(s.group, s.key));
                 if (e == null) {
                     e = copy(s);
                     addToMap(e);
@@ -629,7 +720,7 @@ public class CacheLongKeyLIRS<V> {
             }
             s = old.queue2.queuePrev;
             while (s != old.queue2) {
-                Entry<V> e = find(s.key, getHash(s.key));
+                Entry<V> e = find(s.group, s.key, getHash(s.group, s.key));
                 if (e == null) {
                     e = copy(s);
                     addToMap(e);
@@ -658,7 +749,7 @@ public class CacheLongKeyLIRS<V> {
         }
 
         private void addToMap(Entry<V> e) {
-            int index = getHash(e.key) & mask;
+            int index = getHash(e.group, e.key) & mask;
             e.mapNext = entries[index];
             entries[index] = e;
             usedMemory += e.memory;
@@ -667,6 +758,7 @@ public class CacheLongKeyLIRS<V> {
 
         private static <V> Entry<V> copy(Entry<V> old) {
             Entry<V> e = new Entry<V>();
+            e.group = old.group;
             e.key = old.key;
             e.value = old.value;
             e.memory = old.memory;
@@ -677,12 +769,13 @@ public class CacheLongKeyLIRS<V> {
         /**
          * Get the memory used for the given key.
          *
+         * @param group the group of the key
          * @param key the key (may not be null)
          * @param hash the hash
          * @return the memory, or 0 if there is no resident entry
          */
-        int getMemory(long key, int hash) {
-            Entry<V> e = find(key, hash);
+        int getMemory(int group, long key, int hash) {
+            Entry<V> e = find(group, key, hash);
             return e == null ? 0 : e.memory;
         }
 
@@ -691,12 +784,13 @@ public class CacheLongKeyLIRS<V> {
          * adjusts the internal state of the cache sometimes, to ensure commonly
          * used entries stay in the cache.
          *
+         * @param group the group of the key
          * @param key the key (may not be null)
          * @param hash the hash
          * @return the value, or null if there is no resident entry
          */
-        V get(long key, int hash) {
-            Entry<V> e = find(key, hash);
+        V get(int group, long key, int hash) {
+            Entry<V> e = find(group, key, hash);
             if (e == null) {
                 // the entry was not found
                 misses++;
@@ -711,11 +805,11 @@ public class CacheLongKeyLIRS<V> {
             if (e.isHot()) {
                 if (e != stack.stackNext) {
                     if (stackMoveDistance == 0 || stackMoveCounter - e.topMove > stackMoveDistance) {
-                        access(key, hash);
+                        access(group, key, hash);
                     }
                 }
             } else {
-                access(key, hash);
+                access(group, key, hash);
             }
             hits++;
             return value;
@@ -725,10 +819,11 @@ public class CacheLongKeyLIRS<V> {
          * Access an item, moving the entry to the top of the stack or front of
          * the queue if found.
          *
+         * @param group the group of the key
          * @param key the key
          */
-        private synchronized void access(long key, int hash) {
-            Entry<V> e = find(key, hash);
+        private synchronized void access(int group, long key, int hash) {
+            Entry<V> e = find(group, key, hash);
             if (e == null || e.value == null) {
                 return;
             }
@@ -772,29 +867,31 @@ public class CacheLongKeyLIRS<V> {
          * cache yet. This method will usually mark unknown entries as cold and
          * known entries as hot.
          *
+         * @param group the group of the key
          * @param key the key (may not be null)
          * @param hash the hash
          * @param value the value (may not be null)
          * @param memory the memory used for the given entry
          * @return the old value, or null if there was no resident entry
          */
-        synchronized V put(long key, int hash, V value, int memory) {
+        synchronized V put(int group, long key, int hash, V value, int memory) {
             if (value == null) {
                 throw DataUtils.newIllegalArgumentException("The value may not be null");
             }
             V old;
-            Entry<V> e = find(key, hash);
+            Entry<V> e = find(group, key, hash);
             if (e == null) {
                 old = null;
             } else {
                 old = e.value;
-                remove(key, hash);
+                remove(group, key, hash);
             }
             if (memory > maxMemory) {
                 // the new entry is too big to fit
                 return old;
             }
             e = new Entry<V>();
+            e.group = group;
             e.key = key;
             e.value = value;
             e.memory = memory;
@@ -802,6 +899,7 @@ public class CacheLongKeyLIRS<V> {
             e.mapNext = entries[index];
             entries[index] = e;
             usedMemory += memory;
+            cache.onAdd(group, value, memory);
             if (usedMemory > maxMemory) {
                 // old entries needs to be removed
                 evict();
@@ -822,18 +920,19 @@ public class CacheLongKeyLIRS<V> {
          * Remove an entry. Both resident and non-resident entries can be
          * removed.
          *
+         * @param group the group of the key
          * @param key the key (may not be null)
          * @param hash the hash
          * @return the old value, or null if there was no resident entry
          */
-        synchronized V remove(long key, int hash) {
+        synchronized V remove(int group, long key, int hash) {
             int index = hash & mask;
             Entry<V> e = entries[index];
             if (e == null) {
                 return null;
             }
             V old;
-            if (e.key == key) {
+            if (e.key == key && e.group == group) {
                 old = e.value;
                 entries[index] = e.mapNext;
             } else {
@@ -844,12 +943,15 @@ public class CacheLongKeyLIRS<V> {
                     if (e == null) {
                         return null;
                     }
-                } while (e.key != key);
+                } while (e.key != key || e.group != group);
                 old = e.value;
                 last.mapNext = e.mapNext;
             }
             mapSize--;
             usedMemory -= e.memory;
+            if (old != null) {
+                cache.onRemove(group, old, e.memory);
+            }
             if (e.stackNext != null) {
                 removeFromStack(e);
             }
@@ -892,6 +994,7 @@ public class CacheLongKeyLIRS<V> {
             while (usedMemory > maxMemory && queueSize > 0) {
                 Entry<V> e = queue.queuePrev;
                 usedMemory -= e.memory;
+                cache.onRemove(e.group, e.value, e.memory);
                 removeFromQueue(e);
                 e.value = null;
                 e.memory = 0;
@@ -901,8 +1004,8 @@ public class CacheLongKeyLIRS<V> {
                 if (maxQueue2Size >= 0) {
                     while (queue2Size > maxQueue2Size) {
                         e = queue2.queuePrev;
-                        int hash = getHash(e.key);
-                        remove(e.key, hash);
+                        int hash = getHash(e.group, e.key);
+                        remove(e.group, e.key, hash);
                     }
                 }
             }
@@ -944,14 +1047,15 @@ public class CacheLongKeyLIRS<V> {
         /**
          * Try to find an entry in the map.
          *
+         * @param group the group of the key
          * @param key the key
          * @param hash the hash
          * @return the entry (might be a non-resident)
          */
-        Entry<V> find(long key, int hash) {
+        Entry<V> find(int group, long key, int hash) {
             int index = hash & mask;
             Entry<V> e = entries[index];
-            while (e != null && e.key != key) {
+            while (e != null && (e.key != key || e.group != group)) {
                 e = e.mapNext;
             }
             return e;
@@ -1036,12 +1140,13 @@ public class CacheLongKeyLIRS<V> {
          * Check whether there is a resident entry for the given key. This
          * method does not adjust the internal state of the cache.
          *
+         * @param group the group of the key
          * @param key the key (may not be null)
          * @param hash the hash
          * @return true if there is a resident entry
          */
-        boolean containsKey(long key, int hash) {
-            Entry<V> e = find(key, hash);
+        boolean containsKey(int group, long key, int hash) {
+            Entry<V> e = find(group, key, hash);
             return e != null && e.value != null;
         }
 
@@ -1085,6 +1190,11 @@ public class CacheLongKeyLIRS<V> {
      */
     static class Entry<V> {
 
+        /**
+         * The group of the key, entries of different groups are different even if the keys are the same.
+         */
+        int group;
+
         /**
          * The key.
          */
@@ -0,0 +1,99 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.storage.type;
+
+import java.nio.ByteBuffer;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+
+/**
+ * 写page时把有序的key编码成紧凑格式的工具方法，
+ * long类型的key只写第一个值和相邻key的差值，字符串类型的key只写跟前一个key不同的后缀。
+ *
+ * @author zhh
+ */
+public class CompactKeys {
+
+    private CompactKeys() {
+    }
+
+    /**
+     * Write the first value and the deltas of the adjacent values.
+     *
+     * @param buff the target buffer
+     * @param values the sorted values
+     */
+    public static void writeDeltas(DataBuffer buff, long[] values) {
+        long last = 0;
+        for (long v : values) {
+            buff.putVarLong(v - last); // 溢出了也没关系，读的时候加回来结果是一样的
+            last = v;
+        }
+    }
+
+    /**
+     * Read the values written by writeDeltas.
+     *
+     * @param buff the source buffer
+     * @param len the number of values
+     * @return the values
+     */
+    public static long[] readDeltas(ByteBuffer buff, int len) {
+        long[] values = new long[len];
+        long last = 0;
+        for (int i = 0; i < len; i++) {
+            last += DataUtils.readVarLong(buff);
+            values[i] = last;
+        }
+        return values;
+    }
+
+    /**
+     * Write the strings, only the suffix that differs from the previous string is written.
+     *
+     * @param buff the target buffer
+     * @param values the sorted strings
+     */
+    public static void writePrefixed(DataBuffer buff, String[] values) {
+        String last = "";
+        for (String s : values) {
+            int prefix = commonPrefixLength(last, s);
+            int suffix = s.length() - prefix;
+            buff.putVarInt(prefix).putVarInt(suffix).putStringData(s.substring(prefix), suffix);
+            last = s;
+        }
+    }
+
+    /**
+     * Read the strings written by writePrefixed.
+     *
+     * @param buff the source buffer
+     * @param len the number of strings
+     * @return the strings
+     */
+    public static String[] readPrefixed(ByteBuffer buff, int len) {
+        String[] values = new String[len];
+        String last = "";
+        for (int i = 0; i < len; i++) {
+            int prefix = DataUtils.readVarInt(buff);
+            int suffix = DataUtils.readVarInt(buff);
+            String s = DataUtils.readString(buff, suffix);
+            last = prefix == 0 ? s : last.substring(0, prefix).concat(s);
+            values[i] = last;
+        }
+        return values;
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int len = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < len && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
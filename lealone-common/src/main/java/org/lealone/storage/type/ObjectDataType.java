@@ -64,6 +64,77 @@ public class ObjectDataType implements StorageDataType {
         last.write(buff, obj);
     }
 
+    // String是按toString比较的，跟它比较相等的Integer和Long的toString也相同，所以都用toString的hashCode
+    @Override
+    public boolean isHashableKey(Object key) {
+        if (key == null)
+            return false;
+        Class<?> c = key.getClass();
+        return c == Long.class || c == Integer.class || c == String.class;
+    }
+
+    @Override
+    public int hashKey(Object key) {
+        return key.toString().hashCode();
+    }
+
+    // 紧凑格式的key的类型
+    private static final int COMPACT_INT = 1;
+    private static final int COMPACT_LONG = 2;
+    private static final int COMPACT_STRING = 3;
+
+    @Override
+    public boolean writeCompactKeys(DataBuffer buff, Object[] keys, int len) {
+        Class<?> c = keys[0].getClass();
+        if (c != Integer.class && c != Long.class && c != String.class)
+            return false;
+        for (int i = 1; i < len; i++) {
+            if (keys[i].getClass() != c)
+                return false;
+        }
+        if (c == String.class) {
+            String[] values = new String[len];
+            System.arraycopy(keys, 0, values, 0, len);
+            buff.put((byte) COMPACT_STRING);
+            CompactKeys.writePrefixed(buff, values);
+        } else {
+            long[] values = new long[len];
+            for (int i = 0; i < len; i++) {
+                values[i] = ((Number) keys[i]).longValue();
+            }
+            buff.put((byte) (c == Integer.class ? COMPACT_INT : COMPACT_LONG));
+            CompactKeys.writeDeltas(buff, values);
+        }
+        return true;
+    }
+
+    @Override
+    public void readCompactKeys(ByteBuffer buff, Object[] keys, int len) {
+        int type = buff.get();
+        switch (type) {
+        case COMPACT_INT: {
+            long[] values = CompactKeys.readDeltas(buff, len);
+            for (int i = 0; i < len; i++) {
+                keys[i] = (int) values[i];
+            }
+            break;
+        }
+        case COMPACT_LONG: {
+            long[] values = CompactKeys.readDeltas(buff, len);
+            for (int i = 0; i < len; i++) {
+                keys[i] = values[i];
+            }
+            break;
+        }
+        case COMPACT_STRING:
+            System.arraycopy(CompactKeys.readPrefixed(buff, len), 0, keys, 0, len);
+            break;
+        default:
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Unknown compact key type {0}",
+                    type);
+        }
+    }
+
     @Override
     public Object read(ByteBuffer buff) {
         int tag = buff.get();
@@ -135,6 +135,93 @@ public interface StorageDataType {
         }
     }
 
+    /**
+     * Write the sorted keys of a page in a compact form, for example, prefix or delta encoding.
+     *
+     * @param buff the target buffer
+     * @param keys the sorted keys
+     * @param len the number of keys to write
+     * @return false if the keys can not be written in a compact form, and nothing is written
+     */
+    default boolean writeCompactKeys(DataBuffer buff, Object[] keys, int len) {
+        return false;
+    }
+
+    /**
+     * Read the keys written by writeCompactKeys.
+     *
+     * @param buff the source buffer
+     * @param keys the keys
+     * @param len the number of keys to read
+     */
+    default void readCompactKeys(ByteBuffer buff, Object[] keys, int len) {
+        throw DataUtils.newUnsupportedOperationException("readCompactKeys");
+    }
+
+    /**
+     * Check whether the key is a long value that is compared with the other long keys of this type
+     * by its long value.
+     *
+     * @param key the key
+     * @return true if the key is a long key
+     */
+    default boolean isLongKey(Object key) {
+        return false;
+    }
+
+    /**
+     * Get the long value of the long key.
+     *
+     * @param key the long key
+     * @return the long value
+     */
+    default long getLongKey(Object key) {
+        throw DataUtils.newUnsupportedOperationException("getLongKey");
+    }
+
+    /**
+     * Check whether all the keys of a map of this key type are long keys.
+     * If so, the pages store the keys as a primitive long array,
+     * and create the key objects by {@link #createLongKey(long)} when they are read.
+     *
+     * @return true if all the keys are long keys
+     */
+    default boolean isLongKeyType() {
+        return false;
+    }
+
+    /**
+     * Create the long key of the long value.
+     *
+     * @param value the long value
+     * @return the long key
+     */
+    default Object createLongKey(long value) {
+        throw DataUtils.newUnsupportedOperationException("createLongKey");
+    }
+
+    /**
+     * Check whether the key can be hashed by {@link #hashKey(Object)}.
+     * Only the long keys can be hashed by default.
+     *
+     * @param key the key
+     * @return true if the key can be hashed
+     */
+    default boolean isHashableKey(Object key) {
+        return isLongKey(key);
+    }
+
+    /**
+     * Get the hash code of the hashable key. The keys that compare equal must have the same hash code,
+     * and the hash code must not change after restart, because it may be persisted.
+     *
+     * @param key the hashable key
+     * @return the hash code
+     */
+    default int hashKey(Object key) {
+        return Long.hashCode(getLongKey(key));
+    }
+
     default void writeMeta(DataBuffer buff, Object obj) {
         // do nothing
     }
@@ -152,6 +239,17 @@ public interface StorageDataType {
         // do nothing
     }
 
+    /**
+     * Set the value of the column, it is used to read the encoded column page.
+     *
+     * @param obj the object
+     * @param columnIndex the column index
+     * @param value the column value
+     */
+    default void setColumn(Object obj, int columnIndex, Value value) {
+        // do nothing
+    }
+
     default void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         // do nothing
     }
@@ -168,6 +266,39 @@ public interface StorageDataType {
         return getMemory(obj);
     }
 
+    /**
+     * Get the value of the column, it is used to build the zone map of a column page.
+     *
+     * @param obj the object
+     * @param columnIndex the column index
+     * @return the column value, or null if it is unknown
+     */
+    default Value getColumn(Object obj, int columnIndex) {
+        return null;
+    }
+
+    /**
+     * Compare two not null values of the same column.
+     *
+     * @param a the first column value
+     * @param b the second column value
+     * @return -1 if the first is smaller, 1 if bigger, 0 if equal
+     */
+    default int compareColumn(Value a, Value b) {
+        throw DataUtils.newUnsupportedOperationException("compareColumn");
+    }
+
+    /**
+     * Check whether all transactions see the same value of the object.
+     * The pages that contain uncommitted values are not skipped by their zone maps.
+     *
+     * @param obj the object
+     * @return true if the object is committed
+     */
+    default boolean isCommitted(Object obj) {
+        return true;
+    }
+
     public static int getTypeId(int tag) {
         int typeId;
         if (tag <= TYPE_SERIALIZED_OBJECT) {
@@ -23,4 +23,18 @@ public interface TransactionEngine extends PluggableEngine {
     TransactionMap<?, ?> getTransactionMap(String mapName, Transaction transaction);
 
     void checkpoint();
+
+    /**
+     * 开始备份，先执行一次检查点，在调用endBackup之前不再执行新的检查点，
+     * 这样redo log会一直保留这个检查点之后的记录，恢复备份后可以从这个检查点开始重放。
+     *
+     * @return 检查点的id，不支持时返回-1
+     */
+    default long beginBackup() {
+        checkpoint();
+        return -1;
+    }
+
+    default void endBackup() {
+    }
 }
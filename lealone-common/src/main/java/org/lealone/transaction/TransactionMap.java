@@ -7,6 +7,7 @@ package org.lealone.transaction;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.lealone.db.async.Future;
 import org.lealone.storage.IterationParameters;
@@ -46,6 +47,13 @@ public interface TransactionMap<K, V> extends StorageMap<K, V> {
      */
     public V putCommitted(K key, V value);
 
+    /**
+     * Add the sorted key-value pairs as committed values, without adding undo log entries.
+     *
+     * @param entries the key-value pairs, the keys must be distinct and in ascending order
+     */
+    public void bulkLoadCommitted(Iterator<? extends Map.Entry<K, V>> entries);
+
     /**
      * Iterate over entries.
      *
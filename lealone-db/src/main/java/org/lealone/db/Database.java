@@ -1936,8 +1936,21 @@ public class Database implements DataHandler, DbObject, IDatabase {
     }
 
     public void backupTo(String fileName) {
-        for (Storage s : getStorages()) {
-            s.backupTo(fileName);
+        backupTo(fileName, null);
+    }
+
+    public void backupTo(String fileName, Long lastDate) {
+        // 先执行一次检查点，把已提交的数据保存到存储中，同时在redo log中记下检查点的位置，
+        // 备份期间不再执行新的检查点，redo log中这个检查点之后的记录都会保留，
+        // 备份文件中记下这个检查点，恢复备份后从这里开始重放redo log
+        long checkpointId = persistent ? transactionEngine.beginBackup() : -1;
+        try {
+            for (Storage s : getStorages()) {
+                s.backupTo(fileName, lastDate, checkpointId);
+            }
+        } finally {
+            if (persistent)
+                transactionEngine.endBackup();
         }
     }
 
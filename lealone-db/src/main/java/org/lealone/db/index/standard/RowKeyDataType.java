@@ -0,0 +1,29 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.db.index.standard;
+
+import org.lealone.db.value.ValueLong;
+
+/**
+ * 主索引的key类型，key都是ValueLong类型的row key，
+ * 所以page中的key直接保存在long数组中，读key时再创建ValueLong
+ */
+public class RowKeyDataType extends ValueDataType {
+
+    public RowKeyDataType() {
+        super(null, null, null);
+    }
+
+    @Override
+    public boolean isLongKeyType() {
+        return true;
+    }
+
+    @Override
+    public Object createLongKey(long value) {
+        return ValueLong.get(value);
+    }
+}
@@ -74,7 +74,7 @@ public class StandardPrimaryIndex extends StandardIndex {
         for (int i = 0; i < columns.length; i++) {
             sortTypes[i] = SortOrder.ASCENDING;
         }
-        ValueDataType keyType = new ValueDataType(null, null, null);
+        ValueDataType keyType = new RowKeyDataType();
         ValueDataType valueType = new ValueDataType(database, database.getCompareMode(), sortTypes);
         VersionedValueType vvType = new VersionedValueType(valueType, columns.length);
 
@@ -32,6 +32,7 @@ import org.lealone.db.value.ValueNull;
 import org.lealone.storage.Storage;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.TransactionMapEntry;
 
 /**
  * @author H2 Group
@@ -308,6 +309,38 @@ public class StandardSecondaryIndex extends StandardIndex {
             }
         }
         try {
+            // 空索引直接用合并后的有序记录从下往上构建btree，不用每条记录都从root往下插入
+            if (dataMap.getRawSize() == 0) {
+                dataMap.bulkLoadCommitted(new Iterator<TransactionMapEntry<ValueArray, Value>>() {
+                    private SearchRow last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return !sources.isEmpty();
+                    }
+
+                    @Override
+                    public TransactionMapEntry<ValueArray, Value> next() {
+                        Source s = sources.pollFirst();
+                        ValueArray v = s.value;
+                        if (s.next.hasNext()) {
+                            s.value = s.next.next();
+                            sources.add(s);
+                        }
+                        // 重复的记录在合并后一定是相邻的
+                        if (indexType.isUnique()) {
+                            SearchRow row = convertToSearchRow(v);
+                            if (last != null && compareRows(row, last) == 0
+                                    && !containsNullAndAllowMultipleNull(row)) {
+                                throw getDuplicateKeyException(v.toString());
+                            }
+                            last = row;
+                        }
+                        return new TransactionMapEntry<>(v, ValueNull.INSTANCE);
+                    }
+                });
+                return;
+            }
             while (true) {
                 Source s = sources.first();
                 ValueArray v = s.value;
@@ -8,13 +8,20 @@ package org.lealone.db.index.standard;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import org.lealone.common.util.DataUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.db.DataHandler;
 import org.lealone.db.result.SortOrder;
 import org.lealone.db.value.CompareMode;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueByte;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueShort;
+import org.lealone.db.value.ValueString;
+import org.lealone.storage.type.CompactKeys;
 import org.lealone.storage.type.StorageDataType;
 
 /**
@@ -28,7 +35,8 @@ public class ValueDataType implements StorageDataType {
 
     public ValueDataType(DataHandler handler, CompareMode compareMode, int[] sortTypes) {
         this.handler = handler;
-        this.compareMode = compareMode;
+        // 没有指定时按默认规则比较，写column page的zone map时也要比较字段值
+        this.compareMode = compareMode != null ? compareMode : CompareMode.getInstance(null, 0, false);
         this.sortTypes = sortTypes;
     }
 
@@ -121,6 +129,139 @@ public class ValueDataType implements StorageDataType {
         }
     }
 
+    // 主索引的key是ValueLong，不是数组的key总是按升序比较
+    @Override
+    public boolean isLongKey(Object key) {
+        return key != null && key.getClass() == ValueLong.class;
+    }
+
+    @Override
+    public long getLongKey(Object key) {
+        return ((ValueLong) key).getLong();
+    }
+
+    // 按值比较的整数类型才能用long值计算hash，ValueDecimal、ValueString这些类型比较相等时不一定有相同的表示
+    @Override
+    public boolean isHashableKey(Object key) {
+        if (key == null)
+            return false;
+        Class<?> c = key.getClass();
+        return c == ValueLong.class || c == ValueInt.class || c == ValueShort.class || c == ValueByte.class;
+    }
+
+    @Override
+    public int hashKey(Object key) {
+        return Long.hashCode(((Value) key).getLong());
+    }
+
+    // 紧凑格式的key的类型
+    private static final int COMPACT_INT = 1;
+    private static final int COMPACT_LONG = 2;
+    private static final int COMPACT_STRING = 3;
+    private static final int COMPACT_ARRAY = 4;
+
+    @Override
+    public boolean writeCompactKeys(DataBuffer buff, Object[] keys, int len) {
+        Class<?> c = keys[0].getClass();
+        if (c != ValueInt.class && c != ValueLong.class && c != ValueString.class && c != ValueArray.class)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (keys[i].getClass() != c)
+                return false;
+            if (c == ValueArray.class && ((ValueArray) keys[i]).getComponentType() != Object.class)
+                return false;
+        }
+        if (c == ValueArray.class) {
+            writeCompactArrays(buff, keys, len);
+        } else if (c == ValueString.class) {
+            String[] values = new String[len];
+            for (int i = 0; i < len; i++) {
+                values[i] = ((Value) keys[i]).getString();
+            }
+            buff.put((byte) COMPACT_STRING);
+            CompactKeys.writePrefixed(buff, values);
+        } else {
+            long[] values = new long[len];
+            for (int i = 0; i < len; i++) {
+                values[i] = ((Value) keys[i]).getLong();
+            }
+            buff.put((byte) (c == ValueInt.class ? COMPACT_INT : COMPACT_LONG));
+            CompactKeys.writeDeltas(buff, values);
+        }
+        return true;
+    }
+
+    // 二级索引的key是由索引字段和行key组成的数组，前面的字段跟前一个key相同时就不再写了
+    private static void writeCompactArrays(DataBuffer buff, Object[] keys, int len) {
+        buff.put((byte) COMPACT_ARRAY);
+        Value[] last = null;
+        for (int i = 0; i < len; i++) {
+            Value[] list = ((ValueArray) keys[i]).getList();
+            int prefix = 0;
+            if (last != null) {
+                int max = Math.min(last.length, list.length);
+                while (prefix < max && isSameValue(last[prefix], list[prefix])) {
+                    prefix++;
+                }
+            }
+            buff.putVarInt(list.length).putVarInt(prefix);
+            for (int j = prefix; j < list.length; j++) {
+                buff.writeValue(list[j]);
+            }
+            last = list;
+        }
+    }
+
+    // 不能只用equals，忽略大小写的字符串equals时不区分大小写，
+    // 'abc'和'ABC'共享前缀后读出来就都变成'abc'了，所以要比较原始的字符串
+    private static boolean isSameValue(Value a, Value b) {
+        if (a == b)
+            return true;
+        if (a.getType() != b.getType())
+            return false;
+        if (a.getType() == Value.STRING_IGNORECASE)
+            return a.getString().equals(b.getString());
+        return a.equals(b);
+    }
+
+    @Override
+    public void readCompactKeys(ByteBuffer buff, Object[] keys, int len) {
+        int type = buff.get();
+        switch (type) {
+        case COMPACT_INT:
+        case COMPACT_LONG: {
+            long[] values = CompactKeys.readDeltas(buff, len);
+            for (int i = 0; i < len; i++) {
+                keys[i] = type == COMPACT_INT ? ValueInt.get((int) values[i]) : ValueLong.get(values[i]);
+            }
+            break;
+        }
+        case COMPACT_STRING: {
+            String[] values = CompactKeys.readPrefixed(buff, len);
+            for (int i = 0; i < len; i++) {
+                keys[i] = ValueString.get(values[i]);
+            }
+            break;
+        }
+        case COMPACT_ARRAY: {
+            Value[] last = null;
+            for (int i = 0; i < len; i++) {
+                Value[] list = new Value[DataUtils.readVarInt(buff)];
+                int prefix = DataUtils.readVarInt(buff);
+                for (int j = 0; j < list.length; j++) {
+                    list[j] = j < prefix ? last[j] : DataBuffer.readValue(buff);
+                }
+                keys[i] = ValueArray.get(list);
+                last = list;
+            }
+            break;
+        }
+        default:
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Unknown compact key type {0}",
+                    type);
+        }
+    }
+
     @Override
     public Object read(ByteBuffer buff) {
         return DataBuffer.readValue(buff);
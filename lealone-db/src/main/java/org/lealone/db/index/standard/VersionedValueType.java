@@ -113,6 +113,14 @@ public class VersionedValueType implements StorageDataType {
         }
     }
 
+    @Override
+    public void setColumn(Object obj, int columnIndex, Value value) {
+        VersionedValue v = (VersionedValue) obj;
+        Value[] columns = v.value.getList();
+        if (columnIndex >= 0 && columnIndex < columns.length)
+            columns[columnIndex] = value;
+    }
+
     @Override
     public void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
         if (columnIndexes != null) {
@@ -146,4 +154,19 @@ public class VersionedValueType implements StorageDataType {
             return 0;
         }
     }
+
+    @Override
+    public Value getColumn(Object obj, int columnIndex) {
+        VersionedValue v = (VersionedValue) obj;
+        Value[] columns = v.value.getList();
+        if (columnIndex >= 0 && columnIndex < columns.length)
+            return columns[columnIndex];
+        else
+            return null;
+    }
+
+    @Override
+    public int compareColumn(Value a, Value b) {
+        return valueType.compare(a, b);
+    }
 }
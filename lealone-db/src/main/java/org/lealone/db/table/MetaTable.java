@@ -61,6 +61,8 @@ import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueNull;
 import org.lealone.db.value.ValueString;
 import org.lealone.db.value.ValueStringIgnoreCase;
+import org.lealone.storage.Storage;
+import org.lealone.storage.StorageMap;
 
 /**
  * This class is responsible to build the database meta data pseudo tables.
@@ -105,7 +107,9 @@ public class MetaTable extends Table {
     private static final int QUERY_STATISTICS = 28;
     private static final int DATABASES = 29;
     private static final int SYS_TABLE = 30;
-    private static final int META_TABLE_TYPE_COUNT = SYS_TABLE + 1;
+    private static final int PAGE_CACHE = 31;
+    private static final int COMPACTION = 32;
+    private static final int META_TABLE_TYPE_COUNT = COMPACTION + 1;
 
     private final int type;
     private final int indexColumn;
@@ -298,6 +302,15 @@ public class MetaTable extends Table {
             setObjectName("SYS_TABLE");
             cols = createColumns("ID", "TYPE", "SQL");
             break;
+        case PAGE_CACHE:
+            setObjectName("PAGE_CACHE");
+            cols = createColumns("DATABASE_NAME", "MAP_NAME", "HITS BIGINT", "MISSES BIGINT", "USED_MEMORY BIGINT");
+            break;
+        case COMPACTION:
+            setObjectName("COMPACTION");
+            cols = createColumns("DATABASE_NAME", "STORAGE_PATH", "REWRITTEN_BYTES BIGINT",
+                    "RECLAIMED_CHUNKS BIGINT", "RECLAIMED_BYTES BIGINT");
+            break;
         default:
             throw DbException.getInternalError("type=" + type);
         }
@@ -1432,12 +1445,64 @@ public class MetaTable extends Table {
             }
             break;
         }
+        case PAGE_CACHE: {
+            for (Database database : getDatabases(session)) {
+                for (Storage storage : database.getStorages()) {
+                    for (String mapName : storage.getMapNames()) {
+                        StorageMap<?, ?> map = storage.getMap(mapName);
+                        if (map == null || map.isClosed())
+                            continue;
+                        add(rows,
+                                // DATABASE_NAME
+                                database.getShortName(),
+                                // MAP_NAME
+                                mapName,
+                                // HITS
+                                "" + map.getCacheHits(),
+                                // MISSES
+                                "" + map.getCacheMisses(),
+                                // USED_MEMORY
+                                "" + map.getMemorySpaceUsed());
+                    }
+                }
+            }
+            break;
+        }
+        case COMPACTION: {
+            for (Database database : getDatabases(session)) {
+                for (Storage storage : database.getStorages()) {
+                    if (storage.isInMemory() || storage.isClosed())
+                        continue;
+                    add(rows,
+                            // DATABASE_NAME
+                            database.getShortName(),
+                            // STORAGE_PATH
+                            storage.getStoragePath(),
+                            // REWRITTEN_BYTES
+                            "" + storage.getCompactionRewrittenBytes(),
+                            // RECLAIMED_CHUNKS
+                            "" + storage.getCompactionReclaimedChunks(),
+                            // RECLAIMED_BYTES
+                            "" + storage.getCompactionReclaimedBytes());
+                }
+            }
+            break;
+        }
         default:
             DbException.throwInternalError("type=" + type);
         }
         return rows;
     }
 
+    // 在系统数据库中可以看到所有数据库的统计信息，在其他数据库中只能看到自己的
+    private static List<Database> getDatabases(ServerSession session) {
+        if (session.getDatabase() == LealoneDatabase.getInstance())
+            return LealoneDatabase.getInstance().getDatabases();
+        List<Database> databases = new ArrayList<>(1);
+        databases.add(session.getDatabase());
+        return databases;
+    }
+
     private static int getRefAction(int action) {
         switch (action) {
         case ConstraintReferential.CASCADE:
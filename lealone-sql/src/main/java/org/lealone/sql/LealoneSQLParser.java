@@ -536,6 +536,9 @@ public class LealoneSQLParser implements SQLParser {
         Backup command = new Backup(session);
         read("TO");
         command.setFileName(readExpression());
+        if (readIf("LAST_DATE")) {
+            command.setLastDate(readExpression());
+        }
         return command;
     }
 
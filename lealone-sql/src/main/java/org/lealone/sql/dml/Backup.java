@@ -16,6 +16,7 @@ import org.lealone.sql.expression.Expression;
 public class Backup extends ManipulationStatement {
 
     private Expression fileNameExpr;
+    private Expression lastDateExpr;
 
     public Backup(ServerSession session) {
         super(session);
@@ -35,11 +36,17 @@ public class Backup extends ManipulationStatement {
         this.fileNameExpr = fileName;
     }
 
+    public void setLastDate(Expression lastDate) {
+        this.lastDateExpr = lastDate;
+    }
+
     @Override
     public int update() {
         String fileName = fileNameExpr.getValue(session).getString();
+        // 只备份在这个时间(毫秒)之后生成的文件
+        Long lastDate = lastDateExpr == null ? null : lastDateExpr.getValue(session).getLong();
         session.getUser().checkAdmin();
-        session.getDatabase().backupTo(fileName);
+        session.getDatabase().backupTo(fileName, lastDate);
         return 0;
     }
 
@@ -10,6 +10,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
+import org.lealone.common.exceptions.DbException;
 import org.lealone.db.index.Cursor;
 import org.lealone.db.index.Index;
 import org.lealone.db.index.IndexColumn;
@@ -24,6 +25,7 @@ import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueNull;
 import org.lealone.sql.expression.condition.Comparison;
 import org.lealone.sql.query.Select;
+import org.lealone.storage.ColumnFilter;
 import org.lealone.storage.IterationParameters;
 import org.lealone.storage.PageKey;
 
@@ -87,6 +89,7 @@ public class IndexCursor implements Cursor {
                 columnIndexes = tableFilter.getColumnIndexes(); // update和delete在prepare阶段就设置好了
             }
             IterationParameters<SearchRow> parameters = IterationParameters.create(start, end, pageKeys, columnIndexes);
+            parameters.columnFilters = getColumnFilters(s, indexConditions);
             cursor = index.find(tableFilter.getSession(), parameters);
         }
     }
@@ -161,6 +164,69 @@ public class IndexCursor implements Cursor {
         }
     }
 
+    // 列存储模式下存储引擎可以用这些条件跟column page的zone map比较，跳过肯定没有匹配记录的leaf page
+    private ColumnFilter[] getColumnFilters(ServerSession session, ArrayList<IndexCondition> indexConditions) {
+        ArrayList<ColumnFilter> filters = null;
+        for (int i = 0, size = indexConditions.size(); i < size; i++) {
+            IndexCondition condition = indexConditions.get(i);
+            int id = condition.getColumn().getColumnId();
+            if (id < 0) {
+                continue;
+            }
+            ColumnFilter filter;
+            switch (condition.getCompareType()) {
+            case Comparison.EQUAL:
+            case Comparison.EQUAL_NULL_SAFE: {
+                Value v = condition.getCurrentValue(session);
+                if (v == ValueNull.INSTANCE) {
+                    filter = condition.getCompareType() == Comparison.EQUAL ? null : ColumnFilter.isNull(id);
+                } else {
+                    v = convert(condition.getColumn(), v);
+                    filter = v == null ? null : ColumnFilter.range(id, v, v);
+                }
+                break;
+            }
+            case Comparison.BIGGER:
+            case Comparison.BIGGER_EQUAL: {
+                Value v = convert(condition.getColumn(), condition.getCurrentValue(session));
+                filter = v == null ? null : ColumnFilter.range(id, v, null);
+                break;
+            }
+            case Comparison.SMALLER:
+            case Comparison.SMALLER_EQUAL: {
+                Value v = convert(condition.getColumn(), condition.getCurrentValue(session));
+                filter = v == null ? null : ColumnFilter.range(id, null, v);
+                break;
+            }
+            default:
+                filter = null;
+            }
+            if (filter != null) {
+                if (filters == null) {
+                    filters = new ArrayList<>(size);
+                }
+                filters.add(filter);
+            }
+        }
+        return filters == null ? null : filters.toArray(new ColumnFilter[filters.size()]);
+    }
+
+    // zone map里的值都是字段的类型，只有无损转换的值才能用来跟它比较
+    private Value convert(Column column, Value v) {
+        if (v == ValueNull.INSTANCE) {
+            return null;
+        }
+        if (v.getType() == column.getType()) {
+            return v;
+        }
+        try {
+            Value c = column.convert(v);
+            return c.compareTo(v, table.getDatabase().getCompareMode()) == 0 ? c : null;
+        } catch (DbException e) {
+            return null;
+        }
+    }
+
     private boolean canUseIndexForIn(Column column) {
         if (inColumn != null) {
             // only one IN(..) condition can be used at the same time
@@ -5,7 +5,17 @@
  */
 package org.lealone.test.aose;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
 import org.junit.Test;
+import org.lealone.storage.StorageBase;
 import org.lealone.storage.aose.AOStorage;
 import org.lealone.storage.aose.AOStorageBuilder;
 import org.lealone.storage.aose.btree.BTreeMap;
@@ -48,16 +58,98 @@ public class AOStorageTest extends TestBase {
     }
 
     void testBackupTo() {
+        // 没有打开的map也要备份
+        String closedMapName = "AOStorageTest_testBackupToClosed";
+        BTreeMap<Integer, String> closedMap = storage.openBTreeMap(closedMapName);
+        for (int i = 1; i <= 100; i++) {
+            closedMap.put(i, "value" + i);
+        }
+        storage.closeMap(closedMapName);
+        assertFalse(storage.hasMap(closedMapName));
+
         BTreeMap<Integer, String> map = storage.openBTreeMap("AOStorageTest_testBackupTo");
         for (int i = 1; i <= 100; i++) {
             map.put(i, "value" + i);
         }
         String fileName = joinDirs("testBackup", "backup1.zip");
-        storage.backupTo(fileName);
+        storage.backupTo(fileName, null, 10);
         FilePath p = FilePath.get(fileName);
         assertTrue(p.exists());
         assertTrue(!p.isDirectory());
         assertTrue(p.size() > 0);
+        boolean closedMapChunk = false;
+        for (String name : getEntryNames(fileName)) {
+            if (name.contains("/" + closedMapName + "/") && name.endsWith(AOStorage.SUFFIX_AO_FILE))
+                closedMapChunk = true;
+        }
+        assertTrue(closedMapChunk);
+        assertEquals("10", getBackupInfo(fileName).getProperty("checkpointId"));
+
+        // 在线备份不会关闭存储
+        assertFalse(map.isClosed());
+        assertEquals("value1", map.get(1));
+
+        // 没有新的chunk时，增量备份只包含chunkMetaData
+        long lastDate = System.currentTimeMillis() + 1;
+        sleep(10);
+        fileName = joinDirs("testBackup", "backup2.zip");
+        storage.backupTo(fileName, lastDate);
+        assertEquals(0, getChunkFileCount(fileName));
+
+        for (int i = 101; i <= 200; i++) {
+            map.put(i, "value" + i);
+        }
+        fileName = joinDirs("testBackup", "backup3.zip");
+        storage.backupTo(fileName, lastDate);
+        assertTrue(getChunkFileCount(fileName) > 0);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static List<String> getEntryNames(String zipFileName) {
+        ArrayList<String> names = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(zipFileName)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return names;
+    }
+
+    private static Properties getBackupInfo(String zipFileName) {
+        Properties info = new Properties();
+        try (ZipFile zipFile = new ZipFile(zipFileName)) {
+            ZipEntry entry = zipFile.getEntry(StorageBase.BACKUP_INFO_FILE_NAME);
+            assertNotNull(entry);
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                info.load(in);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return info;
+    }
+
+    private static int getChunkFileCount(String zipFileName) {
+        int count = 0;
+        try (ZipFile zipFile = new ZipFile(zipFileName)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                if (entries.nextElement().getName().endsWith(AOStorage.SUFFIX_AO_FILE))
+                    count++;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return count;
     }
 
     void testOpenMap() {
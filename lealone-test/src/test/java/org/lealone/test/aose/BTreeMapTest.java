@@ -5,9 +5,20 @@
  */
 package org.lealone.test.aose;
 
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
+import org.lealone.db.index.standard.RowKeyDataType;
+import org.lealone.db.index.standard.ValueDataType;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueDecimal;
 import org.lealone.db.value.ValueLong;
 import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.aose.AOStorage;
@@ -34,6 +45,13 @@ public class BTreeMapTest extends TestBase {
         testRemove();
         testSave();
         testAppend();
+        testAppendKeyBlocks();
+        testReadAhead();
+        testMmapRead();
+        testBloomFilter();
+        testLongKeys();
+        testBulkLoad();
+        testBulkLoadFailure();
 
         // }
 
@@ -386,4 +404,349 @@ public class BTreeMapTest extends TestBase {
         }
         assertEquals(count, map.getMaxKey());
     }
+
+    void testAppendKeyBlocks() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("pageSplitSize", "1024");
+        parameters.put("appendKeyBlockSize", "32");
+        BTreeMap<ValueLong, String> map = storage.openBTreeMap("BTreeMapTestAppendKeyBlocks", null, null,
+                parameters);
+        map.clear();
+        int threadCount = 4;
+        int count = 500;
+        long[][] keys = new long[threadCount][count];
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    keys[id][i] = map.append("value-" + id + "-" + i).getLong();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        assertEquals(threadCount * count, map.size());
+        HashSet<Long> set = new HashSet<>();
+        for (int t = 0; t < threadCount; t++) {
+            for (int i = 0; i < count; i++) {
+                assertTrue(set.add(keys[t][i]));
+                assertEquals("value-" + t + "-" + i, map.get(ValueLong.get(keys[t][i])));
+            }
+        }
+        // 每个线程按自己预留的key顺序append
+        for (int i = 1; i < count; i++) {
+            assertTrue(keys[0][i] > keys[0][i - 1]);
+        }
+
+        // clear之后以前预留的key作废
+        map.clear();
+        assertEquals(1, map.append("value").getLong());
+        map.remove();
+    }
+
+    void testReadAhead() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("readAheadWindow", "4");
+        String mapName = "BTreeMapTestReadAhead";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        map.clear();
+        int count = 2000;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+        }
+        map.save();
+        map.close();
+
+        // 重新打开后page都不在缓存中，顺序扫描时会预读后面的leaf page
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        StorageMapCursor<Integer, String> cursor = map.cursor();
+        int i = 0;
+        while (cursor.hasNext()) {
+            i++;
+            assertEquals(i, cursor.next().intValue());
+            assertEquals("value-" + i, cursor.getValue());
+        }
+        assertEquals(count, i);
+        map.remove();
+    }
+
+    void testMmapRead() {
+        // 压缩和未压缩的page都要能从映射中读出来
+        for (String compress : new String[] { "0", "1" }) {
+            HashMap<String, String> parameters = new HashMap<>();
+            parameters.put("mmapRead", "true");
+            parameters.put("compress", compress);
+            String mapName = "BTreeMapTestMmapRead" + compress;
+            BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+            map.clear();
+            int count = 2000;
+            for (int i = 1; i <= count; i++) {
+                map.put(i, "value-" + i);
+            }
+            map.save();
+            map.close();
+
+            map = storage.openBTreeMap(mapName, null, null, parameters);
+            for (int i = 1; i <= count; i += 100) {
+                assertEquals("value-" + i, map.get(i));
+            }
+            StorageMapCursor<Integer, String> cursor = map.cursor();
+            int i = 0;
+            while (cursor.hasNext()) {
+                i++;
+                assertEquals(i, cursor.next().intValue());
+                assertEquals("value-" + i, cursor.getValue());
+            }
+            assertEquals(count, i);
+            map.remove();
+        }
+    }
+
+    void testBloomFilter() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("bloomFilterBitsPerKey", "10");
+        String mapName = "BTreeMapTestBloomFilter";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        map.clear();
+        int count = 2000;
+        for (int i = 2; i <= count; i += 2) { // 只放偶数
+            map.put(i, "value-" + i);
+        }
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        for (int i = 1; i <= count; i += 2) {
+            assertNull(map.get(i));
+        }
+        assertTrue(map.getBloomFilterNegatives() > 0);
+        // 误判的也要读leaf page
+        assertTrue(map.getBloomFilterNegatives() + map.getBloomFilterFalsePositives() <= count / 2);
+
+        // 修改一个leaf page再保存，没有修改的leaf page的Bloom filter还要保留下来
+        map.put(count + 2, "value-" + (count + 2));
+        map.save();
+        map.close();
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        long negatives = map.getBloomFilterNegatives();
+        assertNull(map.get(1));
+        assertEquals(negatives + 1, map.getBloomFilterNegatives());
+        for (int i = 2; i <= count + 2; i += 2) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        map.remove();
+
+        testBloomFilterStringKeys(parameters);
+        testBloomFilterDecimalKeys(parameters);
+    }
+
+    private void testBloomFilterStringKeys(HashMap<String, String> parameters) {
+        String mapName = "BTreeMapTestBloomFilterStringKeys";
+        BTreeMap<String, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        map.clear();
+        int count = 2000;
+        for (int i = 0; i < count; i += 2) { // 只放偶数
+            map.put("key-" + i, "value-" + i);
+        }
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        for (int i = 1; i < count; i += 2) {
+            assertNull(map.get("key-" + i));
+        }
+        assertTrue(map.getBloomFilterNegatives() > 0);
+        for (int i = 0; i < count; i += 2) {
+            assertEquals("value-" + i, map.get("key-" + i));
+        }
+        map.remove();
+    }
+
+    // 1.0和1.00比较相等但是hashCode不同，这样的key不能用Bloom filter，否则会找不到
+    private void testBloomFilterDecimalKeys(HashMap<String, String> parameters) {
+        String mapName = "BTreeMapTestBloomFilterDecimalKeys";
+        ValueDataType keyType = new ValueDataType(null, null, null);
+        BTreeMap<Value, String> map = storage.openBTreeMap(mapName, keyType, null, parameters);
+        map.clear();
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            map.put(ValueDecimal.get(new BigDecimal(i + ".0")), "value-" + i);
+        }
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap(mapName, keyType, null, parameters);
+        for (int i = 0; i < count; i++) {
+            assertEquals("value-" + i, map.get(ValueDecimal.get(new BigDecimal(i + ".00"))));
+        }
+        assertEquals(0, map.getBloomFilterNegatives());
+        map.remove();
+    }
+
+    void testLongKeys() {
+        // key类型是long key类型时page直接用long数组保存key
+        RowKeyDataType keyType = new RowKeyDataType();
+        BTreeMap<Value, String> map = storage.openBTreeMap("BTreeMapTestLongKeys", keyType, null, null);
+        map.clear();
+        int count = 3000;
+        for (long i = 1; i <= count; i++) {
+            map.put(ValueLong.get(i * 10 + Integer.MAX_VALUE), "value-" + i);
+        }
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap("BTreeMapTestLongKeys", keyType, null, null);
+        for (long i = 1; i <= count; i++) {
+            long key = i * 10 + Integer.MAX_VALUE;
+            assertEquals("value-" + i, map.get(ValueLong.get(key)));
+            assertNull(map.get(ValueLong.get(key + 1)));
+            assertEquals(key, map.floorKey(ValueLong.get(key + 5)).getLong());
+            assertEquals(key, map.ceilingKey(ValueLong.get(key - 5)).getLong());
+        }
+        assertNull(map.lowerKey(ValueLong.get(10L + Integer.MAX_VALUE)));
+        assertNull(map.higherKey(ValueLong.get(count * 10L + Integer.MAX_VALUE)));
+        assertEquals(10L + Integer.MAX_VALUE, map.firstKey().getLong());
+        assertEquals(count * 10L + Integer.MAX_VALUE, map.lastKey().getLong());
+        map.remove();
+
+        // 每个key只占8个字节
+        BTreeMap<Value, String> longKeyMap = storage.openBTreeMap("BTreeMapTestLongKeys1", keyType, null, null);
+        BTreeMap<Value, String> valueKeyMap = storage.openBTreeMap("BTreeMapTestLongKeys2",
+                new ValueDataType(null, null, null), null, null);
+        count = 10;
+        for (long i = 1; i <= count; i++) {
+            longKeyMap.put(ValueLong.get(i + Integer.MAX_VALUE), "value-" + i);
+            valueKeyMap.put(ValueLong.get(i + Integer.MAX_VALUE), "value-" + i);
+        }
+        int keyMemory = ValueLong.get(Integer.MAX_VALUE).getMemory();
+        assertEquals(count * (keyMemory - 8),
+                valueKeyMap.getRootPage().getMemory() - longKeyMap.getRootPage().getMemory());
+        longKeyMap.remove(ValueLong.get(1L + Integer.MAX_VALUE));
+        valueKeyMap.remove(ValueLong.get(1L + Integer.MAX_VALUE));
+        assertEquals((count - 1) * (keyMemory - 8),
+                valueKeyMap.getRootPage().getMemory() - longKeyMap.getRootPage().getMemory());
+        longKeyMap.remove();
+        valueKeyMap.remove();
+    }
+
+    void testBulkLoad() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("pageSplitSize", "1024");
+        parameters.put("bulkLoadBufferSize", String.valueOf(16 * 1024)); // 导入过程中也会保存
+        String mapName = "BTreeMapTestBulkLoad";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        map.clear();
+        int count = 20000;
+        TreeMap<Integer, String> entries = new TreeMap<>();
+        for (int i = 1; i <= count; i++) {
+            entries.put(i * 2, "value-" + i);
+        }
+        map.bulkLoad(entries.entrySet().iterator());
+        assertEquals(count, map.size());
+        assertTrue(map.getRootPage().isNode());
+        checkBulkLoadMap(map, count);
+
+        // 可以继续正常写
+        map.put(1, "value-0");
+        map.put(count * 2 + 3, "value-last");
+        assertEquals(count + 2, map.size());
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        assertEquals(count + 2, map.size());
+        assertEquals("value-0", map.get(1));
+        checkBulkLoadMap(map, count);
+
+        // 不是空map时一条条put
+        TreeMap<Integer, String> more = new TreeMap<>();
+        more.put(3, "value-3");
+        more.put(5, "value-5");
+        map.bulkLoad(more.entrySet().iterator());
+        assertEquals(count + 4, map.size());
+        assertEquals("value-5", map.get(5));
+
+        map.clear();
+        try {
+            map.bulkLoad(entries.descendingMap().entrySet().iterator());
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        map.remove();
+    }
+
+    // 导入到一半失败时，中途写到chunk中的leaf page不能成为map的一部分
+    void testBulkLoadFailure() {
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("pageSplitSize", "1024");
+        parameters.put("bulkLoadBufferSize", String.valueOf(16 * 1024)); // 导入过程中也会保存
+        String mapName = "BTreeMapTestBulkLoadFailure";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName, null, null, parameters);
+        map.clear();
+        int count = 20000;
+        // 最后一条记录的key重复了，比如创建唯一索引时遇到重复的key
+        Iterator<Map.Entry<Integer, String>> entries = new Iterator<Map.Entry<Integer, String>>() {
+            int i = 1;
+
+            @Override
+            public boolean hasNext() {
+                return i <= count + 1;
+            }
+
+            @Override
+            public Map.Entry<Integer, String> next() {
+                int key = i <= count ? i : count;
+                return new AbstractMap.SimpleEntry<>(key, "value-" + i++);
+            }
+        };
+        try {
+            map.bulkLoad(entries);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(0, map.size());
+        assertTrue(map.getRootPage().isLeaf());
+        assertNull(map.get(1));
+        assertNull(map.get(count / 2));
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap(mapName, null, null, parameters);
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+        assertNull(map.get(count / 2));
+
+        // 还是空map，可以重新导入
+        TreeMap<Integer, String> more = new TreeMap<>();
+        for (int i = 1; i <= count; i++) {
+            more.put(i * 2, "value-" + i);
+        }
+        map.bulkLoad(more.entrySet().iterator());
+        assertEquals(count, map.size());
+        checkBulkLoadMap(map, count);
+        map.remove();
+    }
+
+    private void checkBulkLoadMap(BTreeMap<Integer, String> map, int count) {
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i * 2));
+            assertNull(map.get(i * 2 + 1));
+        }
+        StorageMapCursor<Integer, String> cursor = map.cursor(2);
+        int i = 1;
+        while (cursor.hasNext() && i <= count) {
+            int key = cursor.next();
+            if (key % 2 == 0) {
+                assertEquals(i * 2, key);
+                i++;
+            }
+        }
+        assertEquals(count + 1, i);
+    }
 }
@@ -5,10 +5,35 @@
  */
 package org.lealone.test.aose;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
 import org.junit.Test;
+import org.lealone.db.index.standard.ValueDataType;
+import org.lealone.db.index.standard.VersionedValue;
+import org.lealone.db.index.standard.VersionedValueType;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueString;
+import org.lealone.storage.ColumnFilter;
+import org.lealone.storage.IterationParameters;
+import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.AOStorageBuilder;
+import org.lealone.storage.aose.btree.BTreeCompactionService;
 import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.aose.btree.BTreeOffHeapPageCache;
+import org.lealone.storage.aose.btree.BTreeStorage;
+import org.lealone.storage.aose.btree.PageStorageMode;
+import org.lealone.storage.fs.FileUtils;
 import org.lealone.test.TestBase;
+import org.lealone.transaction.aote.TransactionalValue;
+import org.lealone.transaction.aote.TransactionalValueType;
 
 public class BTreeStorageTest extends TestBase {
 
@@ -19,6 +44,11 @@ public class BTreeStorageTest extends TestBase {
     public void run() {
         init();
         testChunkMetaData();
+        testCompaction();
+        testCompactionServicePerStorage();
+        testChunkIndex();
+        testSharedPageCache();
+        testOffHeapPageCache();
     }
 
     private void init() {
@@ -29,7 +59,10 @@ public class BTreeStorageTest extends TestBase {
 
     private void openMap() {
         if (map == null || map.isClosed()) {
-            map = storage.openBTreeMap("BTreeStorageTest");
+            // 其他测试可能已经用不同的pageSplitSize打开了同一个AOStorage，所以在map上单独指定
+            HashMap<String, String> parameters = new HashMap<>();
+            parameters.put("pageSplitSize", "1024");
+            map = storage.openBTreeMap("BTreeStorageTest", null, null, parameters);
         }
     }
 
@@ -51,4 +84,259 @@ public class BTreeStorageTest extends TestBase {
 
         map.remove();
     }
+
+    void testCompaction() {
+        openMap();
+        BTreeCompactionService compactionService = map.getBTreeStorage().getCompactionService();
+        int count = 500;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+        }
+        map.save();
+
+        long reclaimedChunks = compactionService.getReclaimedChunks();
+        // 暂停后台压缩，不让它在关闭map之前删除第一个chunk
+        compactionService.pauseCompaction();
+        try {
+            // 所有page都被替换了，第一个chunk不再有存活的page
+            for (int i = 1; i <= count; i++) {
+                map.put(i, "value2-" + i);
+            }
+            map.save();
+            // 已经删除的page保存在chunkMetaData中，重新打开后还能继续压缩
+            map.close();
+        } finally {
+            compactionService.resumeCompaction();
+        }
+        openMap();
+        // 关闭了最后一个map时压缩服务也会停止，重新打开后可能是新的压缩服务，新的压缩服务启动时可能已经在后台压缩了
+        if (compactionService != map.getBTreeStorage().getCompactionService()) {
+            compactionService = map.getBTreeStorage().getCompactionService();
+            reclaimedChunks = 0;
+        }
+        compactionService.compactNow();
+        assertTrue(compactionService.getReclaimedChunks() > reclaimedChunks);
+        assertTrue(storage.getCompactionReclaimedChunks() > reclaimedChunks);
+        assertTrue(storage.getCompactionReclaimedBytes() > 0);
+
+        // 只替换一部分page，旧chunk的fill rate变低后会被重写
+        compactionService.pauseCompaction();
+        try {
+            long rewrittenBytes = compactionService.getRewrittenBytes();
+            for (int i = 1; i <= count; i += 10) {
+                map.put(i, "value3-" + i);
+            }
+            map.save();
+            // 暂停时后台不会自动重写，只有请求的这一轮会重写
+            compactionService.compactNow();
+            assertTrue(compactionService.getRewrittenBytes() > rewrittenBytes);
+            assertEquals(compactionService.getRewrittenBytes(), storage.getCompactionRewrittenBytes());
+        } finally {
+            compactionService.resumeCompaction();
+        }
+        for (int i = 1; i <= count; i++) {
+            assertEquals(i % 10 == 1 ? "value3-" + i : "value2-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
+    void testCompactionServicePerStorage() {
+        HashMap<String, String> config = new HashMap<>();
+        config.put("compaction_throughput_in_mb", "1");
+        AOStorageBuilder builder = new AOStorageBuilder(config);
+        builder.storagePath(joinDirs("aose", "BTreeStorageTestCompaction"));
+        AOStorage storage2 = builder.openStorage();
+        BTreeMap<Integer, String> map2 = storage2.openBTreeMap("BTreeStorageTestCompaction");
+        BTreeCompactionService compactionService = map2.getBTreeStorage().getCompactionService();
+        // 每个Storage有自己的压缩服务和配置
+        assertTrue(compactionService != map.getBTreeStorage().getCompactionService());
+        assertEquals(1, compactionService.getThroughputInMB());
+
+        // 最后一个map关闭后压缩服务就停止了，不再引用已经关闭的map
+        map2.close();
+        assertTrue(compactionService.isClosed());
+        map2 = storage2.openBTreeMap("BTreeStorageTestCompaction");
+        assertTrue(compactionService != map2.getBTreeStorage().getCompactionService());
+        assertFalse(map2.getBTreeStorage().getCompactionService().isClosed());
+        map2.remove();
+    }
+
+    void testChunkIndex() {
+        String mapName = "BTreeStorageTestChunkIndex";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName);
+        BTreeCompactionService compactionService = map.getBTreeStorage().getCompactionService();
+        int count = 500;
+        // 暂停后台压缩，不让它提前删除第一个chunk
+        compactionService.pauseCompaction();
+        try {
+            for (int i = 1; i <= count; i++) {
+                map.put(i, "value-" + i);
+            }
+            map.save();
+            // 所有page都被替换了，第一个chunk不再有存活的page
+            for (int i = 1; i <= count; i++) {
+                map.put(i, "value2-" + i);
+            }
+            map.save();
+            map.close();
+        } finally {
+            compactionService.resumeCompaction();
+        }
+        String mapPath = storage.getStoragePath() + File.separator + mapName + File.separator;
+        assertTrue(FileUtils.exists(mapPath + "chunkMetaData"));
+        assertFalse(FileUtils.exists(mapPath + "chunkMetaData.tmp"));
+
+        // 破坏第一个chunk的chunk header，只靠chunk index也能知道它可以删除
+        String firstChunk = mapPath + "1" + AOStorage.SUFFIX_AO_FILE;
+        try (RandomAccessFile file = new RandomAccessFile(firstChunk, "rw")) {
+            file.write(new byte[2 * 4096]);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        map = storage.openBTreeMap(mapName);
+        compactionService = map.getBTreeStorage().getCompactionService();
+        compactionService.compactNow();
+        assertFalse(FileUtils.exists(firstChunk));
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value2-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
+    void testSharedPageCache() {
+        // 两个map的page pos是一样的，共享缓存时不能互相覆盖
+        BTreeMap<Integer, String> map1 = storage.openBTreeMap("BTreeStorageTestCache1");
+        BTreeMap<Integer, String> map2 = storage.openBTreeMap("BTreeStorageTestCache2");
+        int count = 500;
+        for (int i = 1; i <= count; i++) {
+            map1.put(i, "map1-" + i);
+            map2.put(i, "map2-" + i);
+        }
+        map1.save();
+        map2.save();
+        map1.close();
+        map2.close();
+        assertEquals(0, map1.getMemorySpaceUsed());
+
+        map1 = storage.openBTreeMap("BTreeStorageTestCache1");
+        map2 = storage.openBTreeMap("BTreeStorageTestCache2");
+        for (int i = 1; i <= count; i++) {
+            assertEquals("map1-" + i, map1.get(i));
+            assertEquals("map2-" + i, map2.get(i));
+        }
+        assertTrue(map1.getCacheMisses() > 0);
+        assertTrue(map1.getMemorySpaceUsed() > 0);
+        assertTrue(map2.getMemorySpaceUsed() > 0);
+        map1.remove();
+        map2.remove();
+    }
+
+    void testOffHeapPageCache() {
+        // 缓存的配置是Storage级别的，每个Storage可以不一样
+        testOffHeapPageCache(true);
+        testOffHeapPageCache(false);
+        testOffHeapColumnPages();
+
+        // 在单个map上指定无效
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("page_cache_off_heap_size", "16");
+        BTreeMap<Integer, String> map = storage.openBTreeMap("BTreeStorageTestOffHeap", null, null, parameters);
+        assertNull(map.getBTreeStorage().getOffHeapPageCache());
+        map.remove();
+    }
+
+    private void testOffHeapPageCache(boolean compress) {
+        HashMap<String, String> config = new HashMap<>();
+        config.put("page_cache_off_heap_size", "16");
+        config.put("page_cache_off_heap_compress", String.valueOf(compress));
+        AOStorageBuilder builder = new AOStorageBuilder(config);
+        builder.storagePath(joinDirs("aose", "BTreeStorageTestOffHeap" + compress));
+        builder.pageSplitSize(1024);
+        AOStorage storage = builder.openStorage();
+        String mapName = "BTreeStorageTestOffHeap";
+        BTreeMap<Integer, String> map = storage.openBTreeMap(mapName);
+        int count = 500;
+        for (int i = 1; i <= count; i++) {
+            map.put(i, "value-" + i);
+        }
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap(mapName);
+        BTreeStorage btreeStorage = map.getBTreeStorage();
+        BTreeOffHeapPageCache offHeapCache = btreeStorage.getOffHeapPageCache();
+        assertNotNull(offHeapCache);
+        assertTrue(offHeapCache != this.map.getBTreeStorage().getOffHeapPageCache());
+        map.getPrettyPageInfo(true); // 从chunk文件读page，同时放到二级缓存中
+        assertTrue(offHeapCache.getUsedMemory() > 0);
+
+        // 清空一级缓存后再读，page从二级缓存中读出来
+        long hits = offHeapCache.getHits();
+        btreeStorage.setCacheSize(btreeStorage.getCacheSize());
+        map.getPrettyPageInfo(true);
+        assertTrue(offHeapCache.getHits() > hits);
+        btreeStorage.setCacheSize(btreeStorage.getCacheSize());
+        for (int i = 1; i <= count; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        map.remove();
+    }
+
+    // column page读进来后延迟解析，从二级缓存中读其他page时不能覆盖它引用的数据
+    private void testOffHeapColumnPages() {
+        HashMap<String, String> config = new HashMap<>();
+        config.put("page_cache_off_heap_size", "16");
+        AOStorageBuilder builder = new AOStorageBuilder(config);
+        builder.storagePath(joinDirs("aose", "BTreeStorageTestOffHeapColumn"));
+        AOStorage storage = builder.openStorage();
+        String mapName = "BTreeStorageTestOffHeapColumn";
+        BTreeMap<ValueLong, TransactionalValue> map = openColumnMap(storage, mapName);
+        int count = 2000;
+        for (int row = 1; row <= count; row++) {
+            map.put(ValueLong.get(row), TransactionalValue
+                    .createCommitted(new VersionedValue(row, ValueArray.get(createColumns(row)))));
+        }
+        map.save();
+        map.close();
+
+        map = openColumnMap(storage, mapName);
+        BTreeStorage btreeStorage = map.getBTreeStorage();
+        BTreeOffHeapPageCache offHeapCache = btreeStorage.getOffHeapPageCache();
+        map.getPrettyPageInfo(true); // 所有的leaf page和column page都放到二级缓存中
+        long hits = offHeapCache.getHits();
+        btreeStorage.setCacheSize(btreeStorage.getCacheSize());
+
+        // 先按过滤条件读第1列的column page，再读第2列的column page，最后才解析第1列
+        IterationParameters<ValueLong> parameters = IterationParameters.create(null, new int[] { 2, 1 });
+        parameters.columnFilters = new ColumnFilter[] {
+                ColumnFilter.range(1, ValueString.get("c"), ValueString.get("d")) };
+        StorageMapCursor<ValueLong, TransactionalValue> cursor = map.cursor(parameters);
+        int rows = 0;
+        while (cursor.hasNext()) {
+            int row = (int) cursor.next().getLong();
+            Value[] expected = createColumns(row);
+            Value[] columns = ((VersionedValue) cursor.getValue().getValue()).value.getList();
+            assertEquals(expected[1], columns[1]);
+            assertEquals(expected[2], columns[2]);
+            rows++;
+        }
+        assertEquals(count, rows);
+        assertTrue(offHeapCache.getHits() > hits);
+        map.remove();
+    }
+
+    private static BTreeMap<ValueLong, TransactionalValue> openColumnMap(AOStorage storage, String mapName) {
+        ValueDataType keyType = new ValueDataType(null, CompareMode.getInstance(null, 0, false), null);
+        TransactionalValueType valueType = new TransactionalValueType(new VersionedValueType(keyType, 3));
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("pageSplitSize", "4096");
+        BTreeMap<ValueLong, TransactionalValue> map = storage.openBTreeMap(mapName, keyType, valueType,
+                parameters);
+        map.setPageStorageMode(PageStorageMode.COLUMN_STORAGE);
+        return map;
+    }
+
+    private static Value[] createColumns(int row) {
+        return new Value[] { ValueInt.get(row), ValueString.get("c1-" + row), ValueString.get("c2-" + row) };
+    }
 }
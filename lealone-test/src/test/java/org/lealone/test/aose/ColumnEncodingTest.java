@@ -0,0 +1,215 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.aose;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.lealone.common.util.DateTimeUtils;
+import org.lealone.db.index.standard.ValueDataType;
+import org.lealone.db.index.standard.VersionedValue;
+import org.lealone.db.index.standard.VersionedValueType;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueBoolean;
+import org.lealone.db.value.ValueDate;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueString;
+import org.lealone.db.value.ValueStringIgnoreCase;
+import org.lealone.storage.ColumnFilter;
+import org.lealone.storage.IterationParameters;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.aose.btree.PageStorageMode;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.aote.TransactionalValue;
+import org.lealone.transaction.aote.TransactionalValueType;
+
+public class ColumnEncodingTest extends TestBase {
+
+    private final int rowCount = 3000;
+    private final int columnCount = 6;
+    private final String mapName = "ColumnEncodingTest";
+    private AOStorage storage;
+    private ValueDataType keyType;
+    private TransactionalValueType valueType;
+
+    @Test
+    public void run() {
+        storage = AOStorageTest.openStorage(1024);
+        keyType = new ValueDataType(null, CompareMode.getInstance(null, 0, false), null);
+        valueType = new TransactionalValueType(new VersionedValueType(keyType, columnCount));
+        putData();
+        testRead();
+        testDictionaryFilter();
+        testModifiedPage();
+        testIgnoreCase();
+        openMap().remove();
+    }
+
+    private BTreeMap<ValueLong, TransactionalValue> openMap() {
+        return openMap(mapName, valueType);
+    }
+
+    private BTreeMap<ValueLong, TransactionalValue> openMap(String mapName, TransactionalValueType valueType) {
+        // 每个leaf page要有足够多的记录才值得编码
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("pageSplitSize", String.valueOf(32 * 1024));
+        BTreeMap<ValueLong, TransactionalValue> map = storage.openBTreeMap(mapName, keyType, valueType,
+                parameters);
+        map.setPageStorageMode(PageStorageMode.COLUMN_STORAGE);
+        return map;
+    }
+
+    // 每一列适合不同的编码
+    private static Value[] createColumns(int row) {
+        Value status = ValueString.get("status-" + (row % 2) * 2); // 字典编码，只有status-0和status-2
+        Value run = ValueString.get("run-" + row / 500); // 游程编码
+        Value flag = row % 3 == 0 ? ValueNull.INSTANCE : ValueBoolean.get(row % 2 == 0);
+        Value date = ValueDate.fromDateValue(DateTimeUtils.dateValue(2020, 1, 1 + row % 28));
+        Value longValue = ValueLong.get(1000000000000L + row * 3L); // frame-of-reference
+        return new Value[] { ValueInt.get(row), status, run, flag, date, longValue };
+    }
+
+    private static TransactionalValue createValue(int row) {
+        return TransactionalValue.createCommitted(new VersionedValue(row, ValueArray.get(createColumns(row))));
+    }
+
+    private void putData() {
+        BTreeMap<ValueLong, TransactionalValue> map = openMap();
+        map.clear();
+        for (int row = 1; row <= rowCount; row++) {
+            map.put(ValueLong.get(row), createValue(row));
+        }
+        map.save();
+        map.close();
+    }
+
+    private void testRead() {
+        // 重新打开后所有列都要从编码后的column page中读出来
+        BTreeMap<ValueLong, TransactionalValue> map = openMap();
+        for (int row = 1; row <= rowCount; row++) {
+            VersionedValue vv = (VersionedValue) map.get(ValueLong.get(row)).getValue();
+            assertColumns(row, vv.value.getList());
+        }
+        map.close();
+
+        map = openMap();
+        IterationParameters<ValueLong> parameters = IterationParameters.create(null, new int[] { 2, 5 });
+        StorageMapCursor<ValueLong, TransactionalValue> cursor = map.cursor(parameters);
+        int rows = 0;
+        while (cursor.hasNext()) {
+            int row = (int) cursor.next().getLong();
+            Value[] expected = createColumns(row);
+            Value[] columns = ((VersionedValue) cursor.getValue().getValue()).value.getList();
+            assertEquals(expected[2], columns[2]);
+            assertEquals(expected[5], columns[5]);
+            rows++;
+        }
+        assertEquals(rowCount, rows);
+        map.close();
+    }
+
+    private void assertColumns(int row, Value[] columns) {
+        Value[] expected = createColumns(row);
+        assertEquals(expected.length, columns.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], columns[i]);
+        }
+    }
+
+    private void testDictionaryFilter() {
+        BTreeMap<ValueLong, TransactionalValue> map = openMap();
+        // status-1在zone map的范围内，但是不在字典中
+        ColumnFilter filter = ColumnFilter.range(1, ValueString.get("status-1"), ValueString.get("status-1"));
+        long skipped = map.getZoneMapSkippedPages();
+        assertEquals(0, scan(map, filter));
+        assertTrue(map.getZoneMapSkippedPages() > skipped);
+
+        filter = ColumnFilter.range(1, ValueString.get("status-2"), ValueString.get("status-2"));
+        assertEquals(rowCount, scan(map, filter));
+        map.close();
+
+        // 扫描不读第1列时只用zone map判断，不会为了过滤去读第1列的column page
+        map = openMap();
+        filter = ColumnFilter.range(1, ValueString.get("status-1"), ValueString.get("status-1"));
+        skipped = map.getZoneMapSkippedPages();
+        assertEquals(rowCount, scan(map, filter, new int[] { 2 }));
+        assertEquals(skipped, map.getZoneMapSkippedPages());
+        map.close();
+    }
+
+    private void testModifiedPage() {
+        BTreeMap<ValueLong, TransactionalValue> map = openMap();
+        ValueLong key = ValueLong.get(10);
+        map.get(key); // 跟update一样先读出整行，所有的列都会读到内存
+        Value[] columns = createColumns(10);
+        columns[1] = ValueString.get("status-1");
+        map.put(key, TransactionalValue.createCommitted(new VersionedValue(10, ValueArray.get(columns))));
+        ColumnFilter filter = ColumnFilter.range(1, ValueString.get("status-1"), ValueString.get("status-1"));
+        assertTrue(scan(map, filter) > 0);
+        map.save();
+        map.close();
+
+        // 修改后的page重新编码
+        map = openMap();
+        VersionedValue vv = (VersionedValue) map.get(key).getValue();
+        assertEquals(columns[1], vv.value.getList()[1]);
+        assertColumns(11, ((VersionedValue) map.get(ValueLong.get(11)).getValue()).value.getList());
+        map.close();
+    }
+
+    // 只有大小写不同的值不能合并成同一个字典项或同一段游程
+    private void testIgnoreCase() {
+        TransactionalValueType valueType = new TransactionalValueType(new VersionedValueType(keyType, 3));
+        String mapName = this.mapName + "IgnoreCase";
+        BTreeMap<ValueLong, TransactionalValue> map = openMap(mapName, valueType);
+        map.clear();
+        for (int row = 1; row <= rowCount; row++) {
+            map.put(ValueLong.get(row), TransactionalValue
+                    .createCommitted(new VersionedValue(row, ValueArray.get(createIgnoreCaseColumns(row)))));
+        }
+        map.save();
+        map.close();
+
+        map = openMap(mapName, valueType);
+        for (int row = 1; row <= rowCount; row++) {
+            Value[] expected = createIgnoreCaseColumns(row);
+            Value[] columns = ((VersionedValue) map.get(ValueLong.get(row)).getValue()).value.getList();
+            // ValueStringIgnoreCase.equals不区分大小写，所以要比较原始的字符串
+            assertEquals(expected[1].getString(), columns[1].getString());
+            assertEquals(expected[2].getString(), columns[2].getString());
+        }
+        map.remove();
+    }
+
+    private static Value[] createIgnoreCaseColumns(int row) {
+        Value dict = ValueStringIgnoreCase.get(row % 2 == 0 ? "abc" : "ABC"); // 字典编码
+        Value run = ValueStringIgnoreCase.get(row / 500 % 2 == 0 ? "run" : "RUN"); // 游程编码
+        return new Value[] { ValueInt.get(row), dict, run };
+    }
+
+    // 返回扫描过的行数
+    private int scan(BTreeMap<ValueLong, TransactionalValue> map, ColumnFilter filter) {
+        return scan(map, filter, new int[] { 1 });
+    }
+
+    private int scan(BTreeMap<ValueLong, TransactionalValue> map, ColumnFilter filter, int[] columnIndexes) {
+        IterationParameters<ValueLong> parameters = IterationParameters.create(null, columnIndexes);
+        parameters.columnFilters = new ColumnFilter[] { filter };
+        StorageMapCursor<ValueLong, TransactionalValue> cursor = map.cursor(parameters);
+        int rows = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            rows++;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.aose;
+
+import org.junit.Test;
+import org.lealone.db.index.standard.ValueDataType;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueString;
+import org.lealone.db.value.ValueStringIgnoreCase;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.test.TestBase;
+
+public class CompactKeysTest extends TestBase {
+
+    private final int count = 3000;
+    private AOStorage storage;
+
+    @Test
+    public void run() {
+        storage = AOStorageTest.openStorage(1024);
+        testLongKeys();
+        testStringKeys();
+        testArrayKeys();
+        testIgnoreCaseArrayKeys();
+        testObjectKeys();
+    }
+
+    private void testLongKeys() {
+        Object[] keys = new Object[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = ValueLong.get(Long.MIN_VALUE / 2 + i * 1000L);
+        }
+        testKeys("testLongKeys", newKeyType(), keys);
+    }
+
+    private void testStringKeys() {
+        Object[] keys = new Object[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = ValueString.get("user-" + (10000 + i) + (i % 2 == 0 ? "" : "-中文"));
+        }
+        testKeys("testStringKeys", newKeyType(), keys);
+    }
+
+    // 跟二级索引的key一样，索引字段加上行key
+    private void testArrayKeys() {
+        Object[] keys = new Object[count];
+        for (int i = 0; i < count; i++) {
+            Value[] list = { ValueString.get("city-" + (100 + i / 100)), ValueInt.get(i / 10), ValueLong.get(i) };
+            keys[i] = ValueArray.get(list);
+        }
+        testKeys("testArrayKeys", newKeyType(), keys);
+    }
+
+    // 只有大小写不同的索引字段不能共享前缀，否则读出来的值都变成了前一个key的
+    private void testIgnoreCaseArrayKeys() {
+        Object[] keys = new Object[count];
+        for (int i = 0; i < count; i++) {
+            Value[] list = { ValueStringIgnoreCase.get(i % 2 == 0 ? "abc" : "ABC"), ValueLong.get(i) };
+            keys[i] = ValueArray.get(list);
+        }
+        String mapName = "testIgnoreCaseArrayKeys";
+        ValueDataType keyType = newKeyType();
+        BTreeMap<Object, Object> map = storage.openBTreeMap(mapName, keyType, null, null);
+        map.clear();
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], "value-" + i);
+        }
+        map.save();
+        map.close();
+
+        map = storage.openBTreeMap(mapName, keyType, null, null);
+        StorageMapCursor<Object, Object> cursor = map.cursor();
+        int i = 0;
+        while (cursor.hasNext()) {
+            Value[] list = ((ValueArray) cursor.next()).getList();
+            // ValueStringIgnoreCase.equals不区分大小写，所以要比较原始的字符串
+            assertEquals(((ValueArray) keys[i]).getList()[0].getString(), list[0].getString());
+            assertEquals(i, list[1].getLong());
+            i++;
+        }
+        assertEquals(keys.length, i);
+        map.remove();
+    }
+
+    private static ValueDataType newKeyType() {
+        return new ValueDataType(null, CompareMode.getInstance(null, 0, false), new int[3]);
+    }
+
+    private void testObjectKeys() {
+        Object[] keys = new Object[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = i * 3 - count;
+        }
+        testKeys("testIntegerKeys", null, keys);
+        for (int i = 0; i < count; i++) {
+            keys[i] = "key-" + (100000 + i);
+        }
+        testKeys("testStringObjectKeys", null, keys);
+    }
+
+    private void testKeys(String mapName, ValueDataType keyType, Object[] keys) {
+        BTreeMap<Object, Object> map = storage.openBTreeMap(mapName, keyType, null, null);
+        map.clear();
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], "value-" + i);
+        }
+        map.save();
+        map.close();
+
+        // 重新打开后所有page都要从chunk文件中读
+        map = storage.openBTreeMap(mapName, keyType, null, null);
+        assertEquals(keys.length, map.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("value-" + i, map.get(keys[i]));
+        }
+        StorageMapCursor<Object, Object> cursor = map.cursor();
+        int i = 0;
+        while (cursor.hasNext()) {
+            assertEquals(keys[i], cursor.next());
+            i++;
+        }
+        assertEquals(keys.length, i);
+        map.remove();
+    }
+}
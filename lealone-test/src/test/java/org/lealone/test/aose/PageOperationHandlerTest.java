@@ -0,0 +1,84 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.aose;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lealone.storage.DefaultPageOperationHandler;
+import org.lealone.storage.PageOperation;
+import org.lealone.storage.PageOperationHandler;
+import org.lealone.test.TestBase;
+
+public class PageOperationHandlerTest extends TestBase {
+
+    private final HashMap<String, String> config = new HashMap<>();
+
+    @Test
+    public void run() throws Exception {
+        config.put("page_operation_handler_loop_interval", "10");
+        config.put("page_operation_handler_steal_threshold", "4");
+        testMetrics();
+        testStealRequest();
+    }
+
+    private static PageOperation createPageOperation(CountDownLatch latch) {
+        return new PageOperation() {
+            @Override
+            public PageOperationResult run(PageOperationHandler currentHandler) {
+                if (latch != null)
+                    latch.countDown();
+                return PageOperationResult.SUCCEEDED;
+            }
+        };
+    }
+
+    void testMetrics() throws Exception {
+        DefaultPageOperationHandler handler = new DefaultPageOperationHandler("testMetrics", config);
+        handler.start();
+        int count = 100;
+        CountDownLatch latch = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            handler.handlePageOperation(createPageOperation(latch));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        handler.stop();
+        assertEquals(0, handler.getLoad());
+        assertEquals(count, handler.getCompletedTaskCount());
+        assertEquals(0, handler.getShiftCount());
+        assertTrue(handler.getBusyTime() > 0);
+        double utilization = handler.getUtilization();
+        assertTrue(utilization > 0 && utilization <= 1);
+    }
+
+    void testStealRequest() throws Exception {
+        DefaultPageOperationHandler busy = new DefaultPageOperationHandler("busy", config);
+        DefaultPageOperationHandler idle = new DefaultPageOperationHandler("idle", config);
+        DefaultPageOperationHandler[] peers = { busy, idle };
+        busy.setPeers(peers);
+        idle.setPeers(peers);
+        // 不启动busy，让它的队列一直超过阈值
+        for (int i = 0; i < 10; i++) {
+            busy.handlePageOperation(createPageOperation(null));
+        }
+        assertNull(busy.takeStealRequest());
+        idle.start();
+        PageOperationHandler stealer = null;
+        for (int i = 0; i < 500 && stealer == null; i++) {
+            Thread.sleep(10);
+            stealer = busy.takeStealRequest();
+        }
+        idle.stop();
+        assertTrue(stealer == idle);
+        assertEquals(1, idle.getStolenLeafPageCount());
+        // 请求只能用一次
+        assertNull(busy.takeStealRequest());
+        // idle自己不会被窃取
+        assertNull(idle.takeStealRequest());
+    }
+}
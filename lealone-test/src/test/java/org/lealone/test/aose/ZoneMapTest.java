@@ -0,0 +1,135 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.test.aose;
+
+import org.junit.Test;
+import org.lealone.db.index.standard.ValueDataType;
+import org.lealone.db.index.standard.VersionedValue;
+import org.lealone.db.index.standard.VersionedValueType;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueString;
+import org.lealone.storage.ColumnFilter;
+import org.lealone.storage.IterationParameters;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.aose.AOStorage;
+import org.lealone.storage.aose.btree.BTreeMap;
+import org.lealone.storage.aose.btree.PageStorageMode;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.aote.TransactionalValue;
+import org.lealone.transaction.aote.TransactionalValueType;
+
+public class ZoneMapTest extends TestBase {
+
+    private final int rowCount = 3000;
+    private final int nullRowStart = 2001; // 从这一行开始第二列都是null
+    private final String mapName = "ZoneMapTest";
+    private AOStorage storage;
+    private ValueDataType keyType;
+    private TransactionalValueType valueType;
+
+    @Test
+    public void run() {
+        storage = AOStorageTest.openStorage(1024);
+        keyType = new ValueDataType(null, CompareMode.getInstance(null, 0, false), null);
+        valueType = new TransactionalValueType(new VersionedValueType(keyType, 3));
+        putData();
+        testRangeFilter();
+        testIsNullFilter();
+        testModifiedPage();
+        openMap().remove();
+    }
+
+    private BTreeMap<ValueLong, TransactionalValue> openMap() {
+        BTreeMap<ValueLong, TransactionalValue> map = storage.openBTreeMap(mapName, keyType, valueType, null);
+        map.setPageStorageMode(PageStorageMode.COLUMN_STORAGE);
+        return map;
+    }
+
+    private static TransactionalValue createValue(int row, Value c2) {
+        Value[] columns = { ValueInt.get(row), c2, ValueString.get("value-" + row) };
+        return TransactionalValue.createCommitted(new VersionedValue(row, ValueArray.get(columns)));
+    }
+
+    private void putData() {
+        BTreeMap<ValueLong, TransactionalValue> map = openMap();
+        map.clear();
+        for (int row = 1; row <= rowCount; row++) {
+            Value c2 = row < nullRowStart ? ValueLong.get(row * 10L) : ValueNull.INSTANCE;
+            map.put(ValueLong.get(row), createValue(row, c2));
+        }
+        map.save();
+        map.close();
+    }
+
+    private void testRangeFilter() {
+        // 重新打开后所有page都要从chunk文件中读，这样才有zone map
+        BTreeMap<ValueLong, TransactionalValue> map = openMap();
+        ColumnFilter filter = ColumnFilter.range(0, ValueInt.get(1500), ValueInt.get(1600));
+        long skipped = map.getZoneMapSkippedPages();
+        int[] result = scan(map, filter, 1500, 1600);
+        assertEquals(101, result[0]);
+        assertTrue(result[1] < rowCount);
+        assertTrue(map.getZoneMapSkippedPages() > skipped);
+
+        // 没有任何记录在这个范围
+        result = scan(map, ColumnFilter.range(0, ValueInt.get(rowCount + 1), null), 0, -1);
+        assertEquals(0, result[1]);
+        map.close();
+    }
+
+    private void testIsNullFilter() {
+        BTreeMap<ValueLong, TransactionalValue> map = openMap();
+        IterationParameters<ValueLong> parameters = IterationParameters.create(null, new int[] { 1 });
+        parameters.columnFilters = new ColumnFilter[] { ColumnFilter.isNull(1) };
+        StorageMapCursor<ValueLong, TransactionalValue> cursor = map.cursor(parameters);
+        int nullRows = 0, rows = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            VersionedValue vv = (VersionedValue) cursor.getValue().getValue();
+            if (vv.value.getList()[1] == ValueNull.INSTANCE)
+                nullRows++;
+            rows++;
+        }
+        assertEquals(rowCount - nullRowStart + 1, nullRows);
+        assertTrue(rows < rowCount);
+        map.close();
+    }
+
+    private void testModifiedPage() {
+        BTreeMap<ValueLong, TransactionalValue> map = openMap();
+        ColumnFilter filter = ColumnFilter.range(0, ValueInt.get(1500), ValueInt.get(1600));
+        scan(map, filter, 1500, 1600);
+        ValueLong key = ValueLong.get(10);
+        map.get(key); // 跟update一样先读出整行，所有的列都会读到内存
+        // 修改过的page不能再用旧的zone map跳过
+        map.put(key, createValue(1550, ValueLong.get(100)));
+        int[] result = scan(map, filter, 1500, 1600);
+        assertEquals(102, result[0]);
+        map.close();
+    }
+
+    // 返回满足条件的行数和扫描过的总行数
+    private int[] scan(BTreeMap<ValueLong, TransactionalValue> map, ColumnFilter filter, int min, int max) {
+        IterationParameters<ValueLong> parameters = IterationParameters.create(null, new int[] { 0 });
+        parameters.columnFilters = new ColumnFilter[] { filter };
+        StorageMapCursor<ValueLong, TransactionalValue> cursor = map.cursor(parameters);
+        int matched = 0, rows = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            VersionedValue vv = (VersionedValue) cursor.getValue().getValue();
+            int v = vv.value.getList()[0].getInt();
+            if (v >= min && v <= max)
+                matched++;
+            rows++;
+        }
+        return new int[] { matched, rows };
+    }
+}
@@ -5,22 +5,34 @@
  */
 package org.lealone.test.aote;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.junit.Test;
+import org.lealone.common.exceptions.DbException;
 import org.lealone.db.Constants;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.db.session.DelegatedSession;
+import org.lealone.db.session.SessionStatus;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageBuilder;
 import org.lealone.storage.StorageEngine;
 import org.lealone.storage.StorageEngineManager;
+import org.lealone.storage.fs.FilePath;
 import org.lealone.test.TestBase;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionEngine;
 import org.lealone.transaction.TransactionEngineManager;
 import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.TransactionMapEntry;
 import org.lealone.transaction.aote.AMTransactionEngine;
+import org.lealone.transaction.aote.log.LogSyncMetrics;
 import org.lealone.transaction.aote.log.LogSyncService;
+import org.lealone.transaction.aote.log.RedoLog;
 
 public class AMTransactionEngineTest extends TestBase {
 
@@ -85,6 +97,640 @@ public class AMTransactionEngineTest extends TestBase {
         te.close();
     }
 
+    @Test
+    public void testParallelCheckpoint() {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testParallelCheckpoint")); // 不跟其他测试共用redo log
+        config.put("checkpoint_service_io_concurrency", "4");
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+        Storage storage = getStorage();
+
+        int mapCount = 8;
+        Transaction t = te.beginTransaction(false);
+        for (int m = 0; m < mapCount; m++) {
+            TransactionMap<String, String> map = t.openMap("testParallelCheckpoint" + m, storage);
+            for (int i = 1; i <= 1000; i++) {
+                map.put("key" + i, "value" + i);
+            }
+        }
+        t.commit();
+        for (int m = 0; m < mapCount; m++) {
+            assertTrue(te.getEstimatedMemory("testParallelCheckpoint" + m) > 0);
+        }
+        te.checkpoint();
+        assertTrue(te.getLastCheckpointDuration() >= 0);
+        t = te.beginTransaction(false);
+        for (int m = 0; m < mapCount; m++) {
+            String mapName = "testParallelCheckpoint" + m;
+            assertTrue(te.getLastSaveTime(mapName) >= 0);
+            // 保存成功后才清掉
+            assertEquals(0, te.getEstimatedMemory(mapName));
+            TransactionMap<String, String> map = t.openMap(mapName, storage);
+            assertTrue(map.getDiskSpaceUsed() > 0);
+            map.remove();
+        }
+        te.close();
+    }
+
+    @Test
+    public void testBackupCheckpoint() {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testBackupCheckpoint")); // 不跟其他测试共用redo log
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+        Storage storage = getStorage();
+        String mapName = "testBackupCheckpoint";
+
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap(mapName, storage);
+        map.put("key1", "value1");
+        t.commit();
+        assertTrue(te.getEstimatedMemory(mapName) > 0);
+
+        // 开始备份时执行一次检查点
+        long checkpointId = te.beginBackup();
+        assertTrue(checkpointId >= 0);
+        assertEquals(0, te.getEstimatedMemory(mapName));
+
+        // 备份期间不再执行新的检查点，否则redo log会被截断
+        t = te.beginTransaction(false);
+        map = t.openMap(mapName, storage);
+        map.put("key2", "value2");
+        t.commit();
+        te.checkpoint();
+        assertTrue(te.getEstimatedMemory(mapName) > 0);
+
+        // 同时进行的备份共用同一个检查点
+        assertEquals(checkpointId, te.beginBackup());
+        te.endBackup();
+        te.endBackup();
+
+        te.checkpoint();
+        assertEquals(0, te.getEstimatedMemory(mapName));
+        t = te.beginTransaction(false);
+        t.openMap(mapName, storage).remove();
+        t.commit();
+        te.close();
+    }
+
+    @Test
+    public void testAdaptiveLogSync() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testAdaptiveLogSync")); // 不跟其他测试共用redo log
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_ADAPTIVE);
+        config.put("log_sync_commit_latency_target", "20");
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+        Storage storage = getStorage();
+        LogSyncService logSyncService = te.getLogSyncService();
+        assertTrue(logSyncService.isInstantSync());
+
+        int threadCount = 4;
+        int txCount = 50;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < txCount; j++) {
+                    Transaction t = te.beginTransaction(false);
+                    TransactionMap<String, String> map = t.openMap("testAdaptiveLogSync", storage);
+                    map.put("key" + index + "_" + j, "value" + j);
+                    t.commit();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // 提交返回时redo log已经同步完成
+        LogSyncMetrics metrics = logSyncService.getMetrics();
+        assertTrue(metrics.getGroupSize().getCount() > 0);
+        assertTrue(metrics.getGroupSize().getMax() <= threadCount * txCount);
+        assertTrue(metrics.getCommitWait().getCount() >= threadCount * txCount);
+        assertTrue(metrics.getSyncTime().getPercentile(0.99) <= metrics.getSyncTime().getMax());
+
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testAdaptiveLogSync", storage);
+        assertEquals(threadCount * txCount, map.size());
+        map.remove();
+        te.close();
+    }
+
+    @Test
+    public void testStripedRedoLog() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testStripedRedoLog")); // 不跟其他测试共用redo log
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("redo_log_stream_count", "4");
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(new HashMap<>(config));
+        assertEquals(4, te.getLogSyncService().getStreamCount());
+        Storage storage = getStorage();
+
+        int threadCount = 8;
+        int txCount = 20;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < txCount; j++) {
+                    Transaction t = te.beginTransaction(false);
+                    TransactionMap<String, String> map = t.openMap("testStripedRedoLog", storage);
+                    map.put("key" + index + "_" + j, "value" + j);
+                    t.commit();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // 不同的线程写到不同的日志流，依次更新同一个key，恢复后要得到最后提交的值
+        for (int i = 0; i < threadCount; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                Transaction t = te.beginTransaction(false);
+                TransactionMap<String, String> map = t.openMap("testStripedRedoLog", storage);
+                map.put("last", "value" + index);
+                t.commit();
+            });
+            thread.start();
+            thread.join();
+        }
+        // 只关闭日志同步线程，不生成检查点，下次启动时要合并所有日志流来重做
+        te.getLogSyncService().close();
+        te.getLogSyncService().join();
+
+        // 日志流的个数不能比以前少
+        config.put("redo_log_stream_count", "1");
+        AMTransactionEngine te2 = new AMTransactionEngine();
+        te2.init(new HashMap<>(config));
+        assertEquals(4, te2.getLogSyncService().getStreamCount());
+        StorageBuilder storageBuilder = StorageEngineManager
+                .getStorageEngine(Constants.DEFAULT_STORAGE_ENGINE_NAME).getStorageBuilder();
+        storageBuilder.storagePath(joinDirs("aote", "testStripedRedoLog", "data"));
+        Storage storage2 = storageBuilder.openStorage();
+        Transaction t = te2.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testStripedRedoLog", storage2);
+        assertEquals(threadCount * txCount + 1, map.size());
+        assertEquals("value" + (txCount - 1), map.get("key0_" + (txCount - 1)));
+        assertEquals("value" + (threadCount - 1), map.get("last"));
+        map.remove();
+        t.commit();
+        te2.close();
+        storage2.close();
+        te.close();
+    }
+
+    @Test
+    public void testStripedRedoLogSyncType() throws Exception {
+        String baseDir = joinDirs("aote", "testStripedRedoLogSyncType");
+        deleteFileRecursive(baseDir);
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", baseDir); // 不跟其他测试共用redo log
+        config.put("redo_log_stream_count", "4");
+
+        // periodic和no_sync不能保证多个日志流恢复出来的是一个前缀，所以不能配置多个日志流
+        for (String logSyncType : new String[] { LogSyncService.LOG_SYNC_TYPE_PERIODIC,
+                LogSyncService.LOG_SYNC_TYPE_NO_SYNC }) {
+            config.put("log_sync_type", logSyncType);
+            try {
+                new AMTransactionEngine().init(new HashMap<>(config));
+                fail();
+            } catch (IllegalArgumentException e) {
+            }
+        }
+
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_ADAPTIVE);
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(new HashMap<>(config));
+        assertEquals(4, te.getLogSyncService().getStreamCount());
+        StorageBuilder storageBuilder = StorageEngineManager
+                .getStorageEngine(Constants.DEFAULT_STORAGE_ENGINE_NAME).getStorageBuilder();
+        storageBuilder.storagePath(joinDirs("aote", "testStripedRedoLogSyncType", "data1"));
+        Storage storage = storageBuilder.openStorage();
+        int threadCount = 4;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                Transaction t = te.beginTransaction(false);
+                TransactionMap<String, String> map = t.openMap("testStripedRedoLogSyncType", storage);
+                map.put("key" + index, "value" + index);
+                t.commit();
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // 每个线程都分到了自己的日志流
+        for (int i = 1; i < threadCount; i++) {
+            String streamDir = joinDirs("aote", "testStripedRedoLogSyncType", "redo_log", "stream_" + i);
+            long size = 0;
+            for (FilePath fp : FilePath.get(streamDir).newDirectoryStream()) {
+                if (!fp.isDirectory())
+                    size += fp.size();
+            }
+            assertTrue(size > 0);
+        }
+        te.getLogSyncService().close();
+        te.getLogSyncService().join();
+
+        // 以前留下的日志流不管用哪种同步方式都要恢复
+        config.remove("redo_log_stream_count");
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_NO_SYNC);
+        AMTransactionEngine te2 = new AMTransactionEngine();
+        te2.init(new HashMap<>(config));
+        assertEquals(4, te2.getLogSyncService().getStreamCount());
+        storageBuilder.storagePath(joinDirs("aote", "testStripedRedoLogSyncType", "data2"));
+        Storage storage2 = storageBuilder.openStorage();
+        Transaction t = te2.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testStripedRedoLogSyncType", storage2);
+        assertEquals(threadCount, map.size());
+        for (int i = 0; i < threadCount; i++) {
+            assertEquals("value" + i, map.get("key" + i));
+        }
+        map.remove();
+        t.commit();
+        te2.close();
+        storage2.close();
+        storage.close();
+        te.close();
+    }
+
+    @Test
+    public void testParallelRecovery() throws Exception {
+        String baseDir = joinDirs("aote", "testParallelRecovery");
+        // 上次运行留下的redo log和数据都要删掉，否则会多重做上次的记录
+        deleteFileRecursive(baseDir);
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", baseDir); // 不跟其他测试共用redo log
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("log_chunk_size", "1024"); // 生成多个chunk
+        config.put("redo_log_recovery_threads", "4");
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(new HashMap<>(config));
+        StorageBuilder storageBuilder = StorageEngineManager
+                .getStorageEngine(Constants.DEFAULT_STORAGE_ENGINE_NAME).getStorageBuilder();
+        storageBuilder.storagePath(joinDirs("aote", "testParallelRecovery", "data1"));
+        Storage storage = storageBuilder.openStorage();
+
+        int count = 200;
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, String> map = t.openMap("testParallelRecovery", storage);
+            map.put("key" + i, "value" + i);
+            expected.put("key" + i, "value" + i);
+            if (i % 10 == 0) {
+                map.remove("key" + (i / 2));
+                expected.remove("key" + (i / 2));
+            }
+            if (i % 10 == 1) {
+                map.put("key" + (i / 2), "updated");
+                expected.put("key" + (i / 2), "updated");
+            }
+            t.commit();
+        }
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testParallelRecovery", storage);
+        assertEquals(expected, toTreeMap(map));
+        t.commit();
+        // 只关闭日志同步线程，不生成检查点，下次启动时要读取所有chunk来重做
+        te.getLogSyncService().close();
+        te.getLogSyncService().join();
+
+        AMTransactionEngine te2 = new AMTransactionEngine();
+        te2.init(new HashMap<>(config));
+        RedoLog redoLog = te2.getLogSyncService().getRedoLog();
+        assertEquals(count, redoLog.getRecoveredRecordCount());
+        assertTrue(redoLog.getRecoveryTime() >= 0);
+        assertEquals(1, redoLog.getPendingMapCount());
+        storageBuilder = StorageEngineManager.getStorageEngine(Constants.DEFAULT_STORAGE_ENGINE_NAME)
+                .getStorageBuilder();
+        storageBuilder.storagePath(joinDirs("aote", "testParallelRecovery", "data2"));
+        Storage storage2 = storageBuilder.openStorage();
+        t = te2.beginTransaction(false);
+        map = t.openMap("testParallelRecovery", storage2);
+        assertEquals(0, redoLog.getPendingMapCount());
+        assertTrue(redoLog.getReplayedEntryCount() > count);
+        // 新的storage中没有数据，所有记录都是从redo log重做出来的
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, toTreeMap(map));
+        map.remove();
+        t.commit();
+        te2.close();
+        storage2.close();
+        te.close();
+        storage.close();
+    }
+
+    private static TreeMap<String, String> toTreeMap(TransactionMap<String, String> map) {
+        TreeMap<String, String> treeMap = new TreeMap<>();
+        Iterator<TransactionMapEntry<String, String>> it = map.entryIterator((String) null);
+        while (it.hasNext()) {
+            TransactionMapEntry<String, String> e = it.next();
+            treeMap.put(e.getKey(), e.getValue());
+        }
+        return treeMap;
+    }
+
+    @Test
+    public void testOldValueGc() {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testOldValueGc")); // 不跟其他测试共用redo log
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+        Storage storage = getStorage();
+
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testOldValueGc", storage);
+        map.put("a", "v0");
+        map.put("b", "v0");
+        t.commit();
+
+        Transaction reader = te.beginTransaction(false);
+        reader.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> readerMap = map.getInstance(reader);
+        for (int i = 1; i <= 5; i++) {
+            t = te.beginTransaction(false);
+            map = map.getInstance(t);
+            map.put("a", "v" + i);
+            t.commit();
+        }
+        assertEquals(1, te.getOldValueCount());
+        String a = readerMap.get("a");
+        // 旧版本还会被reader读到，只能截断不能删除，也不能影响reader读到的值
+        te.gcOldValues();
+        assertEquals(1, te.getOldValueCount());
+        assertEquals(a, readerMap.get("a"));
+        assertEquals("v0", readerMap.get("b"));
+        reader.commit();
+
+        // 没有快照事务了，旧版本都可以删除
+        assertEquals(1, te.gcOldValues());
+        assertEquals(0, te.getOldValueCount());
+        t = te.beginTransaction(false);
+        t.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        map = map.getInstance(t);
+        assertEquals("v5", map.get("a"));
+        map.remove();
+        t.commit();
+        te.close();
+    }
+
+    @Test
+    public void testTransactionalSize() {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testTransactionalSize")); // 不跟其他测试共用redo log
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+        Storage storage = getStorage();
+
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testTransactionalSize", storage);
+        map.clear();
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        t.commit();
+
+        // 自己插入和删除的记录马上能看到，其他事务提交前看不到
+        Transaction t1 = te.beginTransaction(false);
+        TransactionMap<String, String> map1 = map.getInstance(t1);
+        Transaction t2 = te.beginTransaction(false);
+        TransactionMap<String, String> map2 = map.getInstance(t2);
+        map1.put("d", "4");
+        map1.remove("a");
+        map1.put("b", "22");
+        assertEquals(3, map1.size());
+        map1.put("e", "5");
+        assertEquals(4, map1.size());
+        assertEquals(3, map2.size());
+
+        // 回滚到保存点后也要撤销对记录数的影响
+        t1.addSavepoint("sp");
+        map1.put("f", "6");
+        map1.remove("c");
+        assertEquals(4, map1.size());
+        t1.rollbackToSavepoint("sp");
+        assertEquals(4, map1.size());
+        t1.commit();
+        assertEquals(4, map2.size());
+        t2.commit();
+
+        // 快照事务开始后其他事务改变了记录数就只能自己数
+        Transaction reader = te.beginTransaction(false);
+        reader.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+        TransactionMap<String, String> readerMap = map.getInstance(reader);
+        assertEquals(4, readerMap.size());
+        t = te.beginTransaction(false);
+        map = map.getInstance(t);
+        map.put("x", "x");
+        t.commit();
+        assertEquals(4, readerMap.size());
+        reader.commit();
+
+        t = te.beginTransaction(false);
+        map = map.getInstance(t);
+        assertEquals(5, map.size());
+        map.remove();
+        t.commit();
+        te.close();
+    }
+
+    @Test
+    public void testDeadlockDetection() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testDeadlockDetection")); // 不跟其他测试共用redo log
+        config.put("deadlock_detection_interval", "3600000"); // 只手动检测
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+
+        Transaction t1 = beginTransaction(te, Integer.MAX_VALUE);
+        Transaction t2 = beginTransaction(te, Integer.MAX_VALUE);
+        Transaction t3 = beginTransaction(te, Integer.MAX_VALUE);
+        // t1 -> t2 -> t3 -> t1
+        t2.addWaitingTransaction("k2", t1, null);
+        t3.addWaitingTransaction("k3", t2, null);
+        assertEquals(0, te.detectDeadlocks());
+        t1.addWaitingTransaction("k1", t3, null);
+        assertEquals(3, te.getLockWaitingTransactionCount());
+        assertEquals(1, te.detectDeadlocks());
+        // 已经选过牺牲者了
+        assertEquals(0, te.detectDeadlocks());
+        assertEquals(1, te.getDeadlockCount());
+        assertEquals(1, te.getDeadlocksPerMinute());
+
+        // 最年轻的t3是牺牲者
+        t1.checkTimeout();
+        t2.checkTimeout();
+        try {
+            t3.checkTimeout();
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.DEADLOCK_1, e.getErrorCode());
+        }
+        t3.rollback();
+        // t3结束后t2被唤醒，只剩下t1在等t2
+        assertEquals(Transaction.STATUS_OPEN, t2.getStatus());
+        assertEquals(1, te.getLockWaitingTransactionCount());
+        assertEquals(2, te.getLockWaitTime().getCount());
+
+        // 等锁超时
+        Transaction t4 = beginTransaction(te, 0);
+        t1.addWaitingTransaction("k4", t4, null);
+        Thread.sleep(10);
+        try {
+            t4.checkTimeout();
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.LOCK_TIMEOUT_1, e.getErrorCode());
+        }
+        t4.rollback();
+        t2.commit();
+        t1.commit();
+        assertEquals(0, te.getLockWaitingTransactionCount());
+        te.close();
+    }
+
+    @Test
+    public void testDeadlockVictimWokenUp() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testDeadlockVictimWokenUp")); // 不跟其他测试共用redo log
+        config.put("deadlock_detection_interval", "3600000"); // 只手动检测
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+
+        Transaction t1 = beginTransaction(te, Integer.MAX_VALUE);
+        Transaction t2 = beginTransaction(te, Integer.MAX_VALUE);
+        Transaction t3 = beginTransaction(te, Integer.MAX_VALUE);
+        // t1 -> t2 -> t3 -> t1
+        t2.addWaitingTransaction("k2", t1, null);
+        t3.addWaitingTransaction("k3", t2, null);
+        t1.addWaitingTransaction("k1", t3, null);
+        assertEquals(1, te.detectDeadlocks());
+
+        // 牺牲者t3回滚之前被唤醒了，它已经不在死锁中了，不能再回滚它
+        t1.wakeUpWaitingTransaction(t3);
+        t3.checkTimeout();
+        assertEquals(2, te.getLockWaitingTransactionCount());
+        assertEquals(0, te.detectDeadlocks());
+
+        // 再次等待形成新的死锁时还能被选为牺牲者
+        t1.addWaitingTransaction("k1", t3, null);
+        assertEquals(1, te.detectDeadlocks());
+        try {
+            t3.checkTimeout();
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.DEADLOCK_1, e.getErrorCode());
+        }
+        t3.rollback();
+        t2.commit();
+        t1.commit();
+        assertEquals(0, te.getLockWaitingTransactionCount());
+        assertEquals(2, te.getDeadlockCount());
+        te.close();
+    }
+
+    @Test
+    public void testWaitingTransactionQueue() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", joinDirs("aote", "testWaitingTransactionQueue")); // 不跟其他测试共用redo log
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+
+        // 很多事务同时等待同一个热点记录
+        Transaction holder = beginTransaction(te, Integer.MAX_VALUE);
+        int threadCount = 8;
+        int waiterCount = 50;
+        Transaction[][] waiters = new Transaction[threadCount][waiterCount];
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            Transaction[] a = waiters[i];
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < waiterCount; j++) {
+                    a[j] = beginTransaction(te, Integer.MAX_VALUE);
+                    assertEquals(Transaction.OPERATION_NEED_WAIT, holder.addWaitingTransaction("hot", a[j], null));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threadCount * waiterCount, te.getLockWaitingTransactionCount());
+
+        // 只唤醒指定的事务
+        holder.wakeUpWaitingTransaction(waiters[0][0]);
+        assertEquals(Transaction.STATUS_OPEN, waiters[0][0].getStatus());
+        assertEquals(Transaction.STATUS_WAITING, waiters[0][1].getStatus());
+        assertEquals(threadCount * waiterCount - 1, te.getLockWaitingTransactionCount());
+
+        // 按等待的先后顺序唤醒
+        ArrayList<Integer> wakeUpOrder = new ArrayList<>();
+        Transaction holder2 = beginTransaction(te, Integer.MAX_VALUE);
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            holder2.addWaitingTransaction("k", beginTransaction(te, Integer.MAX_VALUE), new Transaction.Listener() {
+                @Override
+                public void operationUndo() {
+                }
+
+                @Override
+                public void operationComplete() {
+                }
+
+                @Override
+                public void wakeUp() {
+                    wakeUpOrder.add(index);
+                }
+            });
+        }
+        holder2.commit();
+        assertEquals(Arrays.asList(0, 1, 2), wakeUpOrder);
+
+        holder.commit();
+        for (Transaction[] a : waiters) {
+            for (Transaction t : a) {
+                assertEquals(Transaction.STATUS_OPEN, t.getStatus());
+            }
+        }
+        assertEquals(0, te.getLockWaitingTransactionCount());
+        // 已经结束的事务不用再等了
+        assertEquals(Transaction.OPERATION_NEED_RETRY,
+                holder.addWaitingTransaction("hot", beginTransaction(te, Integer.MAX_VALUE), null));
+        assertEquals(0, te.getLockWaitingTransactionCount());
+        te.close();
+    }
+
+    private static Transaction beginTransaction(AMTransactionEngine te, int lockTimeout) {
+        Transaction t = te.beginTransaction(false);
+        t.setSession(new DelegatedSession() {
+            private SessionStatus status = SessionStatus.TRANSACTION_NOT_START;
+
+            @Override
+            public SessionStatus getStatus() {
+                return status;
+            }
+
+            @Override
+            public void setStatus(SessionStatus sessionStatus) {
+                status = sessionStatus;
+            }
+
+            @Override
+            public int getLockTimeout() {
+                return lockTimeout;
+            }
+        });
+        return t;
+    }
+
     @Test
     public void testCheckpoint() {
         Map<String, String> config = getDefaultConfig();